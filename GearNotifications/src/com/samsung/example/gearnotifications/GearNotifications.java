@@ -17,7 +17,10 @@
 
 package com.samsung.example.gearnotifications;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import android.util.Log;
 
@@ -53,7 +56,6 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
@@ -66,15 +68,32 @@ public class GearNotifications extends Activity implements OnClickListener, Even
 	private Button mDemo1Button, mDemo2Button;
 	private NotificationManager mNotiManager;
 	SrnRichNotificationManager mRichNotificationManager;
-	SrnRichNotification mRichNotification;
+	/* tag of the last Android notification posted, so the next rich notification replaces it */
+	private String mLastAndroidTag = null;
 
 	static final int NOTIFICATION_ID = 1;
 	private int mNotification = 0;
+
+	private static final int CACHE_MEMORY_DIVIDER = 16;
+	private static final String TEMPLATE_ACTIONS = "actions";
+	private RichNotificationCache mCache;
+
+	private static final String GROUP_SDC = "sdc";
+	private static final String STATE_SEQUENCE = "sequence";
+	private static final String STATE_LAST_ANDROID_TAG = "last_android_tag";
+	/* outlives the activity, so held notifications survive a rotation */
+	private NotificationHub mHub;
+	/* saved with the instance state, so tags stay unique across rotations */
+	private int mSequence = 0;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
+		if (savedInstanceState != null) {
+			mSequence = savedInstanceState.getInt(STATE_SEQUENCE);
+			mLastAndroidTag = savedInstanceState.getString(STATE_LAST_ANDROID_TAG);
+		}
 
 		mNotiManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 
@@ -84,7 +103,47 @@ public class GearNotifications extends Activity implements OnClickListener, Even
 		mDemo2Button.setOnClickListener(this);
 		
 		initalizeSrn();
-		
+
+		mCache = new RichNotificationCache(this,
+				(int) (Runtime.getRuntime().maxMemory() / CACHE_MEMORY_DIVIDER));
+		mCache.prewarm(new Runnable() {
+			@Override
+			public void run() {
+				getLargeIcon();
+				if (mNotification == 0) {
+					/* the templates themselves are thrown away, their image assets stay cached */
+					mPrimaryFactory.create(mCache);
+					mSecondaryFactory.create(mCache);
+					mCache.getTemplate(TEMPLATE_ACTIONS, mActionsFactory);
+				}
+			}
+		});
+
+		mHub = NotificationHub.getInstance(this);
+		mHub.attach(mAndroidSink, mRichSink);
+	}
+
+	@Override
+	protected void onSaveInstanceState(Bundle outState) {
+		super.onSaveInstanceState(outState);
+		outState.putInt(STATE_SEQUENCE, mSequence);
+		outState.putString(STATE_LAST_ANDROID_TAG, mLastAndroidTag);
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		mHub.detach();
+		if (isChangingConfigurations() == false) {
+			mHub.clear();
+		}
+		mCache.release();
+	}
+
+	@Override
+	public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+		super.dump(prefix, fd, writer, args);
+		mHub.dump(writer);
 	}
 	
 	private void initalizeSrn() {	
@@ -113,7 +172,6 @@ public class GearNotifications extends Activity implements OnClickListener, Even
         }
 
 		mRichNotificationManager = new SrnRichNotificationManager(this);
-		mRichNotification = new SrnRichNotification(this);
 	}
 	
 	 @Override
@@ -134,7 +192,8 @@ public class GearNotifications extends Activity implements OnClickListener, Even
 
 	 @Override
 	 public void onError(UUID arg0, ErrorType arg1) {
-	    // TODO Auto-generated method stub
+	    // The notification is sent again after a while, see NotificationTracker
+	    mHub.getTracker().onError(arg0, arg1.toString());
 	    Toast.makeText(getApplicationContext(),
 	                "Something wrong with uuid" + arg0.toString() + "Error:" + arg1.toString(),
 	                Toast.LENGTH_LONG).show();
@@ -142,7 +201,7 @@ public class GearNotifications extends Activity implements OnClickListener, Even
 
 	 @Override
 	 public void onRead(UUID arg0) {
-	    // TODO Auto-generated method stub
+	    mHub.getTracker().onRead(arg0);
 	    Toast.makeText(getApplicationContext(), "Read uuid" + arg0.toString(), Toast.LENGTH_LONG)
 	                .show();
 
@@ -150,7 +209,7 @@ public class GearNotifications extends Activity implements OnClickListener, Even
 	 
 	 @Override
 	 public void onRemoved(UUID arg0) {
-	    // TODO Auto-generated method stub
+	    mHub.getTracker().onRemoved(arg0);
 	    Toast.makeText(getApplicationContext(), "Removed uuid" + arg0.toString(), Toast.LENGTH_LONG)
 	              .show();
 	 }
@@ -174,9 +233,9 @@ public class GearNotifications extends Activity implements OnClickListener, Even
 	  * <li> Scenario 1 </li>
 	  * <li>The application does NOT declare uses-permission
 	  * "com.samsung.wmanager.ENABLE_NOTIFICATION"</li>
-	  * <li> Comment out mRichNotification.setAssociatedAndroidNotification() 
-	  * and mRichNotificationManager.setRouteCondition() lines in the function
-	  * below </li>
+	  * <li> Comment out the setAssociatedAndroidNotification() line in
+	  * sendRichNotification() and the mRichNotificationManager.setRouteCondition()
+	  * line in mAndroidSink </li>
 	  * <li>The app is selected in Gear Manager -> Notification</li>
 	  * <li>The phone screen is off or un-check Gear Manager->Notifications->Limit notifications
 	  *
@@ -185,9 +244,9 @@ public class GearNotifications extends Activity implements OnClickListener, Even
 	  * "com.samsung.wmanager.ENABLE_NOTIFICATION"</li>
 	  * <li> You have included Rich Notification library in your project 
 	  * and initialized Rich Notification Framework </li>
-	  * <li> Keep mRichNotification.setAssociatedAndroidNotification() 
-	  * and mRichNotificationManager.setRouteCondition() lines in the function
-	  * below </li>
+	  * <li> Keep the setAssociatedAndroidNotification() line in
+	  * sendRichNotification() and the mRichNotificationManager.setRouteCondition()
+	  * line in mAndroidSink </li>
 	  * <li>The phone screen is off or un-check Gear Manager->Notifications->Limit notifications </li>
 	  * </ul>
 	  */
@@ -205,14 +264,48 @@ public class GearNotifications extends Activity implements OnClickListener, Even
 				.setContentText("Welcome to the global Samsung Developer Conference 2014")
 				.setVibrate(pattern)
 				.setSmallIcon(R.drawable.sdc)
-				.setLargeIcon(BitmapFactory.decodeResource(getResources(),R.drawable.sanfrancisco))
+				.setLargeIcon(getLargeIcon())
 				.setContentIntent(content)
+				.setGroup(GROUP_SDC)
 				.build();				
-					
-		mRichNotification.setAssociatedAndroidNotification(GearNotifications.NOTIFICATION_ID);
-		mRichNotificationManager.setRouteCondition(notification);
-		mNotiManager.notify(GearNotifications.NOTIFICATION_ID,notification);
+
+		// Each notification has its own tag so they stack instead of replacing each other
+		mHub.submitAndroid(GROUP_SDC + "-" + (++mSequence), GROUP_SDC, notification);
 	}
+
+	private final NotificationDispatcher.Sink mAndroidSink = new NotificationDispatcher.Sink() {
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		@Override
+		public void deliver(String key, Object payload) {
+			Notification notification = (Notification) payload;
+			mLastAndroidTag = key;
+			mRichNotificationManager.setRouteCondition(notification);
+			mNotiManager.notify(key, GearNotifications.NOTIFICATION_ID, notification);
+		}
+
+		@Override
+		public void deliverDigest(String group, List<Object> payloads) {
+			NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+			for (Object payload : payloads) {
+				style.addLine(((Notification) payload).tickerText);
+			}
+			Notification summary = new NotificationCompat.Builder(GearNotifications.this)
+					.setContentTitle(payloads.size() + " new notifications")
+					.setContentText("Samsung Developer Conference")
+					.setSmallIcon(R.drawable.sdc)
+					.setNumber(payloads.size())
+					.setGroup(group)
+					.setGroupSummary(true)
+					.setStyle(style)
+					.build();
+			mRichNotificationManager.setRouteCondition(summary);
+			mNotiManager.notify(group, GearNotifications.NOTIFICATION_ID, summary);
+		}
+	};
 	 
 	 
 	 /**
@@ -227,51 +320,122 @@ public class GearNotifications extends Activity implements OnClickListener, Even
 	     * </ul>
 	     */
 	 private void sendRichNotification() {
+			/* the application context, a held notification must not keep this activity alive */
+			SrnRichNotification richNotification = new SrnRichNotification(getApplicationContext());
+
 			//Full Screen Image Template
-			Bitmap bgBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.sanfrancisco); 
-			SrnStandardTemplate myPrimaryTemplate = new SrnStandardTemplate(HeaderSizeType.FULL_SCREEN); 
-			mRichNotification.setTitle("<b>Samsung Developer Conference</b>");
-									
-			SrnImageAsset myBackgroundImage = new SrnImageAsset(GearNotifications.this, "notification_background", bgBitmap); 
+			SrnStandardTemplate myPrimaryTemplate = mPrimaryFactory.create(mCache);
+			richNotification.setTitle("<b>Samsung Developer Conference</b>");
 			myPrimaryTemplate.setSubHeader("Nov 11-13, 2014");
-			myPrimaryTemplate.setBackgroundImage(myBackgroundImage);
 			myPrimaryTemplate.setBody("Welcome to the global Samsung Developer Conference 2014 - our biggest, most comprehensive conference ever! ");
-			mRichNotification.setPrimaryTemplate(myPrimaryTemplate); 
-																							
-			SrnStandardSecondaryTemplate mySecondaryTemplate = new SrnStandardSecondaryTemplate();
-			Bitmap myLikesBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.likes);
-			SrnImageAsset myLikesImage = new SrnImageAsset(GearNotifications.this, "vote_like", myLikesBitmap); 
-			Bitmap myCommentsBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.comments);
-			SrnImageAsset myCommentsImage = new SrnImageAsset(GearNotifications.this, "comments", myCommentsBitmap); 
-					
+			richNotification.setPrimaryTemplate(myPrimaryTemplate); 
+
+			SrnStandardSecondaryTemplate mySecondaryTemplate = mSecondaryFactory.create(mCache);
 			mySecondaryTemplate.setSubHeader("Samsung Dev Con"); 
 			mySecondaryTemplate.setBody("Get ready to listen, discuss, learn and network about everything that enables you to participate in the present and future of Connected Living.");
-			mySecondaryTemplate.setSmallIcon1(myLikesImage, "256 Likes");
-			mySecondaryTemplate.setSmallIcon2(myCommentsImage, "96 Comments");
-			mRichNotification.setSecondaryTemplate(mySecondaryTemplate);
-			mRichNotification.setAlertType(AlertType.SOUND_AND_VIBRATION);
-					
-			//Host Action 
+			richNotification.setSecondaryTemplate(mySecondaryTemplate);
+			richNotification.setAlertType(AlertType.SOUND_AND_VIBRATION);
+
+			richNotification.addActions(mCache.getTemplate(TEMPLATE_ACTIONS, mActionsFactory));
+			if (mLastAndroidTag != null) {
+				richNotification.setAssociatedAndroidNotification(NOTIFICATION_ID, mLastAndroidTag);
+			}
+
+			if (mHub.submitRich(richNotification, GROUP_SDC)) {
+				Toast.makeText(getApplicationContext(), "Sending Rich Notification",
+						   Toast.LENGTH_LONG).show();
+			} else {	
+				Toast.makeText(getApplicationContext(), "Notification held until the Gear reconnects",
+				   Toast.LENGTH_LONG).show();
+			}
+		}
+
+	/*
+	 * isConnected() can be used to detect if the connected Gear supports Rich Notification.
+	 * If it is a Gear 2, notifications are held until a Gear that supports them connects.
+	 */
+	private final NotificationDispatcher.Sink mRichSink = new NotificationDispatcher.Sink() {
+		@Override
+		public boolean isConnected() {
+			return mRichNotificationManager.isConnected();
+		}
+
+		@Override
+		public void deliver(String key, Object payload) {
+			SrnRichNotification richNotification = (SrnRichNotification) payload;
+			mRichNotificationManager.notify(richNotification);
+			mHub.getTracker().onSent(richNotification.getUuid());
+		}
+
+		@Override
+		public void deliverDigest(String group, List<Object> payloads) {
+			SrnRichNotification digest = new SrnRichNotification(getApplicationContext());
+			digest.setTitle("<b>" + payloads.size() + " new notifications</b>");
+			SrnStandardTemplate template = new SrnStandardTemplate(HeaderSizeType.SMALL);
+			template.setSubHeader("Samsung Developer Conference");
+			template.setBody("Open Samsung Dev Con on your host device for the latest updates.");
+			digest.setPrimaryTemplate(template);
+			digest.setAlertType(AlertType.SOUND_AND_VIBRATION);
+			NotificationTracker tracker = mHub.getTracker();
+			tracker.onQueued(digest.getUuid(), digest);
+			mRichNotificationManager.notify(digest);
+			tracker.onSent(digest.getUuid());
+			for (Object payload : payloads) {
+				/* summarized, reads and errors are reported for the digest instead */
+				tracker.onSent(((SrnRichNotification) payload).getUuid());
+			}
+		}
+	};
+
+	/*
+	 * Each notification gets its own templates, since their text is set per notification and a
+	 * queued notification must keep its own. Only the image assets come from mCache. The
+	 * actions never change once built, so they are cached as a whole.
+	 */
+	private final RichNotificationCache.TemplateFactory<SrnStandardTemplate> mPrimaryFactory =
+			new RichNotificationCache.TemplateFactory<SrnStandardTemplate>() {
+		@Override
+		public SrnStandardTemplate create(RichNotificationCache cache) {
+			SrnStandardTemplate template = new SrnStandardTemplate(HeaderSizeType.FULL_SCREEN);
+			template.setBackgroundImage(cache.getImageAsset("notification_background",
+					R.drawable.sanfrancisco, 0, 0));
+			return template;
+		}
+	};
+
+	private final RichNotificationCache.TemplateFactory<SrnStandardSecondaryTemplate> mSecondaryFactory =
+			new RichNotificationCache.TemplateFactory<SrnStandardSecondaryTemplate>() {
+		@Override
+		public SrnStandardSecondaryTemplate create(RichNotificationCache cache) {
+			SrnStandardSecondaryTemplate template = new SrnStandardSecondaryTemplate();
+			template.setSmallIcon1(cache.getImageAsset("vote_like", R.drawable.likes, 0, 0),
+					"256 Likes");
+			template.setSmallIcon2(cache.getImageAsset("comments", R.drawable.comments, 0, 0),
+					"96 Comments");
+			return template;
+		}
+	};
+
+	private final RichNotificationCache.TemplateFactory<ArrayList<SrnAction>> mActionsFactory =
+			new RichNotificationCache.TemplateFactory<ArrayList<SrnAction>>() {
+		@Override
+		public ArrayList<SrnAction> create(RichNotificationCache cache) {
 			ArrayList<SrnAction> myActions = new ArrayList<SrnAction>();
+
+			//Host Action 
 			SrnHostAction primaryAction = new SrnHostAction("Sign up");  
-		    String url = "http://samsungdevcon.com";
-		    Intent resultIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
-		       
-		    Bitmap joinBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.sdc);
-			SrnImageAsset joinIcon = new SrnImageAsset(GearNotifications.this, "website", joinBitmap); 
-			primaryAction.setIcon(joinIcon);
+			String url = "http://samsungdevcon.com";
+			Intent resultIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
+			primaryAction.setIcon(cache.getImageAsset("website", R.drawable.sdc, 0, 0));
 			primaryAction.setToast("Go to samsungdevcon.com on your host device");
 			primaryAction.setCallbackIntent(SrnAction.CallbackIntent.getActivityCallback(resultIntent));
 			myActions.add(primaryAction);
-			
+
 			//Remote Launch Action
 			//Launch Navigator app
 			SrnRemoteLaunchAction remoteLaunchAction = new SrnRemoteLaunchAction("Direction");
 			remoteLaunchAction.setPackage("grk68HBhDL.Navigator");
-
-			Bitmap mapBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.map);
-			SrnImageAsset mapIcon = new SrnImageAsset(GearNotifications.this, "Get There", mapBitmap);
-			remoteLaunchAction.setIcon(mapIcon);
+			remoteLaunchAction.setIcon(cache.getImageAsset("Get There", R.drawable.map, 0, 0));
 			remoteLaunchAction.setMimeType("text/plain");
 			remoteLaunchAction.setOperation("http://tizen.org/appcontrol/operation/w-navigation");
 			Bundle bundle = new Bundle();
@@ -280,19 +444,15 @@ public class GearNotifications extends Activity implements OnClickListener, Even
 			Intent remoteLaunchIntentResult = new Intent(GearNotifications.this, GearNotifications.class);
 			remoteLaunchAction.setCallbackIntent(CallbackIntent.getActivityCallback(remoteLaunchIntentResult));
 			myActions.add(remoteLaunchAction);
-			mRichNotification.addActions(myActions);
-			
-			//isConnected() can be used to detect if the connected Gear supports Rich Notification
-			//if it is a Gear 2, notification will not be sent
-			if (mRichNotificationManager.isConnected()){
-				Toast.makeText(getApplicationContext(), "Sending Rich Notification",
-						   Toast.LENGTH_LONG).show();
-				mRichNotificationManager.notify(mRichNotification);
-			} else {	
-				Toast.makeText(getApplicationContext(), "Notification not sent",
-				   Toast.LENGTH_LONG).show();
-			}
+			return myActions;
 		}
+	};
+
+	private Bitmap getLargeIcon() {
+		return mCache.getBitmap("large_icon", R.drawable.sanfrancisco,
+				getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width),
+				getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_height));
+	}
 				
 }	
 
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2014-2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.gearnotifications;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Queues notifications and hands them to a {@link Sink} at a rate the watch link can take.
+ * <p>
+ * The queue is bounded; when it is full the oldest notification is dropped. A notification
+ * submitted with the key of one still queued replaces it in place. Delivery is paced by a
+ * token bucket: a short burst goes out at once, then one notification per refill interval.
+ * When the notifications waiting for a token include {@code digestThreshold} or more of one
+ * group, they go out together as one digest. Nothing is delivered while the sink is not
+ * connected; the queue is kept and delivery resumes when it is.
+ * <p>
+ * {@link #submit} may be called from any thread. The sink is called on the main thread.
+ */
+public class NotificationDispatcher {
+	private static final long HOLD_RETRY_MS = 2000;
+
+	public interface Sink {
+		boolean isConnected();
+
+		void deliver(String key, Object payload);
+
+		/**
+		 * Called instead of {@link #deliver} for a burst of one group, oldest first.
+		 */
+		void deliverDigest(String group, List<Object> payloads);
+	}
+
+	private static class Pending {
+		final String group;
+		Object payload;
+
+		Pending(String group, Object payload) {
+			this.group = group;
+			this.payload = payload;
+		}
+	}
+
+	private final Sink mSink;
+	private final int mCapacity;
+	private final int mDigestThreshold;
+	private final int mBurst;
+	private final long mRefillMs;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final Runnable mDrain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/* guarded by this; insertion ordered, replacing a value keeps its position */
+	private final LinkedHashMap<String, Pending> mQueue = new LinkedHashMap<String, Pending>();
+	private int mTokens;
+	private long mRefilledAt = SystemClock.uptimeMillis();
+	private boolean mIsHeld = false;
+	private long mSubmittedCount = 0;
+	private long mReplacedCount = 0;
+	private long mDroppedCount = 0;
+	private long mDeliveredCount = 0;
+	private long mDigestCount = 0;
+
+	/**
+	 * @param capacity notifications kept while waiting
+	 * @param digestThreshold queued notifications of one group that are sent as a digest
+	 * @param burst notifications sent at once after a quiet period
+	 * @param refillMs time to earn one more notification
+	 */
+	public NotificationDispatcher(Sink sink, int capacity, int digestThreshold, int burst,
+			long refillMs) {
+		mSink = sink;
+		mCapacity = capacity;
+		mDigestThreshold = digestThreshold;
+		mBurst = burst;
+		mRefillMs = refillMs;
+		mTokens = burst;
+	}
+
+	/**
+	 * Queues {@code payload} under {@code key}, replacing a queued one with the same key.
+	 *
+	 * @param group notifications of the same group may be sent as one digest, or null
+	 * @return false if the sink is not connected and the notification is held
+	 */
+	public boolean submit(String key, String group, Object payload) {
+		synchronized (this) {
+			mSubmittedCount++;
+			Pending entry = mQueue.get(key);
+			if (entry != null) {
+				entry.payload = payload;
+				mReplacedCount++;
+			} else {
+				if (mQueue.size() >= mCapacity) {
+					Iterator<Pending> it = mQueue.values().iterator();
+					it.next();
+					it.remove();
+					mDroppedCount++;
+				}
+				mQueue.put(key, new Pending(group, payload));
+			}
+			if (mIsHeld) {
+				return false;
+			}
+		}
+		mHandler.post(mDrain);
+		return true;
+	}
+
+	/**
+	 * Drops every queued notification.
+	 */
+	public void clear() {
+		mHandler.removeCallbacks(mDrain);
+		synchronized (this) {
+			mQueue.clear();
+			mIsHeld = false;
+		}
+	}
+
+	public synchronized String getStats() {
+		return "queued=" + mQueue.size() + " submitted=" + mSubmittedCount + " replaced="
+				+ mReplacedCount + " dropped=" + mDroppedCount + " delivered=" + mDeliveredCount
+				+ " digests=" + mDigestCount + (mIsHeld ? " (held)" : "");
+	}
+
+	private void drain() {
+		mHandler.removeCallbacks(mDrain);
+		while (true) {
+			boolean isConnected = mSink.isConnected();
+			String key = null;
+			String group = null;
+			Object payload = null;
+			List<Object> digest = null;
+			synchronized (this) {
+				if (mQueue.isEmpty()) {
+					mIsHeld = false;
+					return;
+				}
+				if (isConnected == false) {
+					mIsHeld = true;
+					mHandler.postDelayed(mDrain, HOLD_RETRY_MS);
+					return;
+				}
+				mIsHeld = false;
+				long now = SystemClock.uptimeMillis();
+				refillLocked(now);
+				if (mTokens == 0) {
+					mHandler.postDelayed(mDrain, mRefillMs - (now - mRefilledAt));
+					return;
+				}
+				mTokens--;
+				Iterator<Map.Entry<String, Pending>> it = mQueue.entrySet().iterator();
+				Map.Entry<String, Pending> first = it.next();
+				group = first.getValue().group;
+				if (group != null && countLocked(group) >= mDigestThreshold) {
+					digest = removeGroupLocked(group);
+					mDigestCount++;
+					mDeliveredCount += digest.size();
+				} else {
+					key = first.getKey();
+					payload = first.getValue().payload;
+					it.remove();
+					mDeliveredCount++;
+				}
+			}
+			if (digest != null) {
+				mSink.deliverDigest(group, digest);
+			} else {
+				mSink.deliver(key, payload);
+			}
+		}
+	}
+
+	private void refillLocked(long now) {
+		if (mTokens >= mBurst) {
+			mRefilledAt = now;
+			return;
+		}
+		long earned = (now - mRefilledAt) / mRefillMs;
+		if (earned > 0) {
+			mTokens = (int) Math.min(mBurst, mTokens + earned);
+			mRefilledAt += earned * mRefillMs;
+		}
+	}
+
+	private int countLocked(String group) {
+		int count = 0;
+		for (Pending entry : mQueue.values()) {
+			if (group.equals(entry.group)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private List<Object> removeGroupLocked(String group) {
+		List<Object> payloads = new ArrayList<Object>();
+		for (Iterator<Pending> it = mQueue.values().iterator(); it.hasNext();) {
+			Pending entry = it.next();
+			if (group.equals(entry.group)) {
+				payloads.add(entry.payload);
+				it.remove();
+			}
+		}
+		return payloads;
+	}
+}
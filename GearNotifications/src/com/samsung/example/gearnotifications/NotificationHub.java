@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014-2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.gearnotifications;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.UUID;
+
+import com.samsung.android.sdk.richnotification.SrnRichNotification;
+
+import android.content.Context;
+
+/**
+ * Owns the notification queues and the {@link NotificationTracker} for the whole process, so
+ * notifications held for the Gear outlive an activity that is recreated, for example on
+ * rotation.
+ * <p>
+ * The activity attaches the sinks that post notifications while it exists. Without them both
+ * queues hold their notifications and delivery resumes once sinks are attached again. Sinks
+ * are attached, detached and called on the main thread.
+ */
+public class NotificationHub {
+	private static final int DISPATCH_CAPACITY = 32;
+	private static final int DIGEST_THRESHOLD = 3;
+	/* the accessory link takes a few notifications back to back, then about one every two seconds */
+	private static final int DISPATCH_BURST = 3;
+	private static final long DISPATCH_REFILL_MS = 2000;
+
+	private static NotificationHub sInstance;
+
+	/* passes calls on to the attached sink, and reports it disconnected while there is none */
+	private static class AttachableSink implements NotificationDispatcher.Sink {
+		private NotificationDispatcher.Sink mTarget;
+
+		@Override
+		public boolean isConnected() {
+			return mTarget != null && mTarget.isConnected();
+		}
+
+		@Override
+		public void deliver(String key, Object payload) {
+			mTarget.deliver(key, payload);
+		}
+
+		@Override
+		public void deliverDigest(String group, List<Object> payloads) {
+			mTarget.deliverDigest(group, payloads);
+		}
+	}
+
+	private final AttachableSink mAndroidSink = new AttachableSink();
+	private final AttachableSink mRichSink = new AttachableSink();
+	private final NotificationDispatcher mAndroidDispatcher;
+	private final NotificationDispatcher mRichDispatcher;
+	private final NotificationTracker mTracker;
+
+	public static synchronized NotificationHub getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new NotificationHub(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private NotificationHub(Context context) {
+		mAndroidDispatcher = new NotificationDispatcher(mAndroidSink, DISPATCH_CAPACITY,
+				DIGEST_THRESHOLD, DISPATCH_BURST, DISPATCH_REFILL_MS);
+		mRichDispatcher = new NotificationDispatcher(mRichSink, DISPATCH_CAPACITY,
+				DIGEST_THRESHOLD, DISPATCH_BURST, DISPATCH_REFILL_MS);
+		mTracker = new NotificationTracker(context, new NotificationTracker.Resender() {
+			@Override
+			public void resend(UUID uuid, Object payload) {
+				/* no group: a resend goes out on its own instead of in a digest */
+				submitRich((SrnRichNotification) payload, null);
+			}
+		});
+	}
+
+	/**
+	 * Called by the activity once it can post notifications.
+	 */
+	public void attach(NotificationDispatcher.Sink androidSink,
+			NotificationDispatcher.Sink richSink) {
+		mAndroidSink.mTarget = androidSink;
+		mRichSink.mTarget = richSink;
+	}
+
+	/**
+	 * Called by the activity when it goes away. Queued notifications are held.
+	 */
+	public void detach() {
+		mAndroidSink.mTarget = null;
+		mRichSink.mTarget = null;
+	}
+
+	/**
+	 * Drops every queued notification and cancels pending resends, for when the user leaves
+	 * the app for good.
+	 */
+	public void clear() {
+		mAndroidDispatcher.clear();
+		mRichDispatcher.clear();
+		mTracker.release();
+	}
+
+	public NotificationTracker getTracker() {
+		return mTracker;
+	}
+
+	/**
+	 * @see NotificationDispatcher#submit
+	 */
+	public boolean submitAndroid(String key, String group, Object notification) {
+		return mAndroidDispatcher.submit(key, group, notification);
+	}
+
+	/**
+	 * Tracks and queues a rich notification.
+	 *
+	 * @return false if the notification is held until a Gear connects
+	 */
+	public boolean submitRich(SrnRichNotification richNotification, String group) {
+		mTracker.onQueued(richNotification.getUuid(), richNotification);
+		return mRichDispatcher.submit(richNotification.getUuid().toString(), group,
+				richNotification);
+	}
+
+	public void dump(PrintWriter writer) {
+		writer.println("Android notifications: " + mAndroidDispatcher.getStats());
+		writer.println("Rich notifications: " + mRichDispatcher.getStats());
+		mTracker.dump(writer);
+	}
+}
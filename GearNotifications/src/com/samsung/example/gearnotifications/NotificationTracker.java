@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014-2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.gearnotifications;
+
+import java.io.PrintWriter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Follows every rich notification by UUID from the moment it is queued until the watch reports
+ * it read or removed, and resends notifications the watch reported an error for.
+ * <p>
+ * Records are kept in memory for lookup and written to {@link SharedPreferences}, so the
+ * history survives restarts; the oldest are dropped after {@link #MAX_RECORDS}. Delivery
+ * latency (queued to sent) and read latency (sent to read) are collected in histograms with
+ * power of two buckets. A notification with an error is resent after an exponential backoff,
+ * up to {@link #MAX_RETRIES} times.
+ */
+public class NotificationTracker {
+	private static final String TAG = "NotificationTracker";
+	private static final String PREFS_NAME = "notification_tracker";
+	private static final int MAX_RECORDS = 256;
+	private static final int MAX_RETRIES = 4;
+	private static final long RETRY_BASE_MS = 2000;
+	private static final long RETRY_MAX_MS = 60000;
+	/* the last bucket also holds everything slower than 2^16 ms */
+	private static final int BUCKET_COUNT = 18;
+
+	public interface Resender {
+		void resend(UUID uuid, Object payload);
+	}
+
+	/** Wall-clock times in milliseconds, 0 until the event happens. */
+	public static class Record {
+		public long queuedAt;
+		public long sentAt;
+		public long readAt;
+		public long removedAt;
+		public long errorAt;
+		public int errorCount;
+		public String lastError;
+
+		/* not persisted, a notification is only resent by the process that built it */
+		Object payload;
+		Runnable retry;
+
+		String serialize() {
+			return queuedAt + "," + sentAt + "," + readAt + "," + removedAt + "," + errorAt + ","
+					+ errorCount + "," + (lastError != null ? lastError : "");
+		}
+
+		static Record parse(String value) {
+			String[] fields = value.split(",", 7);
+			if (fields.length != 7) {
+				return null;
+			}
+			Record record = new Record();
+			try {
+				record.queuedAt = Long.parseLong(fields[0]);
+				record.sentAt = Long.parseLong(fields[1]);
+				record.readAt = Long.parseLong(fields[2]);
+				record.removedAt = Long.parseLong(fields[3]);
+				record.errorAt = Long.parseLong(fields[4]);
+				record.errorCount = Integer.parseInt(fields[5]);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			record.lastError = fields[6].length() > 0 ? fields[6] : null;
+			return record;
+		}
+	}
+
+	private final SharedPreferences mPrefs;
+	private final Resender mResender;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	/* guarded by this; oldest first */
+	private final LinkedHashMap<UUID, Record> mRecords = new LinkedHashMap<UUID, Record>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<UUID, Record> eldest) {
+			if (size() <= MAX_RECORDS) {
+				return false;
+			}
+			cancelRetry(eldest.getValue());
+			mPrefs.edit().remove(eldest.getKey().toString()).apply();
+			return true;
+		}
+	};
+	private final int[] mDeliveryHistogram = new int[BUCKET_COUNT];
+	private final int[] mReadHistogram = new int[BUCKET_COUNT];
+	private long mRetryCount = 0;
+	private long mFailedCount = 0;
+
+	public NotificationTracker(Context context, Resender resender) {
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		mResender = resender;
+		load();
+	}
+
+	/**
+	 * Called when a notification, or a retry of it, is queued for sending.
+	 *
+	 * @param payload what {@link Resender#resend} gets back if the notification fails
+	 */
+	public synchronized void onQueued(UUID uuid, Object payload) {
+		Record record = mRecords.get(uuid);
+		if (record == null) {
+			record = new Record();
+			mRecords.put(uuid, record);
+		}
+		record.queuedAt = System.currentTimeMillis();
+		record.payload = payload;
+		save(uuid, record);
+	}
+
+	public synchronized void onSent(UUID uuid) {
+		Record record = mRecords.get(uuid);
+		if (record == null) {
+			return;
+		}
+		record.sentAt = System.currentTimeMillis();
+		add(mDeliveryHistogram, record.sentAt - record.queuedAt);
+		save(uuid, record);
+	}
+
+	public synchronized void onRead(UUID uuid) {
+		Record record = mRecords.get(uuid);
+		if (record == null) {
+			return;
+		}
+		record.readAt = System.currentTimeMillis();
+		if (record.sentAt > 0) {
+			add(mReadHistogram, record.readAt - record.sentAt);
+		}
+		finish(record);
+		save(uuid, record);
+	}
+
+	public synchronized void onRemoved(UUID uuid) {
+		Record record = mRecords.get(uuid);
+		if (record == null) {
+			return;
+		}
+		record.removedAt = System.currentTimeMillis();
+		finish(record);
+		save(uuid, record);
+	}
+
+	/**
+	 * Records the error and schedules a resend unless the notification failed too often or
+	 * is no longer known to this process.
+	 */
+	public synchronized void onError(final UUID uuid, String error) {
+		Record record = mRecords.get(uuid);
+		if (record == null) {
+			return;
+		}
+		record.errorAt = System.currentTimeMillis();
+		record.errorCount++;
+		record.lastError = error;
+		save(uuid, record);
+		if (record.payload == null || record.retry != null) {
+			return;
+		}
+		if (record.errorCount > MAX_RETRIES) {
+			Log.e(TAG, "giving up on " + uuid + " after " + record.errorCount + " errors");
+			mFailedCount++;
+			finish(record);
+			return;
+		}
+		long delayMs = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << (record.errorCount - 1));
+		final Object payload = record.payload;
+		record.retry = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (NotificationTracker.this) {
+					Record current = mRecords.get(uuid);
+					if (current == null || current.retry != this) {
+						return;
+					}
+					current.retry = null;
+					mRetryCount++;
+				}
+				mResender.resend(uuid, payload);
+			}
+		};
+		mHandler.postDelayed(record.retry, delayMs);
+	}
+
+	/**
+	 * @return the record of {@code uuid}, or null if it is not tracked
+	 */
+	public synchronized Record get(UUID uuid) {
+		return mRecords.get(uuid);
+	}
+
+	/**
+	 * Cancels pending retries. Records stay persisted.
+	 */
+	public synchronized void release() {
+		for (Record record : mRecords.values()) {
+			cancelRetry(record);
+		}
+	}
+
+	public synchronized void dump(PrintWriter writer) {
+		writer.println("Notifications: tracked=" + mRecords.size() + " retries=" + mRetryCount
+				+ " failed=" + mFailedCount);
+		writer.println("  delivery latency " + format(mDeliveryHistogram));
+		writer.println("  read latency " + format(mReadHistogram));
+	}
+
+	private void load() {
+		List<Map.Entry<UUID, Record>> loaded = new ArrayList<Map.Entry<UUID, Record>>();
+		for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+			Record record = entry.getValue() instanceof String
+					? Record.parse((String) entry.getValue()) : null;
+			UUID uuid;
+			try {
+				uuid = UUID.fromString(entry.getKey());
+			} catch (IllegalArgumentException e) {
+				uuid = null;
+			}
+			if (record == null || uuid == null) {
+				mPrefs.edit().remove(entry.getKey()).apply();
+				continue;
+			}
+			loaded.add(new AbstractMap.SimpleEntry<UUID, Record>(uuid, record));
+		}
+		Collections.sort(loaded, new Comparator<Map.Entry<UUID, Record>>() {
+			@Override
+			public int compare(Map.Entry<UUID, Record> lhs, Map.Entry<UUID, Record> rhs) {
+				long l = lhs.getValue().queuedAt;
+				long r = rhs.getValue().queuedAt;
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		synchronized (this) {
+			for (Map.Entry<UUID, Record> entry : loaded) {
+				Record record = entry.getValue();
+				mRecords.put(entry.getKey(), record);
+				if (record.sentAt > 0 && record.queuedAt > 0) {
+					add(mDeliveryHistogram, record.sentAt - record.queuedAt);
+				}
+				if (record.readAt > 0 && record.sentAt > 0) {
+					add(mReadHistogram, record.readAt - record.sentAt);
+				}
+			}
+		}
+	}
+
+	private void save(UUID uuid, Record record) {
+		mPrefs.edit().putString(uuid.toString(), record.serialize()).apply();
+	}
+
+	private void finish(Record record) {
+		cancelRetry(record);
+		record.payload = null;
+	}
+
+	private void cancelRetry(Record record) {
+		if (record.retry != null) {
+			mHandler.removeCallbacks(record.retry);
+			record.retry = null;
+		}
+	}
+
+	private static void add(int[] histogram, long ms) {
+		int bucket = ms <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+		histogram[Math.min(bucket, BUCKET_COUNT - 1)]++;
+	}
+
+	private static String format(int[] histogram) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] == 0) {
+				continue;
+			}
+			builder.append(i == histogram.length - 1 ? ">=" + (1L << (i - 1)) : "<" + (1L << i))
+					.append("ms:").append(histogram[i]).append(' ');
+		}
+		return builder.length() > 0 ? builder.toString().trim() : "none";
+	}
+}
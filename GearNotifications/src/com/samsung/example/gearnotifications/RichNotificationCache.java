@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014-2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.gearnotifications;
+
+import java.util.HashMap;
+
+import com.samsung.android.sdk.richnotification.SrnImageAsset;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.LruCache;
+
+/**
+ * Keeps decoded resource bitmaps, the image assets wrapping them and the parts of a
+ * notification that never change once built, so sending a notification does not decode
+ * anything.
+ * <p>
+ * Bitmaps are kept by asset name and size in an {@link LruCache} bounded in bytes. Evicting
+ * a bitmap also drops its asset and every template, since a template keeps its assets alive.
+ * {@link #prewarm} builds everything on a background thread ahead of the first notification.
+ */
+public class RichNotificationCache {
+	/** Builds a template or a part of one from the assets of the cache. */
+	public interface TemplateFactory<T> {
+		T create(RichNotificationCache cache);
+	}
+
+	private final Context mContext;
+	private final LruCache<String, Bitmap> mBitmaps;
+	/* guarded by this */
+	private final HashMap<String, SrnImageAsset> mAssets = new HashMap<String, SrnImageAsset>();
+	private final HashMap<String, Object> mTemplates = new HashMap<String, Object>();
+	private final HandlerThread mPrewarmThread;
+	private final Handler mPrewarmHandler;
+
+	public RichNotificationCache(Context context, int maxBytes) {
+		mContext = context.getApplicationContext();
+		mBitmaps = new LruCache<String, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(String key, Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+					Bitmap newValue) {
+				synchronized (RichNotificationCache.this) {
+					mAssets.remove(key);
+					mTemplates.clear();
+				}
+			}
+		};
+		mPrewarmThread = new HandlerThread("RichNotificationCache",
+				Process.THREAD_PRIORITY_BACKGROUND);
+		mPrewarmThread.start();
+		mPrewarmHandler = new Handler(mPrewarmThread.getLooper());
+	}
+
+	/**
+	 * Returns the bitmap of resource {@code resId}, decoded at the smallest power of two
+	 * reduction that still covers {@code width} x {@code height}. A size of 0 keeps the
+	 * resource size.
+	 */
+	public Bitmap getBitmap(String name, int resId, int width, int height) {
+		String key = getKey(name, width, height);
+		Bitmap bitmap = mBitmaps.get(key);
+		if (bitmap == null) {
+			bitmap = decode(resId, width, height);
+			if (bitmap != null) {
+				mBitmaps.put(key, bitmap);
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Returns the image asset {@code name} for resource {@code resId}. The asset is built once
+	 * and reused for as long as its bitmap stays in the cache.
+	 */
+	public SrnImageAsset getImageAsset(String name, int resId, int width, int height) {
+		String key = getKey(name, width, height);
+		synchronized (this) {
+			SrnImageAsset asset = mAssets.get(key);
+			if (asset != null && mBitmaps.get(key) != null) {
+				return asset;
+			}
+		}
+		Bitmap bitmap = getBitmap(name, resId, width, height);
+		SrnImageAsset asset = new SrnImageAsset(mContext, name, bitmap);
+		synchronized (this) {
+			mAssets.put(key, asset);
+		}
+		return asset;
+	}
+
+	/**
+	 * Returns the template {@code key}, built by {@code factory} the first time or after an
+	 * eviction. The result is shared by every notification, so it must not be changed after it
+	 * is built; a template whose text differs per notification is built for each one instead.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getTemplate(String key, TemplateFactory<T> factory) {
+		synchronized (this) {
+			Object template = mTemplates.get(key);
+			if (template != null) {
+				return (T) template;
+			}
+		}
+		T template = factory.create(this);
+		synchronized (this) {
+			mTemplates.put(key, template);
+		}
+		return template;
+	}
+
+	/**
+	 * Runs {@code warmUp} on a background thread. It should request everything the first
+	 * notification needs.
+	 */
+	public void prewarm(Runnable warmUp) {
+		mPrewarmHandler.post(warmUp);
+	}
+
+	/**
+	 * Stops the prewarm thread and drops everything.
+	 */
+	public void release() {
+		mPrewarmHandler.removeCallbacksAndMessages(null);
+		mPrewarmThread.quit();
+		mBitmaps.evictAll();
+	}
+
+	private Bitmap decode(int resId, int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return BitmapFactory.decodeResource(mContext.getResources(), resId);
+		}
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeResource(mContext.getResources(), resId, options);
+		int sampleSize = 1;
+		while (options.outWidth / (sampleSize * 2) >= width
+				&& options.outHeight / (sampleSize * 2) >= height) {
+			sampleSize *= 2;
+		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		return BitmapFactory.decodeResource(mContext.getResources(), resId, options);
+	}
+
+	private static String getKey(String name, int width, int height) {
+		return name + '@' + width + 'x' + height;
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessory;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mutable bitmaps kept for {@code BitmapFactory.Options.inBitmap}, bucketed by allocation size.
+ * <p>
+ * From KitKat on any bitmap at least as large as the decoded one can be reused. Before that the
+ * decoder needs the exact same dimensions and config, so only an exact match is handed out.
+ */
+class BitmapPool {
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets =
+            new TreeMap<Integer, ArrayList<Bitmap>>();
+    private final int mMaxBytes;
+    private int mBytes = 0;
+
+    BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    static boolean canReuseAnySize() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || bitmap.isMutable() == false) {
+            return;
+        }
+        int size = getSize(bitmap);
+        if (size > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>(2);
+            mBuckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mBytes += size;
+        while (mBytes > mMaxBytes) {
+            Map.Entry<Integer, ArrayList<Bitmap>> largest = mBuckets.lastEntry();
+            Bitmap evicted = largest.getValue().remove(largest.getValue().size() - 1);
+            if (largest.getValue().isEmpty()) {
+                mBuckets.remove(largest.getKey());
+            }
+            mBytes -= largest.getKey();
+            evicted.recycle();
+        }
+    }
+
+    /**
+     * @return a bitmap the decoder can reuse for an image of the given size, or null
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int needed = width * height * getBytesPerPixel(config);
+        if (canReuseAnySize()) {
+            /* do not pin a large bitmap for a small image */
+            for (Map.Entry<Integer, ArrayList<Bitmap>> entry
+                    : mBuckets.subMap(needed, true, needed * 2, true).entrySet()) {
+                return take(entry.getKey(), entry.getValue(), entry.getValue().size() - 1);
+            }
+            return null;
+        }
+        ArrayList<Bitmap> bucket = mBuckets.get(needed);
+        if (bucket == null) {
+            return null;
+        }
+        for (int i = bucket.size() - 1; i >= 0; i--) {
+            Bitmap candidate = bucket.get(i);
+            if (candidate.getWidth() == width && candidate.getHeight() == height
+                    && candidate.getConfig() == config) {
+                return take(needed, bucket, i);
+            }
+        }
+        return null;
+    }
+
+    synchronized void clear() {
+        for (ArrayList<Bitmap> bucket : mBuckets.values()) {
+            for (Bitmap bitmap : bucket) {
+                bitmap.recycle();
+            }
+        }
+        mBuckets.clear();
+        mBytes = 0;
+    }
+
+    static int getSize(Bitmap bitmap) {
+        return canReuseAnySize() ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+
+    private Bitmap take(int size, ArrayList<Bitmap> bucket, int index) {
+        Bitmap bitmap = bucket.remove(index);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(size);
+        }
+        mBytes -= size;
+        return bitmap;
+    }
+}
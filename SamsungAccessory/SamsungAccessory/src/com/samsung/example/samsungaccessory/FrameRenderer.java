@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessory;
+
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import com.samsung.example.samsungaccessory.utils.Metrics;
+
+/**
+ * Applies the latest value of each text field once per display frame.
+ * <p>
+ * Setters may be called from any thread. They only store the value in the field's slot and
+ * mark it dirty; the first dirty mark of a frame posts one frame callback. Numbers are written
+ * into a char buffer owned by the field, so rendering a counter allocates nothing. A field
+ * with a {@link Formatter} is only invalidated by its producer and builds its text during the
+ * frame, so values that arrive faster than the display refreshes are formatted once per frame.
+ * Must be created on the main thread.
+ */
+class FrameRenderer implements Choreographer.FrameCallback {
+    /* int -2147483648 needs 11 chars */
+    private static final int INT_BUFFER_SIZE = 11;
+
+    private static final Metrics sMetrics = Metrics.getDefault();
+    /* from the first update of a frame to the frame callback */
+    private static final int STAGE_FRAME_WAIT = sMetrics.getStage("ui.frameWait");
+    private static final int STAGE_RENDER = sMetrics.getStage("ui.render");
+
+    /** Builds the text of a field on the main thread, from values its producer stored. */
+    interface Formatter {
+        CharSequence format();
+    }
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final TextView[] mViews;
+
+    /* guarded by this, written by producers */
+    private final int[] mPendingInts;
+    private final String[] mPendingTexts;
+    private final boolean[] mIsIntSlot;
+    private int mDirty = 0;
+    private boolean mIsScheduled = false;
+    private boolean mIsPaused = false;
+    private long mFirstDirtyAt = 0;
+
+    /* main thread only */
+    private final Formatter[] mFormatters;
+    private final char[][] mIntBuffers;
+    private final int[] mShownInts;
+    private final boolean[] mIsIntShown;
+    private final int[] mFrameInts;
+    private final String[] mFrameTexts;
+
+    FrameRenderer(TextView... views) {
+        int count = views.length;
+        if (count > Integer.SIZE) {
+            throw new IllegalArgumentException("too many fields: " + count);
+        }
+        mViews = views;
+        mPendingInts = new int[count];
+        mPendingTexts = new String[count];
+        mIsIntSlot = new boolean[count];
+        mFormatters = new Formatter[count];
+        mIntBuffers = new char[count][];
+        mShownInts = new int[count];
+        mIsIntShown = new boolean[count];
+        mFrameInts = new int[count];
+        mFrameTexts = new String[count];
+    }
+
+    void setInt(int slot, int value) {
+        synchronized (this) {
+            mPendingInts[slot] = value;
+            mPendingTexts[slot] = null;
+            mIsIntSlot[slot] = true;
+            markDirtyLocked(slot);
+        }
+    }
+
+    void setText(int slot, String text) {
+        synchronized (this) {
+            mPendingTexts[slot] = text;
+            mIsIntSlot[slot] = false;
+            markDirtyLocked(slot);
+        }
+    }
+
+    /**
+     * Makes {@code formatter} build the text of {@code slot}. Main thread only, before the
+     * first {@link #invalidate}.
+     */
+    void setFormatter(int slot, Formatter formatter) {
+        mFormatters[slot] = formatter;
+    }
+
+    /**
+     * Has the {@link Formatter} of {@code slot} rebuild its text on the next frame.
+     */
+    void invalidate(int slot) {
+        synchronized (this) {
+            mPendingTexts[slot] = null;
+            mIsIntSlot[slot] = false;
+            markDirtyLocked(slot);
+        }
+    }
+
+    /**
+     * Stops rendering while the activity is not visible. Values set meanwhile are kept and
+     * shown on the first frame after resuming.
+     */
+    void setPaused(boolean paused) {
+        synchronized (this) {
+            mIsPaused = paused;
+            if (paused) {
+                if (mIsScheduled) {
+                    mChoreographer.removeFrameCallback(this);
+                    mIsScheduled = false;
+                }
+            } else if (mDirty != 0 && mIsScheduled == false) {
+                mChoreographer.postFrameCallback(this);
+                mIsScheduled = true;
+            }
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long startedAt = System.nanoTime();
+        int dirty;
+        int intSlots = 0;
+        synchronized (this) {
+            mIsScheduled = false;
+            if (mIsPaused) {
+                return;
+            }
+            sMetrics.record(STAGE_FRAME_WAIT, Metrics.TYPE_UNKNOWN, startedAt - mFirstDirtyAt);
+            dirty = mDirty;
+            mDirty = 0;
+            for (int slot = 0; slot < mViews.length; slot++) {
+                if ((dirty & (1 << slot)) == 0) {
+                    continue;
+                }
+                if (mIsIntSlot[slot]) {
+                    mFrameInts[slot] = mPendingInts[slot];
+                    intSlots |= 1 << slot;
+                } else {
+                    mFrameTexts[slot] = mPendingTexts[slot];
+                }
+            }
+        }
+
+        for (int slot = 0; slot < mViews.length; slot++) {
+            if ((dirty & (1 << slot)) == 0) {
+                continue;
+            }
+            if ((intSlots & (1 << slot)) != 0) {
+                renderInt(slot, mFrameInts[slot]);
+            } else if (mFormatters[slot] != null) {
+                mIsIntShown[slot] = false;
+                mViews[slot].setText(mFormatters[slot].format());
+            } else {
+                mIsIntShown[slot] = false;
+                mViews[slot].setText(mFrameTexts[slot]);
+                mFrameTexts[slot] = null;
+            }
+        }
+        sMetrics.record(STAGE_RENDER, Metrics.TYPE_UNKNOWN, System.nanoTime() - startedAt);
+    }
+
+    private void markDirtyLocked(int slot) {
+        if (mDirty == 0) {
+            mFirstDirtyAt = System.nanoTime();
+        }
+        mDirty |= 1 << slot;
+        if (mIsScheduled == false && mIsPaused == false) {
+            mChoreographer.postFrameCallback(this);
+            mIsScheduled = true;
+        }
+    }
+
+    private void renderInt(int slot, int value) {
+        if (mIsIntShown[slot] && mShownInts[slot] == value) {
+            return;
+        }
+        char[] buffer = mIntBuffers[slot];
+        if (buffer == null) {
+            buffer = new char[INT_BUFFER_SIZE];
+            mIntBuffers[slot] = buffer;
+        }
+        /*
+         * TextView keeps a reference to the array, which is fine as long as it is only
+         * rewritten right before the next setText on the same view.
+         */
+        int start = formatInt(value, buffer);
+        mViews[slot].setText(buffer, start, buffer.length - start);
+        mShownInts[slot] = value;
+        mIsIntShown[slot] = true;
+    }
+
+    /**
+     * Writes {@code value} right-aligned into {@code buffer}.
+     *
+     * @return index of the first char
+     */
+    static int formatInt(int value, char[] buffer) {
+        int pos = buffer.length;
+        /* work on the negative value so Integer.MIN_VALUE does not overflow */
+        int remaining = value < 0 ? value : -value;
+        do {
+            buffer[--pos] = (char) ('0' - remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            buffer[--pos] = '-';
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.samsung.example.samsungaccessory.utils.Utility;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes received images on a background thread and shows them in one {@link ImageView}.
+ * <p>
+ * The sample size is picked from the view bounds, decoded bitmaps are cached by file identity
+ * (path, length and modification time, since the provider reuses the same file name) and
+ * bitmaps that are no longer shown or cached go back to a {@link BitmapPool}. Starting a new
+ * load supersedes the previous one: its queued work is dropped and a decode in progress is
+ * asked to stop.
+ */
+class ImageLoader {
+    private static final String TAG = ImageLoader.class.getSimpleName();
+    private static final Bitmap.Config DECODE_CONFIG = Bitmap.Config.ARGB_8888;
+
+    private final ImageView mTarget;
+    private final BitmapPool mPool;
+    private final LruCache<String, Bitmap> mCache;
+    private final HandlerThread mDecodeThread;
+    private final Handler mDecodeHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /* guarded by this */
+    private BitmapFactory.Options mActiveOptions = null;
+    private Bitmap mShown = null;
+    private Bitmap mPending = null;
+
+    ImageLoader(ImageView target, int cacheBytes, int poolBytes) {
+        mTarget = target;
+        mPool = new BitmapPool(poolBytes);
+        mCache = new LruCache<String, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return BitmapPool.getSize(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                    Bitmap newValue) {
+                recycleIfUnused(oldValue);
+            }
+        };
+        mDecodeThread = new HandlerThread("ImageDecoder", Process.THREAD_PRIORITY_BACKGROUND);
+        mDecodeThread.start();
+        mDecodeHandler = new Handler(mDecodeThread.getLooper());
+    }
+
+    /**
+     * Starts loading {@code path} into the target view. May be called from any thread.
+     */
+    void load(final String path) {
+        final int generation = mGeneration.incrementAndGet();
+        mDecodeHandler.removeCallbacksAndMessages(null);
+        synchronized (this) {
+            if (mActiveOptions != null) {
+                mActiveOptions.requestCancelDecode();
+            }
+        }
+        /* a view that is not laid out yet reports 0, decode for the screen size then */
+        int width = mTarget.getWidth();
+        int height = mTarget.getHeight();
+        if (width <= 0 || height <= 0) {
+            DisplayMetrics metrics = mTarget.getResources().getDisplayMetrics();
+            width = metrics.widthPixels;
+            height = metrics.heightPixels;
+        }
+        final int targetWidth = width;
+        final int targetHeight = height;
+        mDecodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                decode(path, targetWidth, targetHeight, generation);
+            }
+        });
+    }
+
+    /**
+     * Stops the decode thread and drops every cached and pooled bitmap.
+     */
+    void release() {
+        mGeneration.incrementAndGet();
+        mDecodeHandler.removeCallbacksAndMessages(null);
+        mDecodeThread.quit();
+        mCache.evictAll();
+        mPool.clear();
+    }
+
+    private boolean isCurrent(int generation) {
+        return mGeneration.get() == generation;
+    }
+
+    private void decode(String path, int targetWidth, int targetHeight, int generation) {
+        if (isCurrent(generation) == false) {
+            return;
+        }
+        File file = new File(path);
+        if (file.exists() == false) {
+            Utility.logError(TAG, "image does not exist: %s", path);
+            return;
+        }
+        String key = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap == null) {
+            bitmap = decodeSampled(file.getAbsolutePath(), targetWidth, targetHeight, generation);
+            if (bitmap == null) {
+                return;
+            }
+            synchronized (this) {
+                mPending = bitmap;
+            }
+            mCache.put(key, bitmap);
+        } else {
+            synchronized (this) {
+                mPending = bitmap;
+            }
+        }
+        deliver(bitmap, generation);
+    }
+
+    private Bitmap decodeSampled(String path, int targetWidth, int targetHeight,
+            int generation) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Utility.logError(TAG, "cannot read image bounds: %s", path);
+            return null;
+        }
+
+        int sampleSize = calculateSampleSize(options.outWidth, options.outHeight, targetWidth,
+                targetHeight);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = DECODE_CONFIG;
+        options.inMutable = true;
+        if (sampleSize == 1 || BitmapPool.canReuseAnySize()) {
+            options.inBitmap = mPool.get(width, height, DECODE_CONFIG);
+        }
+        Utility.logDebug(TAG, "decode %s with sample size %d", path, sampleSize);
+
+        synchronized (this) {
+            if (isCurrent(generation) == false) {
+                mPool.put(options.inBitmap);
+                return null;
+            }
+            mActiveOptions = options;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = decodeReusing(path, options);
+        } finally {
+            synchronized (this) {
+                mActiveOptions = null;
+            }
+        }
+        if (bitmap == null) {
+            /* cancelled or unreadable, the pooled bitmap was not used */
+            mPool.put(options.inBitmap);
+            return null;
+        }
+        if (isCurrent(generation) == false) {
+            mPool.put(bitmap);
+            return null;
+        }
+        return bitmap;
+    }
+
+    private static Bitmap decodeReusing(String path, BitmapFactory.Options options) {
+        Bitmap reused = options.inBitmap;
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            if (reused == null) {
+                throw e;
+            }
+            /* the decoder refused the pooled bitmap, allocate a fresh one */
+            reused.recycle();
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth
+                && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void deliver(final Bitmap bitmap, final int generation) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap previous;
+                synchronized (ImageLoader.this) {
+                    if (mPending == bitmap) {
+                        mPending = null;
+                    }
+                    if (isCurrent(generation) == false) {
+                        previous = bitmap;
+                    } else {
+                        previous = mShown;
+                        mShown = bitmap;
+                    }
+                }
+                if (previous != bitmap) {
+                    mTarget.setImageBitmap(bitmap);
+                    mTarget.setScaleType(ImageView.ScaleType.FIT_XY);
+                }
+                if (previous != null && previous != bitmap) {
+                    recycleIfUnused(previous);
+                }
+            }
+        });
+    }
+
+    /**
+     * Pools {@code bitmap} unless it is shown, about to be shown or still cached.
+     */
+    private void recycleIfUnused(Bitmap bitmap) {
+        synchronized (this) {
+            if (bitmap == mShown || bitmap == mPending) {
+                return;
+            }
+        }
+        if (mCache.snapshot().containsValue(bitmap)) {
+            return;
+        }
+        mPool.put(bitmap);
+    }
+}
@@ -23,8 +23,6 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.view.View;
@@ -39,12 +37,18 @@ import com.samsung.example.samsungaccessory.R;
 import com.samsung.example.samsungaccessory.backend.SamsungAccessoryService;
 import com.samsung.example.samsungaccessory.backend.SamsungAccessoryService.LocalBinder;
 import com.samsung.example.samsungaccessory.backend.SamsungAccessoryService.MessageReceiver;
+import com.samsung.example.samsungaccessory.backend.StreamAnalytics;
 import com.samsung.example.samsungaccessory.utils.Utility;
 
-import java.io.File;
-
 public class SamsungAccessoryActivity extends Activity implements MessageReceiver, OnClickListener {
     private static final String TAG = SamsungAccessoryActivity.class.getSimpleName();
+    private static final int SLOT_RECEIVED_MESSAGE = 0;
+    private static final int SLOT_DEVICE_MODEL = 1;
+    private static final int SLOT_STEPS_COUNT = 2;
+    private static final int SLOT_HEARTBEAT_COUNT = 3;
+    private static final int SLOT_HEART_RATE_STATS = 4;
+    private static final int IMAGE_CACHE_MEMORY_DIVIDER = 8;
+    private static final int IMAGE_POOL_MEMORY_DIVIDER = 16;
 
     private SamsungAccessoryService mSamsungAccessoryService;
     private AlertDialog dialog;
@@ -54,9 +58,20 @@ public class SamsungAccessoryActivity extends Activity implements MessageReceive
     private TextView deviceModel;
     private TextView stepsCount;
     private TextView heartbeatCountText;
+    private TextView heartRateStats;
     private TextView noImage;
     private ImageView image;
     private EditText providerMessage;
+    private FrameRenderer mRenderer;
+    private ImageLoader mImageLoader;
+
+    /* written by the service threads, formatted by the frame callback */
+    private final Object mStatsLock = new Object();
+    private double mHeartRateMean = 0;
+    private double mHeartRateStdDev = 0;
+    private int mHeartRateMin = 0;
+    private int mHeartRateMax = 0;
+    private double mCadence = 0;
     
     private boolean mIsBound = false;
     private boolean mIsConnected = false;
@@ -72,9 +87,24 @@ public class SamsungAccessoryActivity extends Activity implements MessageReceive
         deviceModel = (TextView)findViewById(R.id.connected_device_model);
         stepsCount = (TextView) findViewById(R.id.steps_count);
         heartbeatCountText = (TextView) findViewById(R.id.heartbeat_count);
+        heartRateStats = (TextView) findViewById(R.id.heart_rate_stats);
         image = (ImageView) findViewById(R.id.image);
         noImage = (TextView) findViewById(R.id.text_no_image);
         providerMessage = (EditText) findViewById(R.id.send_message_text);
+        mRenderer = new FrameRenderer(receivedMessage, deviceModel, stepsCount,
+                heartbeatCountText, heartRateStats);
+        mRenderer.setFormatter(SLOT_HEART_RATE_STATS, new FrameRenderer.Formatter() {
+            @Override
+            public CharSequence format() {
+                synchronized (mStatsLock) {
+                    return getString(R.string.heart_rate_stats, mHeartRateMean,
+                            mHeartRateStdDev, mHeartRateMin, mHeartRateMax, mCadence);
+                }
+            }
+        });
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        mImageLoader = new ImageLoader(image, (int) (maxMemory / IMAGE_CACHE_MEMORY_DIVIDER),
+                (int) (maxMemory / IMAGE_POOL_MEMORY_DIVIDER));
         
         Button reset = (Button) findViewById(R.id.reset);
         reset.setOnClickListener(this);
@@ -91,10 +121,12 @@ public class SamsungAccessoryActivity extends Activity implements MessageReceive
     @Override
     protected void onResume() {
         super.onResume();
+        mRenderer.setPaused(false);
     }
 
     @Override
     protected void onPause() {
+        mRenderer.setPaused(true);
         super.onPause();
     }
 
@@ -103,6 +135,7 @@ public class SamsungAccessoryActivity extends Activity implements MessageReceive
         Utility.logDebug(TAG, "onDestroy");
         doUnbindFromSamsungAccessoryService();
         stopService(new Intent(this, SamsungAccessoryService.class));
+        mImageLoader.release();
         super.onDestroy();
     }
 
@@ -159,74 +192,96 @@ public class SamsungAccessoryActivity extends Activity implements MessageReceive
     }
 
     @Override
-    public void onMessageReceived(final String consumerMessage) {
+    public void onMessageReceived(String consumerMessage) {
         Utility.logDebug(TAG, consumerMessage);
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                receivedMessage.setText(consumerMessage);
-            }
-        });
-
+        mRenderer.setText(SLOT_RECEIVED_MESSAGE, consumerMessage);
     }
     
     @Override
-    public void onDeviceModelReceived(final String deviceModelText) {
+    public void onDeviceModelReceived(String deviceModelText) {
     	Utility.logDebug(TAG, deviceModelText);
-    	runOnUiThread(new Runnable() {
-    		@Override
-    		public void run() {
-    			deviceModel.setText(deviceModelText);
-    		}
-    	});
+    	mRenderer.setText(SLOT_DEVICE_MODEL, deviceModelText);
     }
 
     @Override
-    public void onHeartbeatsReceived(final int count) {
-        Utility.logDebug(TAG, "onHeartbeatCountReceived: %s", Integer.toString(count));
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                heartbeatCountText.setText(Integer.toString(count));
-            }
-        });
+    public void onHeartbeatsReceived(int count) {
+        Utility.logDebug(TAG, "onHeartbeatCountReceived: %d", count);
+        mRenderer.setInt(SLOT_HEARTBEAT_COUNT, count);
     }
 
     @Override
-    public void onStepsReceived(final int count) {
-        Utility.logDebug(TAG, "onStepCountReceived: %s", Integer.toString(count));
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                stepsCount.setText(Integer.toString(count));
-            }
-        });
+    public void onStepsReceived(int count) {
+        Utility.logDebug(TAG, "onStepCountReceived: %d", count);
+        mRenderer.setInt(SLOT_STEPS_COUNT, count);
     }
 
     @Override
-    public void setImage(final String path) {
-        Utility.logDebug(TAG, "setImage, path=%s", path);
+    public void onHeartbeatsBatchReceived(long[] timestamps, int[] counts) {
+        onHeartbeatsReceived(counts[counts.length - 1]);
+    }
+
+    @Override
+    public void onStepsBatchReceived(long[] timestamps, int[] counts) {
+        onStepsReceived(counts[counts.length - 1]);
+    }
+
+    @Override
+    public void onHeartRateStatsReceived(double mean, double stdDev, int min, int max) {
+        synchronized (mStatsLock) {
+            mHeartRateMean = mean;
+            mHeartRateStdDev = stdDev;
+            mHeartRateMin = min;
+            mHeartRateMax = max;
+        }
+        mRenderer.invalidate(SLOT_HEART_RATE_STATS);
+    }
+
+    @Override
+    public void onCadenceReceived(double stepsPerMinute) {
+        synchronized (mStatsLock) {
+            mCadence = stepsPerMinute;
+        }
+        mRenderer.invalidate(SLOT_HEART_RATE_STATS);
+    }
+
+    @Override
+    public void onHeartRateAlertReceived(final int kind, final int value, boolean isActive) {
+        if (isActive == false) {
+            return;
+        }
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                File file = new File(path);
-                BitmapFactory.Options options;
-
-                if (file.exists()) {
-                	options = new BitmapFactory.Options();
-                    options.inSampleSize = 2;
-                     
-                    Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-                    image.setImageBitmap(bitmap);
-                    image.setScaleType(ImageView.ScaleType.FIT_XY);
-
-                //    noImage.setVisibility(View.GONE);
+                int message;
+                switch (kind) {
+                    case StreamAnalytics.ALERT_HEART_RATE_HIGH:
+                        message = R.string.heart_rate_high;
+                        break;
+                    case StreamAnalytics.ALERT_HEART_RATE_LOW:
+                        message = R.string.heart_rate_low;
+                        break;
+                    default:
+                        message = R.string.heart_rate_anomaly;
+                        break;
                 }
-
+                Toast.makeText(SamsungAccessoryActivity.this, getString(message, value),
+                        Toast.LENGTH_SHORT).show();
             }
         });
     }
 
+    @Override
+    public void setThumbnail(String path) {
+        Utility.logDebug(TAG, "setThumbnail, path=%s", path);
+        mImageLoader.load(path);
+    }
+
+    @Override
+    public void setImage(String path) {
+        Utility.logDebug(TAG, "setImage, path=%s", path);
+        mImageLoader.load(path);
+    }
+
     @Override
     public void onClick(View v) {
         switch (v.getId()) {
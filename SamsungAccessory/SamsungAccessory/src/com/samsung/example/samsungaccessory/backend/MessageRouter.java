@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessory.backend;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.samsung.example.samsungaccessory.utils.Metrics;
+import com.samsung.example.samsungaccessory.utils.Utility;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands each decoded frame to the handler registered for its type.
+ * <p>
+ * Handlers are kept in an array indexed by type, so finding one costs a bounds check. Each
+ * handler chooses where it runs: on the dispatching thread, on the main thread, on a background
+ * thread shared by all serial handlers, or on a small shared pool. A frame that leaves the
+ * dispatching thread is copied first, since callers reuse theirs.
+ */
+public class MessageRouter {
+    private static final String TAG = MessageRouter.class.getSimpleName();
+    private static final int POOL_SIZE = 2;
+    private static final long POOL_KEEP_ALIVE_SECONDS = 30;
+
+    /** Runs on the main thread, inline when dispatched from it. */
+    public static final int EXECUTOR_MAIN = 0;
+    /** Runs on one background thread, in dispatch order. */
+    public static final int EXECUTOR_SERIAL = 1;
+    /** Runs on a shared pool, in no particular order. */
+    public static final int EXECUTOR_POOL = 2;
+    /** Runs on the dispatching thread, for handlers that may be called from any thread. */
+    public static final int EXECUTOR_INLINE = 3;
+
+    public interface FrameHandler {
+        void onFrame(WireCodec.Frame frame);
+    }
+
+    private static class Route {
+        final FrameHandler handler;
+        final int executor;
+
+        Route(FrameHandler handler, int executor) {
+            this.handler = handler;
+            this.executor = executor;
+        }
+    }
+
+    private final Route[] mRoutes;
+    private final Metrics mMetrics = Metrics.getDefault();
+    private final int mStage;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong mUnknownCount = new AtomicLong();
+    /* created on first use; kept after shutdown so late dispatches are dropped, not crashed */
+    private HandlerThread mSerialThread = null;
+    private volatile Handler mSerialHandler = null;
+    private volatile ThreadPoolExecutor mPool = null;
+
+    /**
+     * @param typeCount types from 0 to {@code typeCount - 1} can have a handler
+     * @param stage metrics stage that records how long each handler takes
+     */
+    public MessageRouter(int typeCount, int stage) {
+        mRoutes = new Route[typeCount];
+        mStage = stage;
+    }
+
+    /**
+     * Sets the handler of {@code type}, replacing any previous one. Register everything before
+     * the first dispatch.
+     */
+    public synchronized void register(int type, int executor, FrameHandler handler) {
+        if (type < 0 || type >= mRoutes.length) {
+            throw new IllegalArgumentException("type out of range: " + type);
+        }
+        if (executor == EXECUTOR_SERIAL && mSerialThread == null) {
+            mSerialThread = new HandlerThread(TAG + "-serial",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            mSerialThread.start();
+            mSerialHandler = new Handler(mSerialThread.getLooper());
+        } else if (executor == EXECUTOR_POOL && mPool == null) {
+            mPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, POOL_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new PoolThreadFactory());
+            mPool.allowCoreThreadTimeOut(true);
+        }
+        mRoutes[type] = new Route(handler, executor);
+    }
+
+    /**
+     * @return false if no handler is registered for the frame's type
+     */
+    public boolean dispatch(WireCodec.Frame frame) {
+        int type = frame.type;
+        Route route = type >= 0 && type < mRoutes.length ? mRoutes[type] : null;
+        if (route == null) {
+            mUnknownCount.incrementAndGet();
+            return false;
+        }
+        if (route.executor == EXECUTOR_INLINE || (route.executor == EXECUTOR_MAIN
+                && Looper.myLooper() == Looper.getMainLooper())) {
+            run(route.handler, frame);
+            return true;
+        }
+        WireCodec.Frame copy = new WireCodec.Frame();
+        copy.set(frame);
+        Runnable task = new Task(route.handler, copy);
+        switch (route.executor) {
+            case EXECUTOR_SERIAL:
+                mSerialHandler.post(task);
+                break;
+            case EXECUTOR_POOL:
+                try {
+                    mPool.execute(task);
+                } catch (RejectedExecutionException e) {
+                    Utility.logError(TAG, "router is shut down, drop type (%d)", type);
+                }
+                break;
+            default:
+                mMainHandler.post(task);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * @return how many frames had a type without a handler
+     */
+    public long getUnknownCount() {
+        return mUnknownCount.get();
+    }
+
+    /**
+     * Drops pending work and stops the background threads.
+     */
+    public synchronized void shutdown() {
+        mMainHandler.removeCallbacksAndMessages(null);
+        if (mSerialThread != null) {
+            mSerialThread.quit();
+        }
+        if (mPool != null) {
+            mPool.shutdownNow();
+        }
+    }
+
+    private void run(FrameHandler handler, WireCodec.Frame frame) {
+        long startedAt = System.nanoTime();
+        handler.onFrame(frame);
+        mMetrics.record(mStage, frame.type, System.nanoTime() - startedAt);
+    }
+
+    private class Task implements Runnable {
+        private final FrameHandler mHandler;
+        private final WireCodec.Frame mFrame;
+
+        Task(FrameHandler handler, WireCodec.Frame frame) {
+            mHandler = handler;
+            mFrame = frame;
+        }
+
+        @Override
+        public void run() {
+            MessageRouter.this.run(mHandler, mFrame);
+        }
+    }
+
+    private static class PoolThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, TAG + "-pool-" + mCount.incrementAndGet());
+        }
+    }
+}
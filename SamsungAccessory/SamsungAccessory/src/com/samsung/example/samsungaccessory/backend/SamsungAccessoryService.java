@@ -25,33 +25,188 @@ import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
+import com.samsung.example.samsungaccessory.BuildConfig;
+import com.samsung.example.samsungaccessory.utils.LogRing;
+import com.samsung.example.samsungaccessory.utils.Metrics;
+import com.samsung.example.samsungaccessory.utils.ServiceLoopers;
 import com.samsung.example.samsungaccessory.utils.Utility;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 public class SamsungAccessoryService extends Service {
     private static final String TAG = SamsungAccessoryService.class.getSimpleName();
     private static final String SAMSUNG_ACCESSORY_PROVIDER_PACKAGE_NAME = "com.samsung.example.samsungaccessoryprovider";
     private static final String SAMSUNG_ACCESSORY_PROVIDER_SERVICE_NAME = "com.samsung.example.samsungaccessoryprovider.backend.SamsungAccessoryProviderService";
     private static final String BUNDLE_DATA = "bundle_data";
+    private static final String BUNDLE_FRAME = "bundle_frame";
     private static final int MSG_REGISTER_CLIENT = 1;
     private static final int MSG_UNREGISTER_CLIENT = 2;
     private static final int MSG_TO_SAMSUNGACCESSORYPROVIDERSERVICE = 3;
     private static final int MSG_TO_SAMSUNGACCESSORYSERVICE = 4;
-
-    private final Messenger mMessenger = new Messenger(new IncomingHandler(this));
-    private Messenger mProviderMessenger = null;
+    private static final int MSG_SAMPLE_BATCH_TO_SAMSUNGACCESSORYSERVICE = 5;
+    private static final String BUNDLE_SAMPLE_TYPE = "sample_type";
+    private static final String BUNDLE_SAMPLE_TIMESTAMPS = "sample_timestamps";
+    private static final String BUNDLE_SAMPLE_VALUES = "sample_values";
+    /* the watch a message or sample batch came from, absent if unknown */
+    private static final String BUNDLE_PEER_ID = "peer_id";
+    private static final int MSG_SHARED_RING_TO_SAMSUNGACCESSORYSERVICE = 6;
+    private static final int MSG_RING_DOORBELL_TO_SAMSUNGACCESSORYSERVICE = 7;
+    private static final String BUNDLE_RING_FD = "ring_fd";
+    /**
+     * Release builds keep their recent log in memory instead of sending it to logcat.
+     * {@code dumpsys activity service <service> --log-ring} saves it in binary to
+     * {@link #LOG_RING_FILE_NAME} of the cache directory, see {@link LogRing#decode}.
+     */
+    private static final int LOG_RING_CAPACITY = 1024;
+    private static final String LOG_RING_FILE_NAME = "log.ring";
+    /*
+     * Samples of an unknown watch stay where the single history of older versions was, those
+     * of each watch go to a directory of their own under HISTORY_PEERS_DIRECTORY.
+     */
+    private static final String HISTORY_DIRECTORY = "history";
+    private static final String HISTORY_PEERS_DIRECTORY = "peers";
+    private static final String UNKNOWN_PEER = "";
+    /* about an hour of per-second samples, sealed into roughly 8 KB */
+    private static final int HISTORY_SEGMENT_SAMPLES = 4096;
+    private static final long HISTORY_RETENTION_MS = 28 * 24 * 60 * 60 * 1000L;
+    private static final long ANALYTICS_WINDOW_MS = 60 * 1000L;
+    /* a minute of samples at 16 Hz */
+    private static final int ANALYTICS_CAPACITY = 1024;
+    private static final int DEFAULT_HEART_RATE_LOW = 40;
+    private static final int DEFAULT_HEART_RATE_HIGH = 180;
+    /**
+     * Where messages are handled unless {@link #ACTION_SET_THREADING_MODE} chose otherwise:
+     * messages from the provider are parsed, stored and analyzed on the inbound thread,
+     * messages to it are built and sent on the outbound thread, and only callbacks that touch
+     * views go to the main thread.
+     */
+    private static final int DEFAULT_THREADING_MODE = ServiceLoopers.MODE_SPLIT;
+    private static final String LOOPERS_NAME = "SAService";
+    /**
+     * Saves the {@link ServiceLoopers} mode given by the int extra {@code mode}, for example
+     * {@code adb shell am startservice -n <package>/.backend.SamsungAccessoryService
+     * -a <action> --ei mode 0}. It applies from the next time the service is created.
+     */
+    public static final String ACTION_SET_THREADING_MODE =
+            "com.samsung.example.samsungaccessory.action.SET_THREADING_MODE";
+
+    private static final Metrics sMetrics = Metrics.getDefault();
+    private static final int STAGE_HANDLE = sMetrics.getStage("service.handleMessage");
+    private static final int STAGE_PARSE = sMetrics.getStage("service.parseMessage");
+    private static final int STAGE_CALLBACK = sMetrics.getStage("service.messageReceiver");
+    /* texts of the provider's load generator, see recordLoadLatency */
+    private static final int STAGE_LOAD = sMetrics.getStage("load.endToEnd");
+    private static final String LOAD_PEER_PREFIX = "load-";
+    private static final String LOAD_SENT_AT_MARKER = " sent-at=";
+    private static final int TYPE_COUNT = 9;
+
+    /* created by onCreate, before anything can reach the service */
+    private ServiceLoopers mLoopers;
+    private IncomingHandler mInboundHandler;
+    private ServiceLoopers.MonitoredHandler mOutboundHandler;
+    private Messenger mMessenger;
+    /* main thread only */
     private boolean mBound = false;
-    private MessageReceiver messageReceiver;
+    /* outbound thread only */
+    private Messenger mProviderMessenger = null;
+    /* read by router threads */
+    private volatile MessageReceiver messageReceiver;
+    private final MessageRouter mRouter = new MessageRouter(TYPE_COUNT, STAGE_CALLBACK);
+
+    /* inbound thread only, apart from creation and the synchronized history queries */
+    private final WireCodec.Frame mFrame = new WireCodec.Frame();
+    private SharedRingBuffer mSharedRing = null;
+    /* the history of each watch by peer id, opened when its first sample arrives */
+    private final HashMap<String, PeerHistory> mHistories = new HashMap<String, PeerHistory>();
+    /*
+     * the analytics of each watch by peer id, so one person's samples never move another's
+     * statistics or step count; the map is also locked by dump
+     */
+    private final HashMap<String, StreamAnalytics> mAnalytics =
+            new HashMap<String, StreamAnalytics>();
+    private int mHeartRateLowLimit = DEFAULT_HEART_RATE_LOW;
+    private int mHeartRateHighLimit = DEFAULT_HEART_RATE_HIGH;
+    private final StreamAnalytics.Listener mAnalyticsListener = new StreamAnalytics.Listener() {
+        @Override
+        public void onHeartRateStats(double mean, double stdDev, int min, int max) {
+            MessageReceiver receiver = messageReceiver;
+            if (receiver != null) {
+                receiver.onHeartRateStatsReceived(mean, stdDev, min, max);
+            }
+        }
+
+        @Override
+        public void onCadence(double stepsPerMinute) {
+            MessageReceiver receiver = messageReceiver;
+            if (receiver != null) {
+                receiver.onCadenceReceived(stepsPerMinute);
+            }
+        }
+
+        @Override
+        public void onHeartRateAlert(int kind, int value, boolean isActive) {
+            Utility.logDebug(TAG, "heart rate alert (%d) %s at %d", kind,
+                    isActive ? "raised" : "cleared", value);
+            MessageReceiver receiver = messageReceiver;
+            if (receiver != null) {
+                receiver.onHeartRateAlertReceived(kind, value, isActive);
+            }
+        }
+    };
+
+    private final SharedRingBuffer.Reader mRingReader = new SharedRingBuffer.Reader() {
+        @Override
+        public void onRecord(byte kind, byte[] payload) {
+            if (kind == SharedRingBuffer.KIND_SAMPLE_BATCH) {
+                readSampleBatch(payload);
+                return;
+            }
+            String peerId = null;
+            if (kind == SharedRingBuffer.KIND_PEER_MESSAGE) {
+                int peerLength = payload.length >= 3
+                        ? (payload[1] & 0xFF) << 8 | (payload[2] & 0xFF) : -1;
+                if (peerLength < 0 || peerLength > payload.length - 3) {
+                    Utility.logError(TAG, "malformed peer message (%d bytes)", payload.length);
+                    return;
+                }
+                kind = payload[0];
+                peerId = new String(payload, 3, peerLength);
+                payload = Arrays.copyOfRange(payload, 3 + peerLength, payload.length);
+            }
+            long startedAt = System.nanoTime();
+            boolean isDecoded;
+            if (kind == SharedRingBuffer.KIND_FRAME) {
+                isDecoded = decodeFrame(payload, mFrame);
+            } else {
+                isDecoded = decodeJson(new String(payload), mFrame);
+            }
+            if (isDecoded) {
+                dispatchFrame(mFrame, peerId);
+            }
+            sMetrics.record(STAGE_PARSE, isDecoded ? mFrame.type : Metrics.TYPE_UNKNOWN,
+                    peerId, System.nanoTime() - startedAt, payload.length);
+        }
+    };
 
     public static final int TYPE_CONNECTION_STATUS = 0;
     public static final int TYPE_HEARTBEAT_COUNT = 1;
@@ -61,37 +216,53 @@ public class SamsungAccessoryService extends Service {
     public static final int TYPE_ERROR = 5;
     public static final int TYPE_RESET = 6;
     public static final int TYPE_DEVICEMODEL = 7;
+    /** path of a preview of the image that follows as TYPE_FILE_PATH */
+    public static final int TYPE_THUMBNAIL_PATH = 8;
 
     private ServiceConnection mConnection = new ServiceConnection() {
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             Utility.logDebug(TAG, "onServiceDisconnected");
-            mProviderMessenger = null;
+            mInboundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    closeSharedRing();
+                }
+            });
+            setProviderMessenger(null);
             mBound = false;
         }
 
         @Override
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            mProviderMessenger = new Messenger(service);
-
-            Message msg = Message.obtain(null, MSG_REGISTER_CLIENT, 0, 0);
-            msg.replyTo = mMessenger;
-            try {
-                Utility.logDebug(TAG, "Send the Message(MSG_REGISTER_CLIENT) to provider service");
-                mProviderMessenger.send(msg);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+        public void onServiceConnected(ComponentName name, final IBinder service) {
+            mOutboundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mProviderMessenger = new Messenger(service);
+
+                    Message msg = Message.obtain(null, MSG_REGISTER_CLIENT, 0, 0);
+                    msg.replyTo = mMessenger;
+                    try {
+                        Utility.logDebug(TAG,
+                                "Send the Message(MSG_REGISTER_CLIENT) to provider service");
+                        mProviderMessenger.send(msg);
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
             mBound = true;
             Utility.logDebug(TAG, "onServiceConnected: bound to provider service");
         }
     };
 
-    static class IncomingHandler extends Handler {
+    static class IncomingHandler extends ServiceLoopers.MonitoredHandler {
         private final WeakReference<SamsungAccessoryService> mService;
 
-        IncomingHandler(SamsungAccessoryService service) {
+        /* records the existing service.queueWait stage */
+        IncomingHandler(SamsungAccessoryService service, Looper looper) {
+            super(looper, "service");
             mService = new WeakReference<SamsungAccessoryService>(service);
         }
 
@@ -130,8 +301,17 @@ public class SamsungAccessoryService extends Service {
 
     @Override
     public void onCreate() {
+        if (BuildConfig.DEBUG == false) {
+            Utility.setLogRing(new LogRing(LOG_RING_CAPACITY));
+        }
         Utility.logDebug(TAG, "onCreate");
         super.onCreate();
+        mLoopers = new ServiceLoopers(LOOPERS_NAME,
+                ServiceLoopers.getSavedMode(this, LOOPERS_NAME, DEFAULT_THREADING_MODE));
+        mInboundHandler = mLoopers.monitor(new IncomingHandler(this, mLoopers.getInboundLooper()));
+        mOutboundHandler = mLoopers.newOutboundHandler("service.outbound");
+        mMessenger = new Messenger(mInboundHandler);
+        registerHandlers();
         boolean isInstalled = isProviderInstalled();
         if (isInstalled) {
             Utility.logDebug(TAG, "provider is installed");
@@ -145,6 +325,14 @@ public class SamsungAccessoryService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_SET_THREADING_MODE.equals(intent.getAction())) {
+            int mode = intent.getIntExtra("mode", DEFAULT_THREADING_MODE);
+            if (ServiceLoopers.saveMode(this, LOOPERS_NAME, mode)) {
+                Utility.logInfo(TAG, "threading mode (%d) applies from the next start", mode);
+            } else {
+                Utility.logError(TAG, "unknown threading mode (%d)", mode);
+            }
+        }
         Utility.logDebug(TAG, "receive request(bind) from provider");
         if (mBound == false) {
             bindToProviderService(getApplicationContext());
@@ -158,9 +346,125 @@ public class SamsungAccessoryService extends Service {
         if (mBound) {
             unbindFromProviderService(getApplicationContext());
         }
+        mRouter.shutdown();
+        /* after the messages already queued, which may still write the history */
+        mInboundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeSharedRing();
+                closeHistories();
+            }
+        });
+        mOutboundHandler.clear();
+        mLoopers.quit();
+        Utility.setLogRing(null);
         super.onDestroy();
     }
 
+    /* the heartbeat and step history of one watch */
+    private static class PeerHistory {
+        TimeSeriesStore heartbeat;
+        TimeSeriesStore steps;
+    }
+
+    private static TimeSeriesStore openHistory(File directory) {
+        try {
+            return new TimeSeriesStore(directory, HISTORY_SEGMENT_SAMPLES, HISTORY_RETENTION_MS);
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot open history, samples are not kept");
+            return null;
+        }
+    }
+
+    /**
+     * @param peerId the watch, or null for samples that came without a peer id
+     * @return stored heartbeat samples of the watch, or null if it has no history or the
+     *         history could not be opened
+     */
+    public TimeSeriesStore getHeartbeatHistory(String peerId) {
+        PeerHistory history = getPeerHistory(peerId, false);
+        return history != null ? history.heartbeat : null;
+    }
+
+    /**
+     * @param peerId the watch, or null for samples that came without a peer id
+     * @return stored step samples of the watch, or null if it has no history or the history
+     *         could not be opened
+     */
+    public TimeSeriesStore getStepsHistory(String peerId) {
+        PeerHistory history = getPeerHistory(peerId, false);
+        return history != null ? history.steps : null;
+    }
+
+    private TimeSeriesStore getHistory(String peerId, int type) {
+        if (type != TYPE_HEARTBEAT_COUNT && type != TYPE_STEPS_COUNT) {
+            return null;
+        }
+        PeerHistory history = getPeerHistory(peerId, true);
+        return type == TYPE_HEARTBEAT_COUNT ? history.heartbeat : history.steps;
+    }
+
+    /*
+     * Opens the history of a watch on first use. Queries only open a history that is already
+     * on disk, so asking about an unknown watch leaves no directory behind.
+     */
+    private PeerHistory getPeerHistory(String peerId, boolean isCreating) {
+        String key = peerId != null ? peerId : UNKNOWN_PEER;
+        synchronized (mHistories) {
+            PeerHistory history = mHistories.get(key);
+            if (history != null) {
+                return history;
+            }
+            File directory = new File(getFilesDir(), HISTORY_DIRECTORY);
+            if (key.length() > 0) {
+                directory = new File(new File(directory, HISTORY_PEERS_DIRECTORY),
+                        toDirectoryName(key));
+            }
+            if (isCreating == false && directory.isDirectory() == false) {
+                return null;
+            }
+            history = new PeerHistory();
+            history.heartbeat = openHistory(new File(directory, "heartbeat"));
+            history.steps = openHistory(new File(directory, "steps"));
+            mHistories.put(key, history);
+            return history;
+        }
+    }
+
+    private void closeHistories() {
+        synchronized (mHistories) {
+            for (PeerHistory history : mHistories.values()) {
+                if (history.heartbeat != null) {
+                    history.heartbeat.close();
+                }
+                if (history.steps != null) {
+                    history.steps.close();
+                }
+            }
+            mHistories.clear();
+        }
+    }
+
+    /* peer ids are opaque: letters, digits and '-' are kept, anything else is escaped */
+    private static String toDirectoryName(String peerId) {
+        StringBuilder name = new StringBuilder(peerId.length());
+        for (int i = 0; i < peerId.length(); i++) {
+            char c = peerId.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-') {
+                name.append(c);
+            } else {
+                name.append('_').append(Integer.toHexString(c)).append('_');
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Receives what the provider sends. Connection status is reported on the main thread;
+     * images and thumbnails on a background thread; everything else on the service's inbound
+     * thread, so implementations hop to the main thread themselves before touching views.
+     */
     public interface MessageReceiver {
         void onMessageReceived(String str);
 
@@ -170,15 +474,67 @@ public class SamsungAccessoryService extends Service {
 
         void onStepsReceived(int num);
 
+        /**
+         * Called with samples the provider batched together, oldest first.
+         * {@code timestamps} are wall-clock milliseconds taken when the provider received them.
+         */
+        void onHeartbeatsBatchReceived(long[] timestamps, int[] nums);
+
+        void onStepsBatchReceived(long[] timestamps, int[] nums);
+
+        /**
+         * Called with a small preview of the image that is being received, before
+         * {@link #setImage} is called with the image itself.
+         */
+        void setThumbnail(String path);
+
         void setImage(String path);
 
         void onConnectionStatusReceived(boolean isConnected);
+
+        /**
+         * Called after every heart rate sample or batch with the statistics of the last
+         * minute of the watch that sent it.
+         */
+        void onHeartRateStatsReceived(double mean, double stdDev, int min, int max);
+
+        /**
+         * Called after every step sample or batch with the steps per minute of the last minute
+         * of the watch that sent it.
+         */
+        void onCadenceReceived(double stepsPerMinute);
+
+        /**
+         * Called when a heart rate alert is raised or cleared.
+         *
+         * @param kind one of the {@code StreamAnalytics.ALERT_} constants
+         */
+        void onHeartRateAlertReceived(int kind, int value, boolean isActive);
     }
 
     public void registerReceiver(MessageReceiver receiver) {
         this.messageReceiver = receiver;
     }
 
+    /**
+     * Sets the heart rates outside of which {@link MessageReceiver#onHeartRateAlertReceived}
+     * raises an alert.
+     */
+    public void setHeartRateLimits(final int lowLimit, final int highLimit) {
+        mInboundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHeartRateLowLimit = lowLimit;
+                mHeartRateHighLimit = highLimit;
+                synchronized (mAnalytics) {
+                    for (StreamAnalytics analytics : mAnalytics.values()) {
+                        analytics.setHeartRateLimits(lowLimit, highLimit);
+                    }
+                }
+            }
+        });
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
     public class LocalBinder extends Binder {
@@ -194,20 +550,38 @@ public class SamsungAccessoryService extends Service {
     }
 
     public void handleMessage(Message msg) {
+        long startedAt = System.nanoTime();
+        dispatchMessage(msg);
+        sMetrics.record(STAGE_HANDLE, Metrics.TYPE_UNKNOWN, System.nanoTime() - startedAt);
+    }
+
+    private void dispatchMessage(Message msg) {
         switch (msg.what) {
             case MSG_TO_SAMSUNGACCESSORYSERVICE:
                 Utility.logDebug(TAG, "MSG_TO_SAMSUNGACCESSORYSERVICE");
-                if (messageReceiver != null) {
-                    parseMessage(msg);
-                }
+                /* records still in the ring were sent before this message */
+                drainSharedRing();
+                parseMessage(msg);
+                break;
+            case MSG_SAMPLE_BATCH_TO_SAMSUNGACCESSORYSERVICE:
+                Utility.logDebug(TAG, "MSG_SAMPLE_BATCH_TO_SAMSUNGACCESSORYSERVICE");
+                drainSharedRing();
+                parseSampleBatch(msg);
+                break;
+            case MSG_SHARED_RING_TO_SAMSUNGACCESSORYSERVICE:
+                Utility.logDebug(TAG, "MSG_SHARED_RING_TO_SAMSUNGACCESSORYSERVICE");
+                attachSharedRing(msg);
+                break;
+            case MSG_RING_DOORBELL_TO_SAMSUNGACCESSORYSERVICE:
+                drainSharedRing();
                 break;
             case MSG_REGISTER_CLIENT:
                 Utility.logDebug(TAG, "MSG_REGISTER_CLIENT");
-                mProviderMessenger = msg.replyTo;
+                setProviderMessenger(msg.replyTo);
                 break;
             case MSG_UNREGISTER_CLIENT:
                 Utility.logDebug(TAG, "MSG_UNREGISTER_CLIENT");
-                mProviderMessenger = null;
+                setProviderMessenger(null);
                 break;
             default:
                 Utility.logError(TAG, "Unsupported message");
@@ -217,57 +591,342 @@ public class SamsungAccessoryService extends Service {
 
     public void parseMessage(Message message) {
         Utility.logDebug(TAG, "parsing Message");
+        long startedAt = System.nanoTime();
         Bundle data = message.getData();
-        String str = data.getString(BUNDLE_DATA);
+        byte[] bytes = data.getByteArray(BUNDLE_FRAME);
+        boolean isDecoded;
+        if (bytes != null) {
+            isDecoded = decodeFrame(bytes, mFrame);
+        } else {
+            isDecoded = decodeJson(data.getString(BUNDLE_DATA), mFrame);
+        }
+        String peerId = data.getString(BUNDLE_PEER_ID);
+        if (isDecoded) {
+            dispatchFrame(mFrame, peerId);
+        }
+        sMetrics.record(STAGE_PARSE, isDecoded ? mFrame.type : Metrics.TYPE_UNKNOWN, peerId,
+                System.nanoTime() - startedAt, bytes != null ? bytes.length : 0);
+    }
+
+    private boolean decodeFrame(byte[] bytes, WireCodec.Frame frame) {
+        if (WireCodec.decode(bytes, frame) == false) {
+            Utility.logError(TAG, "malformed frame (%d bytes)", bytes.length);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean decodeJson(String str, WireCodec.Frame frame) {
         try {
-            JSONObject jObj = new JSONObject(str);
-            int type = jObj.getInt("type");
-            if (type == TYPE_FILE_PATH) {
-                String fileName = jObj.getString("filename");
-                Utility.logDebug(TAG, "fileName = " + fileName);
-                messageReceiver.setImage(fileName);
+            if (WireCodec.fromJSONObject(new JSONObject(str), frame) == false) {
+                Utility.logError(TAG, "message has no type: %s", str);
+                return false;
             }
-            else if (type == TYPE_CONNECTION_STATUS) {
-                boolean isConnected = jObj.getBoolean("connection");
-                Utility.logDebug(TAG, "isConnected = " + isConnected);
-                messageReceiver.onConnectionStatusReceived(isConnected);
+        } catch (JSONException e) {
+            Utility.logError(TAG, e, "cannot parse message from provider");
+            return false;
+        }
+        return true;
+    }
+
+    private void attachSharedRing(Message message) {
+        closeSharedRing();
+        ParcelFileDescriptor descriptor = message.getData().getParcelable(BUNDLE_RING_FD);
+        if (descriptor == null) {
+            Utility.logError(TAG, "shared ring without descriptor");
+            return;
+        }
+        try {
+            mSharedRing = SharedRingBuffer.openConsumer(descriptor);
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot map shared ring");
+            return;
+        }
+        drainSharedRing();
+    }
+
+    private void drainSharedRing() {
+        if (mSharedRing == null) {
+            return;
+        }
+        try {
+            int count = mSharedRing.drain(mRingReader);
+            Utility.logDebug(TAG, "drained %d records from shared ring", count);
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "shared ring failed, waiting for messenger traffic");
+            closeSharedRing();
+        }
+    }
+
+    private void closeSharedRing() {
+        if (mSharedRing != null) {
+            mSharedRing.close();
+            mSharedRing = null;
+        }
+    }
+
+    public void parseSampleBatch(Message message) {
+        Bundle data = message.getData();
+        dispatchSampleBatch(data.getString(BUNDLE_PEER_ID), data.getInt(BUNDLE_SAMPLE_TYPE, -1),
+                data.getLongArray(BUNDLE_SAMPLE_TIMESTAMPS),
+                data.getIntArray(BUNDLE_SAMPLE_VALUES));
+    }
+
+    /* a SharedRingBuffer.KIND_SAMPLE_BATCH record */
+    private void readSampleBatch(byte[] payload) {
+        if (payload.length < 8) {
+            Utility.logError(TAG, "malformed sample batch (%d bytes)", payload.length);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int type = buffer.getInt();
+        int count = buffer.getInt();
+        if (count < 0 || count > (payload.length - 8) / 12) {
+            Utility.logError(TAG, "malformed sample batch (%d bytes)", payload.length);
+            return;
+        }
+        long[] timestamps = new long[count];
+        int[] values = new int[count];
+        buffer.asLongBuffer().get(timestamps);
+        buffer.position(buffer.position() + count * 8);
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        String peerId = null;
+        if (buffer.hasRemaining()) {
+            peerId = new String(payload, buffer.position(), buffer.remaining());
+        }
+        dispatchSampleBatch(peerId, type, timestamps, values);
+    }
+
+    private void dispatchSampleBatch(String peerId, int type, long[] timestamps, int[] values) {
+        if (timestamps == null || values == null || timestamps.length != values.length
+                || values.length == 0) {
+            Utility.logError(TAG, "malformed sample batch");
+            return;
+        }
+        Utility.logDebug(TAG, "sample batch: type (%d), size (%d)", type, values.length);
+        TimeSeriesStore history = getHistory(peerId, type);
+        if (history != null) {
+            history.append(timestamps, values);
+        }
+        analyze(getAnalytics(peerId), type, timestamps, values);
+        MessageReceiver receiver = messageReceiver;
+        if (receiver == null) {
+            return;
+        }
+        long startedAt = System.nanoTime();
+        if (type == TYPE_HEARTBEAT_COUNT) {
+            receiver.onHeartbeatsBatchReceived(timestamps, values);
+        }
+        else if (type == TYPE_STEPS_COUNT) {
+            receiver.onStepsBatchReceived(timestamps, values);
+        }
+        else {
+            Utility.logError(TAG, "unsupported batch type (%d)", type);
+            return;
+        }
+        sMetrics.record(STAGE_CALLBACK, type, System.nanoTime() - startedAt);
+    }
+
+    private void dispatchFrame(WireCodec.Frame frame, String peerId) {
+        TimeSeriesStore history = getHistory(peerId, frame.type);
+        long now = System.currentTimeMillis();
+        if (history != null) {
+            history.append(now, frame.intValue);
+        }
+        if (frame.type == TYPE_HEARTBEAT_COUNT) {
+            StreamAnalytics analytics = getAnalytics(peerId);
+            analytics.addHeartRate(now, frame.intValue);
+            analytics.publishHeartRate();
+        } else if (frame.type == TYPE_STEPS_COUNT) {
+            StreamAnalytics analytics = getAnalytics(peerId);
+            analytics.addSteps(now, frame.intValue);
+            analytics.publishSteps();
+        }
+        if (mRouter.dispatch(frame) == false) {
+            Utility.logError(TAG, "unsupported type (%d), %d unknown so far", frame.type,
+                    mRouter.getUnknownCount());
+        }
+    }
+
+    /**
+     * Feeds a batch to the analytics and reports the result once, after its last sample.
+     */
+    private static void analyze(StreamAnalytics analytics, int type, long[] timestamps,
+            int[] values) {
+        if (type == TYPE_HEARTBEAT_COUNT) {
+            for (int i = 0; i < values.length; i++) {
+                analytics.addHeartRate(timestamps[i], values[i]);
             }
-            else if (type == TYPE_HEARTBEAT_COUNT) {
-                int count = jObj.getInt("heartbeat");
-                Utility.logDebug(TAG, "heartbeat count = " + Integer.toString(count));
-                messageReceiver.onHeartbeatsReceived(count);
+            analytics.publishHeartRate();
+        } else if (type == TYPE_STEPS_COUNT) {
+            for (int i = 0; i < values.length; i++) {
+                analytics.addSteps(timestamps[i], values[i]);
             }
-            else if (type == TYPE_STEPS_COUNT) {
-                int count = jObj.getInt("steps");
-                Utility.logDebug(TAG, "steps count = " + Integer.toString(count));
-                messageReceiver.onStepsReceived(count);
+            analytics.publishSteps();
+        }
+    }
+
+    private StreamAnalytics getAnalytics(String peerId) {
+        String key = peerId != null ? peerId : UNKNOWN_PEER;
+        synchronized (mAnalytics) {
+            StreamAnalytics analytics = mAnalytics.get(key);
+            if (analytics == null) {
+                analytics = new StreamAnalytics(ANALYTICS_WINDOW_MS, ANALYTICS_CAPACITY,
+                        mHeartRateLowLimit, mHeartRateHighLimit, mAnalyticsListener);
+                mAnalytics.put(key, analytics);
             }
-            else if (type == TYPE_TEXT) {
-                String text = jObj.getString("text");
-                Utility.logDebug(TAG, "text = " + text);
-                messageReceiver.onMessageReceived(text);
+            return analytics;
+        }
+    }
+
+    /**
+     * Handler of one message type that is skipped while no receiver is registered.
+     */
+    private abstract class ReceiverHandler implements MessageRouter.FrameHandler {
+        @Override
+        public void onFrame(WireCodec.Frame frame) {
+            MessageReceiver receiver = messageReceiver;
+            if (receiver != null) {
+                onFrame(receiver, frame);
             }
-            else if (type == TYPE_DEVICEMODEL) {
-            	String text = jObj.getString("text");
-            	Utility.logDebug(TAG, "device model = " + text);
-            	messageReceiver.onDeviceModelReceived(text);            	
+        }
+
+        abstract void onFrame(MessageReceiver receiver, WireCodec.Frame frame);
+    }
+
+    /*
+     * Counters and texts only store a value for the next display frame, so they run inline on
+     * the inbound thread. Connection status changes views directly and is the one hop to the
+     * main thread. Image loading touches the file system and gets its own thread, which also
+     * keeps a thumbnail ahead of its image.
+     */
+    private void registerHandlers() {
+        mRouter.register(TYPE_THUMBNAIL_PATH, MessageRouter.EXECUTOR_SERIAL,
+                new ReceiverHandler() {
+                    @Override
+                    void onFrame(MessageReceiver receiver, WireCodec.Frame frame) {
+                        Utility.logDebug(TAG, "thumbnail = %s", frame.text);
+                        receiver.setThumbnail(frame.text);
+                    }
+                });
+        mRouter.register(TYPE_FILE_PATH, MessageRouter.EXECUTOR_SERIAL, new ReceiverHandler() {
+            @Override
+            void onFrame(MessageReceiver receiver, WireCodec.Frame frame) {
+                Utility.logDebug(TAG, "fileName = %s", frame.text);
+                receiver.setImage(frame.text);
+            }
+        });
+        mRouter.register(TYPE_CONNECTION_STATUS, MessageRouter.EXECUTOR_MAIN,
+                new ReceiverHandler() {
+                    @Override
+                    void onFrame(MessageReceiver receiver, WireCodec.Frame frame) {
+                        Utility.logDebug(TAG, "isConnected = %b", frame.boolValue);
+                        receiver.onConnectionStatusReceived(frame.boolValue);
+                    }
+                });
+        mRouter.register(TYPE_HEARTBEAT_COUNT, MessageRouter.EXECUTOR_INLINE,
+                new ReceiverHandler() {
+                    @Override
+                    void onFrame(MessageReceiver receiver, WireCodec.Frame frame) {
+                        Utility.logDebug(TAG, "heartbeat count = %d", frame.intValue);
+                        receiver.onHeartbeatsReceived(frame.intValue);
+                    }
+                });
+        mRouter.register(TYPE_STEPS_COUNT, MessageRouter.EXECUTOR_INLINE, new ReceiverHandler() {
+            @Override
+            void onFrame(MessageReceiver receiver, WireCodec.Frame frame) {
+                Utility.logDebug(TAG, "steps count = %d", frame.intValue);
+                receiver.onStepsReceived(frame.intValue);
+            }
+        });
+        mRouter.register(TYPE_TEXT, MessageRouter.EXECUTOR_INLINE, new ReceiverHandler() {
+            @Override
+            void onFrame(MessageReceiver receiver, WireCodec.Frame frame) {
+                Utility.logDebug(TAG, "text = %s", frame.text);
+                receiver.onMessageReceived(frame.text);
+                recordLoadLatency(frame.text);
             }
-            else {
-                Utility.logError(TAG, "unsupported type (" + type + ")");
+        });
+        mRouter.register(TYPE_DEVICEMODEL, MessageRouter.EXECUTOR_INLINE, new ReceiverHandler() {
+            @Override
+            void onFrame(MessageReceiver receiver, WireCodec.Frame frame) {
+                Utility.logDebug(TAG, "device model = %s", frame.text);
+                receiver.onDeviceModelReceived(frame.text);
             }
+        });
+    }
 
-        } catch (JSONException e) {
-            Utility.logError(TAG, "", e);
+    /**
+     * Texts sent by the load generator of the provider end with the
+     * {@link SystemClock#elapsedRealtimeNanos} they were generated at, which is the same clock
+     * in both processes. Records how long such a text took to reach the message receiver.
+     */
+    private static void recordLoadLatency(String text) {
+        if (text == null || text.startsWith(LOAD_PEER_PREFIX) == false) {
+            return;
+        }
+        int marker = text.lastIndexOf(LOAD_SENT_AT_MARKER);
+        if (marker < 0) {
+            return;
+        }
+        try {
+            long sentAt = Long.parseLong(text.substring(marker + LOAD_SENT_AT_MARKER.length()));
+            sMetrics.record(STAGE_LOAD, TYPE_TEXT, SystemClock.elapsedRealtimeNanos() - sentAt);
+        } catch (NumberFormatException e) {
+            Utility.logDebug(TAG, "text without load timestamp: %s", text);
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        sMetrics.dump(writer);
+        writer.println("Unknown message types: " + mRouter.getUnknownCount());
+        mLoopers.dump(writer);
+        synchronized (mAnalytics) {
+            for (Map.Entry<String, StreamAnalytics> entry : mAnalytics.entrySet()) {
+                writer.print(entry.getKey().length() > 0 ? entry.getKey() : "<unknown peer>");
+                writer.print(": ");
+                entry.getValue().dump(writer);
+            }
+        }
+        LogRing logRing = Utility.getLogRing();
+        if (logRing != null && Arrays.asList(args).contains("--log-ring")) {
+            writeLogRing(writer, logRing);
+        } else if (logRing != null) {
+            writer.println("Recent log:");
+            logRing.dump(writer);
+        }
+    }
+
+    private void writeLogRing(PrintWriter writer, LogRing logRing) {
+        File file = new File(getCacheDir(), LOG_RING_FILE_NAME);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                writer.println("Wrote " + logRing.writeTo(out) + " log records to " + file);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            writer.println("Cannot write " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Returns a copy of the stage metrics of this process, for tests and diagnostics.
+     */
+    public Metrics.Snapshot getMetricsSnapshot() {
+        return sMetrics.snapshot();
+    }
+
     private JSONObject createTextJSONObject(String str) {
         JSONObject jObj = new JSONObject();
         try {
             jObj.put("type", TYPE_TEXT);
             jObj.put("text", str);
         } catch (JSONException e) {
-            Utility.logError(TAG, "Unable to create Text Json Object", e);
+            Utility.logError(TAG, e, "Unable to create Text Json Object");
         }
         return jObj;
     }
@@ -277,7 +936,7 @@ public class SamsungAccessoryService extends Service {
         try {
             jObj.put("type", TYPE_DEVICEMODEL);
         } catch (JSONException e) {
-            Utility.logError(TAG, "Unable to create device model Json Object", e);
+            Utility.logError(TAG, e, "Unable to create device model Json Object");
         }
         return jObj;
     }
@@ -287,7 +946,7 @@ public class SamsungAccessoryService extends Service {
         try {
             jObj.put("type", TYPE_RESET);
         } catch (JSONException e) {
-            Utility.logError(TAG, "Unable to create reset JSON object", e);
+            Utility.logError(TAG, e, "Unable to create reset JSON object");
         }
         return jObj;
     }
@@ -322,7 +981,28 @@ public class SamsungAccessoryService extends Service {
         sendToProviderService(providerMsg);
     }
 
-    private boolean sendToProviderService(Message message) {
+    private void setProviderMessenger(final Messenger messenger) {
+        mOutboundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mProviderMessenger = messenger;
+            }
+        });
+    }
+
+    /**
+     * Sends {@code message} on the outbound thread.
+     */
+    private void sendToProviderService(final Message message) {
+        mOutboundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliverToProviderService(message);
+            }
+        });
+    }
+
+    private boolean deliverToProviderService(Message message) {
         if (mProviderMessenger == null) {
             Utility.logError(TAG, "mProviderMessenger is null, return false");
             return false;
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessory.backend;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Single-producer/single-consumer ring of records in a memory-mapped file shared by the provider
+ * and the linked app.
+ * <p>
+ * The provider creates the file and maps it read-write. The linked app receives a file
+ * descriptor, maps it read-only and publishes its read position with positional writes.
+ * Each record is a 4-byte length, a kind byte and the payload. The consumer raises the waiting
+ * flag after it has drained the ring; the producer clears it and asks for a doorbell message
+ * when it publishes into a drained ring, so a busy stream costs no binder call per record.
+ * <p>
+ * The Java memory model says nothing about ordering between processes. Head and tail are
+ * published with a volatile access next to the plain accesses to the mapping, and this relies on
+ * how Dalvik and ART implement volatile on ARM and x86: a volatile store or load is a hardware
+ * barrier ({@code dmb} on ARM, a locked instruction on x86) that orders every memory access of
+ * the CPU, the shared pages included. A runtime that elided or weakened those barriers would
+ * break the ring; {@code VarHandle.fullFence()} is the documented primitive once the minimum
+ * API level allows it.
+ */
+public class SharedRingBuffer {
+    public static final byte KIND_JSON = 0;
+    public static final byte KIND_FRAME = 1;
+    /**
+     * A sample type, a count, that many timestamps and values, all big-endian, then the peer
+     * id in UTF-8 up to the end, if there is one.
+     */
+    public static final byte KIND_SAMPLE_BATCH = 2;
+    /** The kind of a wrapped record, its peer id as a 16-bit length and UTF-8, its payload. */
+    public static final byte KIND_PEER_MESSAGE = 3;
+
+    public static final int OFFER_FULL = 0;
+    public static final int OFFER_QUEUED = 1;
+    public static final int OFFER_QUEUED_WAKE = 2;
+
+    public interface Reader {
+        void onRecord(byte kind, byte[] payload);
+    }
+
+    private static final int MAGIC = 0x52494E47;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 16;
+    private static final int WAITING_OFFSET = 24;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_HEADER_SIZE = 5;
+
+    private final File mFile;
+    private final ParcelFileDescriptor mDescriptor;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final FileChannel mTailChannel;
+    private final ByteBuffer mTailScratch = ByteBuffer.allocate(12);
+    private volatile int mFence;
+    private long mHead;
+    private long mTail;
+
+    private SharedRingBuffer(File file, ParcelFileDescriptor descriptor, MappedByteBuffer buffer,
+            FileChannel tailChannel) {
+        mFile = file;
+        mDescriptor = descriptor;
+        mBuffer = buffer;
+        mCapacity = buffer.getInt(CAPACITY_OFFSET);
+        mTailChannel = tailChannel;
+        mHead = buffer.getLong(HEAD_OFFSET);
+        mTail = buffer.getLong(TAIL_OFFSET);
+    }
+
+    /**
+     * Creates an empty ring in {@code file}, replacing whatever was there.
+     */
+    public static SharedRingBuffer createProducer(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            raf.setLength(HEADER_SIZE + capacity);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + capacity);
+        } finally {
+            raf.close();
+        }
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putLong(HEAD_OFFSET, 0);
+        buffer.putLong(TAIL_OFFSET, 0);
+        buffer.putInt(WAITING_OFFSET, 1);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        return new SharedRingBuffer(file, null, buffer, null);
+    }
+
+    /**
+     * Maps a ring handed over by the producer. The ring owns {@code descriptor} from now on.
+     */
+    public static SharedRingBuffer openConsumer(ParcelFileDescriptor descriptor)
+            throws IOException {
+        FileDescriptor fd = descriptor.getFileDescriptor();
+        FileChannel readChannel = new FileInputStream(fd).getChannel();
+        MappedByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                readChannel.size());
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            descriptor.close();
+            throw new IOException("not a shared ring");
+        }
+        return new SharedRingBuffer(null, descriptor, buffer,
+                new FileOutputStream(fd).getChannel());
+    }
+
+    /**
+     * Opens a new descriptor on the ring file so it can be sent to the consumer.
+     */
+    public ParcelFileDescriptor openForConsumer() throws FileNotFoundException {
+        return ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_WRITE);
+    }
+
+    /**
+     * Appends a record. Producer side only.
+     *
+     * @return {@link #OFFER_FULL} if there is no room, {@link #OFFER_QUEUED_WAKE} if the
+     *         consumer is idle and needs a doorbell, {@link #OFFER_QUEUED} otherwise
+     */
+    public synchronized int offer(byte kind, byte[] payload) {
+        long tail = mBuffer.getLong(TAIL_OFFSET);
+        readFence();
+        int length = payload.length;
+        if (RECORD_HEADER_SIZE + (long) length > mCapacity - (mHead - tail)) {
+            return OFFER_FULL;
+        }
+        long pos = mHead;
+        putWrapped(pos++, (byte) (length >>> 24));
+        putWrapped(pos++, (byte) (length >>> 16));
+        putWrapped(pos++, (byte) (length >>> 8));
+        putWrapped(pos++, (byte) length);
+        putWrapped(pos++, kind);
+        int offset = (int) (pos % mCapacity);
+        int first = Math.min(length, mCapacity - offset);
+        mBuffer.position(HEADER_SIZE + offset);
+        mBuffer.put(payload, 0, first);
+        if (first < length) {
+            mBuffer.position(HEADER_SIZE);
+            mBuffer.put(payload, first, length - first);
+        }
+        mHead = pos + length;
+        writeFence();
+        mBuffer.putLong(HEAD_OFFSET, mHead);
+        fullFence();
+        if (mBuffer.getInt(WAITING_OFFSET) != 0) {
+            mBuffer.putInt(WAITING_OFFSET, 0);
+            return OFFER_QUEUED_WAKE;
+        }
+        return OFFER_QUEUED;
+    }
+
+    /**
+     * Reads every published record, then marks the consumer as waiting. Consumer side only.
+     *
+     * @return the number of records read
+     */
+    public int drain(Reader reader) throws IOException {
+        int count = 0;
+        while (true) {
+            long head = mBuffer.getLong(HEAD_OFFSET);
+            readFence();
+            while (mTail < head) {
+                long pos = mTail;
+                int length = (getWrapped(pos) & 0xFF) << 24 | (getWrapped(pos + 1) & 0xFF) << 16
+                        | (getWrapped(pos + 2) & 0xFF) << 8 | (getWrapped(pos + 3) & 0xFF);
+                byte kind = getWrapped(pos + 4);
+                pos += RECORD_HEADER_SIZE;
+                byte[] payload = new byte[length];
+                int offset = (int) (pos % mCapacity);
+                int first = Math.min(length, mCapacity - offset);
+                mBuffer.position(HEADER_SIZE + offset);
+                mBuffer.get(payload, 0, first);
+                if (first < length) {
+                    mBuffer.position(HEADER_SIZE);
+                    mBuffer.get(payload, first, length - first);
+                }
+                mTail = pos + length;
+                reader.onRecord(kind, payload);
+                count++;
+            }
+            mTailScratch.clear();
+            mTailScratch.putLong(mTail);
+            mTailScratch.putInt(1);
+            mTailScratch.flip();
+            mTailChannel.write(mTailScratch, TAIL_OFFSET);
+            fullFence();
+            if (mBuffer.getLong(HEAD_OFFSET) == mTail) {
+                return count;
+            }
+        }
+    }
+
+    public void close() {
+        if (mDescriptor != null) {
+            try {
+                mDescriptor.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+
+    private void putWrapped(long pos, byte value) {
+        mBuffer.put(HEADER_SIZE + (int) (pos % mCapacity), value);
+    }
+
+    private byte getWrapped(long pos) {
+        return mBuffer.get(HEADER_SIZE + (int) (pos % mCapacity));
+    }
+
+    /*
+     * Release and acquire for the other process: see the class comment for why a volatile access
+     * orders the plain accesses to the mapped region around it.
+     */
+    private void writeFence() {
+        mFence = 0;
+    }
+
+    private void readFence() {
+        if (mFence != 0) {
+            mFence = 0;
+        }
+    }
+
+    /*
+     * Publishing the position and then checking the other side's state must not be reordered,
+     * or a doorbell could be lost.
+     */
+    private void fullFence() {
+        mFence = 0;
+        readFence();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessory.backend;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Derives heart rate statistics, walking cadence and alerts from the samples as they arrive,
+ * instead of from the stored history.
+ * <p>
+ * Every series is kept in a {@link SampleWindow}: a ring of primitive timestamps and values
+ * that covers the last {@code windowMs}, with running sums for the mean and variance and
+ * monotonic queues for the minimum and maximum. Adding a sample is O(1) amortized and
+ * allocates nothing. Step samples are the watch's running total, so cadence is the rise of the
+ * total over the window; a total that goes down was reset and starts a new window.
+ * <p>
+ * Heart rate alerts are raised when the rate leaves the configured limits and cleared once it
+ * is back inside them by {@link #LIMIT_HYSTERESIS}. An anomaly is a sample more than
+ * {@link #ANOMALY_Z_SCORE} standard deviations away from the mean of the window before it.
+ * The listener hears about alerts only when they are raised or cleared.
+ * <p>
+ * Not thread safe; the service feeds it from its message thread.
+ */
+public class StreamAnalytics {
+    public static final int ALERT_HEART_RATE_HIGH = 0;
+    public static final int ALERT_HEART_RATE_LOW = 1;
+    public static final int ALERT_HEART_RATE_ANOMALY = 2;
+    private static final int ALERT_COUNT = 3;
+
+    static final int LIMIT_HYSTERESIS = 5;
+    static final double ANOMALY_Z_SCORE = 3.0;
+    /* fewer samples give a standard deviation too noisy to judge by */
+    private static final int ANOMALY_MIN_SAMPLES = 10;
+    private static final long MS_PER_MINUTE = 60 * 1000L;
+
+    public interface Listener {
+        void onHeartRateStats(double mean, double stdDev, int min, int max);
+
+        void onCadence(double stepsPerMinute);
+
+        /**
+         * @param isActive true when the alert is raised, false when it is cleared
+         */
+        void onHeartRateAlert(int kind, int value, boolean isActive);
+    }
+
+    /**
+     * Samples of the last {@code windowMs}, at most {@code capacity} of them.
+     */
+    static class SampleWindow {
+        private final long mWindowMs;
+        private final int mCapacity;
+        private final long[] mTimestamps;
+        private final int[] mValues;
+        /* sequence numbers of the samples that can still be the minimum or maximum */
+        private final long[] mMinQueue;
+        private final long[] mMaxQueue;
+        private long mFirst = 0;
+        private long mNext = 0;
+        private long mMinHead = 0;
+        private long mMinTail = 0;
+        private long mMaxHead = 0;
+        private long mMaxTail = 0;
+        private long mSum = 0;
+        private long mSumOfSquares = 0;
+
+        SampleWindow(long windowMs, int capacity) {
+            mWindowMs = windowMs;
+            mCapacity = capacity;
+            mTimestamps = new long[capacity];
+            mValues = new int[capacity];
+            mMinQueue = new long[capacity];
+            mMaxQueue = new long[capacity];
+        }
+
+        void add(long timestamp, int value) {
+            if (mNext > mFirst && timestamp < getLastTimestamp()) {
+                /* batches are stamped by the provider, single frames by this process */
+                timestamp = getLastTimestamp();
+            }
+            while (mNext > mFirst && (mNext - mFirst == mCapacity
+                    || timestamp - mTimestamps[index(mFirst)] > mWindowMs)) {
+                removeFirst();
+            }
+            int index = index(mNext);
+            mTimestamps[index] = timestamp;
+            mValues[index] = value;
+            mSum += value;
+            mSumOfSquares += (long) value * value;
+            while (mMinTail > mMinHead && mValues[index(mMinQueue[index(mMinTail - 1)])] >= value) {
+                mMinTail--;
+            }
+            mMinQueue[index(mMinTail++)] = mNext;
+            while (mMaxTail > mMaxHead && mValues[index(mMaxQueue[index(mMaxTail - 1)])] <= value) {
+                mMaxTail--;
+            }
+            mMaxQueue[index(mMaxTail++)] = mNext;
+            mNext++;
+        }
+
+        void clear() {
+            mFirst = mNext;
+            mMinHead = mMinTail;
+            mMaxHead = mMaxTail;
+            mSum = 0;
+            mSumOfSquares = 0;
+        }
+
+        int size() {
+            return (int) (mNext - mFirst);
+        }
+
+        double getMean() {
+            return size() == 0 ? 0 : (double) mSum / size();
+        }
+
+        /**
+         * @return the population standard deviation
+         */
+        double getStdDev() {
+            int size = size();
+            if (size == 0) {
+                return 0;
+            }
+            double mean = (double) mSum / size;
+            return Math.sqrt(Math.max(0, (double) mSumOfSquares / size - mean * mean));
+        }
+
+        int getMin() {
+            return size() == 0 ? 0 : mValues[index(mMinQueue[index(mMinHead)])];
+        }
+
+        int getMax() {
+            return size() == 0 ? 0 : mValues[index(mMaxQueue[index(mMaxHead)])];
+        }
+
+        int getFirstValue() {
+            return mValues[index(mFirst)];
+        }
+
+        int getLastValue() {
+            return mValues[index(mNext - 1)];
+        }
+
+        long getFirstTimestamp() {
+            return mTimestamps[index(mFirst)];
+        }
+
+        long getLastTimestamp() {
+            return mTimestamps[index(mNext - 1)];
+        }
+
+        private void removeFirst() {
+            int value = mValues[index(mFirst)];
+            mSum -= value;
+            mSumOfSquares -= (long) value * value;
+            if (mMinQueue[index(mMinHead)] == mFirst) {
+                mMinHead++;
+            }
+            if (mMaxQueue[index(mMaxHead)] == mFirst) {
+                mMaxHead++;
+            }
+            mFirst++;
+        }
+
+        private int index(long sequence) {
+            return (int) (sequence % mCapacity);
+        }
+    }
+
+    private final Listener mListener;
+    private final SampleWindow mHeartRate;
+    private final SampleWindow mSteps;
+    private final boolean[] mIsAlertActive = new boolean[ALERT_COUNT];
+    private final long[] mAlertCounts = new long[ALERT_COUNT];
+    private int mLowLimit;
+    private int mHighLimit;
+    private double mCadence = 0;
+
+    /**
+     * @param capacity most samples kept per series, which bounds the window at high rates
+     */
+    public StreamAnalytics(long windowMs, int capacity, int lowLimit, int highLimit,
+            Listener listener) {
+        mHeartRate = new SampleWindow(windowMs, capacity);
+        mSteps = new SampleWindow(windowMs, capacity);
+        mLowLimit = lowLimit;
+        mHighLimit = highLimit;
+        mListener = listener;
+    }
+
+    public void setHeartRateLimits(int lowLimit, int highLimit) {
+        mLowLimit = lowLimit;
+        mHighLimit = highLimit;
+    }
+
+    /**
+     * Adds a heart rate sample and reports the alerts it raises or clears. Statistics are
+     * reported by {@link #publishHeartRate}, so a batch can be reported once.
+     */
+    public void addHeartRate(long timestamp, int value) {
+        boolean isAnomaly = false;
+        if (mHeartRate.size() >= ANOMALY_MIN_SAMPLES) {
+            double stdDev = mHeartRate.getStdDev();
+            isAnomaly = stdDev > 0
+                    && Math.abs(value - mHeartRate.getMean()) > ANOMALY_Z_SCORE * stdDev;
+        }
+        mHeartRate.add(timestamp, value);
+        setAlert(ALERT_HEART_RATE_ANOMALY, value, isAnomaly);
+        setAlert(ALERT_HEART_RATE_HIGH, value, value > mHighLimit
+                || (mIsAlertActive[ALERT_HEART_RATE_HIGH]
+                        && value > mHighLimit - LIMIT_HYSTERESIS));
+        setAlert(ALERT_HEART_RATE_LOW, value, value < mLowLimit
+                || (mIsAlertActive[ALERT_HEART_RATE_LOW]
+                        && value < mLowLimit + LIMIT_HYSTERESIS));
+    }
+
+    public void publishHeartRate() {
+        if (mHeartRate.size() > 0) {
+            mListener.onHeartRateStats(mHeartRate.getMean(), mHeartRate.getStdDev(),
+                    mHeartRate.getMin(), mHeartRate.getMax());
+        }
+    }
+
+    /**
+     * Adds a step total. Cadence is reported by {@link #publishSteps}.
+     */
+    public void addSteps(long timestamp, int total) {
+        if (mSteps.size() > 0 && total < mSteps.getLastValue()) {
+            mSteps.clear();
+        }
+        mSteps.add(timestamp, total);
+        long elapsedMs = mSteps.getLastTimestamp() - mSteps.getFirstTimestamp();
+        if (mSteps.size() < 2 || elapsedMs <= 0) {
+            mCadence = 0;
+        } else {
+            mCadence = (double) (mSteps.getLastValue() - mSteps.getFirstValue()) * MS_PER_MINUTE
+                    / elapsedMs;
+        }
+    }
+
+    public void publishSteps() {
+        if (mSteps.size() > 0) {
+            mListener.onCadence(mCadence);
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println(String.format(Locale.US,
+                "Analytics: heart rate n=%d mean=%.1f sd=%.1f min=%d max=%d,"
+                        + " cadence=%.1f/min, alerts high=%d low=%d anomaly=%d", mHeartRate.size(),
+                mHeartRate.getMean(), mHeartRate.getStdDev(), mHeartRate.getMin(),
+                mHeartRate.getMax(), mCadence, mAlertCounts[ALERT_HEART_RATE_HIGH],
+                mAlertCounts[ALERT_HEART_RATE_LOW], mAlertCounts[ALERT_HEART_RATE_ANOMALY]));
+    }
+
+    private void setAlert(int kind, int value, boolean isActive) {
+        if (mIsAlertActive[kind] == isActive) {
+            return;
+        }
+        mIsAlertActive[kind] = isActive;
+        if (isActive) {
+            mAlertCounts[kind]++;
+        }
+        mListener.onHeartRateAlert(kind, value, isActive);
+    }
+}
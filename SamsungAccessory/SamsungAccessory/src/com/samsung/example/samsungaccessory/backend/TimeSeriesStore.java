@@ -0,0 +1,570 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessory.backend;
+
+import com.samsung.example.samsungaccessory.utils.Utility;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only history of one sample series (timestamp and int value) in a directory.
+ * <p>
+ * New samples go to a memory-mapped tail of fixed-width records. Every record carries a
+ * checksum that includes the tail generation, so after a crash the tail is recovered by reading
+ * records until the first one that does not check out. A full tail is sealed into a compressed
+ * segment (delta-of-delta timestamps and delta values as zigzag varints) and the generation is
+ * bumped, which invalidates the old records without rewriting them.
+ * <p>
+ * Minute, hour and day rollups (count, sum, min, max) are kept in fixed-width files next to the
+ * segments and are written when a bucket closes and before every seal. Raw segments older than
+ * the retention are deleted; rollups are kept.
+ */
+public class TimeSeriesStore {
+    private static final String TAG = TimeSeriesStore.class.getSimpleName();
+
+    public static final int ROLLUP_MINUTE = 0;
+    public static final int ROLLUP_HOUR = 1;
+    public static final int ROLLUP_DAY = 2;
+
+    public interface SampleVisitor {
+        void onSample(long timestamp, int value);
+    }
+
+    public interface BucketVisitor {
+        void onBucket(long start, int count, long sum, int min, int max);
+    }
+
+    private static final long[] ROLLUP_WIDTHS_MS = {
+            60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L
+    };
+    private static final String[] ROLLUP_FILE_NAMES = {
+            "minute.dat", "hour.dat", "day.dat"
+    };
+
+    private static final String TAIL_FILE_NAME = "tail.dat";
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int TAIL_MAGIC = 0x54535441;
+    private static final int TAIL_MAGIC_OFFSET = 0;
+    private static final int TAIL_GENERATION_OFFSET = 4;
+    private static final int TAIL_HEADER_SIZE = 16;
+    private static final int TAIL_RECORD_SIZE = 16;
+
+    private static final int SEGMENT_MAGIC = 0x54535347;
+    private static final int SEGMENT_HEADER_SIZE = 24;
+
+    private static final int ROLLUP_RECORD_SIZE = 36;
+    private static final int MAX_VARLONG_SIZE = 10;
+
+    private final File mDirectory;
+    private final int mTailCapacity;
+    private final long mRetentionMs;
+    private final Rollup[] mRollups = new Rollup[ROLLUP_WIDTHS_MS.length];
+    private MappedByteBuffer mTail;
+    private int mGeneration;
+    private int mTailCount = 0;
+    private long mLastTimestamp = 0;
+
+    /* first timestamps of the sealed segments, ascending */
+    private long[] mSegments = new long[16];
+    private int mSegmentCount = 0;
+
+    private static class Rollup {
+        final long width;
+        final FileChannel channel;
+        final ByteBuffer scratch = ByteBuffer.allocate(ROLLUP_RECORD_SIZE);
+        long recordCount;
+        boolean hasOpen = false;
+        long openSlot;
+        long start;
+        int count;
+        long sum;
+        int min;
+        int max;
+        /* timestamp of the last sample counted, used to skip replayed samples */
+        long coveredTimestamp = Long.MIN_VALUE;
+
+        Rollup(long width, File file) throws IOException {
+            this.width = width;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            recordCount = channel.size() / ROLLUP_RECORD_SIZE;
+            if (recordCount > 0) {
+                /* the last bucket may still be filling up */
+                read(recordCount - 1);
+                hasOpen = true;
+                openSlot = recordCount - 1;
+                start = scratch.getLong(0);
+                count = scratch.getInt(8);
+                sum = scratch.getLong(12);
+                min = scratch.getInt(20);
+                max = scratch.getInt(24);
+                coveredTimestamp = scratch.getLong(28);
+            }
+        }
+
+        void add(long timestamp, int value) throws IOException {
+            long bucket = timestamp - timestamp % width;
+            if (hasOpen && bucket != start) {
+                write(openSlot);
+                hasOpen = false;
+            }
+            if (hasOpen == false) {
+                hasOpen = true;
+                openSlot = recordCount++;
+                start = bucket;
+                count = 0;
+                sum = 0;
+                min = Integer.MAX_VALUE;
+                max = Integer.MIN_VALUE;
+            }
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            coveredTimestamp = timestamp;
+        }
+
+        void flush() throws IOException {
+            if (hasOpen) {
+                write(openSlot);
+            }
+            channel.force(false);
+        }
+
+        void query(long from, long to, BucketVisitor visitor) throws IOException {
+            /* first bucket that ends after from */
+            long low = 0;
+            long high = recordCount;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (getStart(mid) + width <= from) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (long slot = low; slot < recordCount; slot++) {
+                if (hasOpen && slot == openSlot) {
+                    if (start > to) {
+                        return;
+                    }
+                    visitor.onBucket(start, count, sum, min, max);
+                    continue;
+                }
+                read(slot);
+                long bucketStart = scratch.getLong(0);
+                if (bucketStart > to) {
+                    return;
+                }
+                visitor.onBucket(bucketStart, scratch.getInt(8), scratch.getLong(12),
+                        scratch.getInt(20), scratch.getInt(24));
+            }
+        }
+
+        private long getStart(long slot) throws IOException {
+            if (hasOpen && slot == openSlot) {
+                return start;
+            }
+            read(slot);
+            return scratch.getLong(0);
+        }
+
+        private void read(long slot) throws IOException {
+            scratch.clear();
+            long position = slot * ROLLUP_RECORD_SIZE;
+            while (scratch.hasRemaining()) {
+                if (channel.read(scratch, position + scratch.position()) < 0) {
+                    throw new IOException("truncated rollup");
+                }
+            }
+        }
+
+        private void write(long slot) throws IOException {
+            scratch.clear();
+            scratch.putLong(start).putInt(count).putLong(sum).putInt(min).putInt(max)
+                    .putLong(coveredTimestamp);
+            scratch.flip();
+            long position = slot * ROLLUP_RECORD_SIZE;
+            while (scratch.hasRemaining()) {
+                channel.write(scratch, position + scratch.position());
+            }
+        }
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it if needed, and recovers the tail.
+     *
+     * @param tailCapacity samples per sealed segment
+     * @param retentionMs how long raw samples are kept; rollups are kept for good
+     */
+    public TimeSeriesStore(File directory, int tailCapacity, long retentionMs)
+            throws IOException {
+        mDirectory = directory;
+        mTailCapacity = tailCapacity;
+        mRetentionMs = retentionMs;
+        if (directory.isDirectory() == false && directory.mkdirs() == false) {
+            throw new IOException("cannot create " + directory.getPath());
+        }
+        for (int i = 0; i < mRollups.length; i++) {
+            mRollups[i] = new Rollup(ROLLUP_WIDTHS_MS[i], new File(directory,
+                    ROLLUP_FILE_NAMES[i]));
+        }
+        loadSegments();
+        mTail = mapTail(new File(directory, TAIL_FILE_NAME),
+                TAIL_HEADER_SIZE + tailCapacity * TAIL_RECORD_SIZE);
+        recoverTail();
+    }
+
+    public synchronized void append(long timestamp, int value) {
+        if (mTail == null) {
+            return;
+        }
+        /* keep the series ordered, a sample from a skewed clock lands on the last timestamp */
+        if (timestamp < mLastTimestamp) {
+            timestamp = mLastTimestamp;
+        }
+        int offset = TAIL_HEADER_SIZE + mTailCount * TAIL_RECORD_SIZE;
+        mTail.putLong(offset, timestamp);
+        mTail.putInt(offset + 8, value);
+        mTail.putInt(offset + 12, checksum(timestamp, value, mGeneration));
+        mTailCount++;
+        mLastTimestamp = timestamp;
+        try {
+            for (Rollup rollup : mRollups) {
+                rollup.add(timestamp, value);
+            }
+            if (mTailCount == mTailCapacity) {
+                seal();
+            }
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot update history");
+        }
+    }
+
+    public void append(long[] timestamps, int[] values) {
+        for (int i = 0; i < values.length; i++) {
+            append(timestamps[i], values[i]);
+        }
+    }
+
+    /**
+     * Visits the raw samples with {@code from <= timestamp <= to}, oldest first.
+     */
+    public synchronized void query(long from, long to, SampleVisitor visitor) throws IOException {
+        for (int i = 0; i < mSegmentCount; i++) {
+            if (mSegments[i] > to) {
+                break;
+            }
+            if (i + 1 < mSegmentCount && mSegments[i + 1] < from) {
+                continue;
+            }
+            readSegment(getSegmentFile(mSegments[i]), from, to, visitor);
+        }
+        for (int i = 0; i < mTailCount; i++) {
+            int offset = TAIL_HEADER_SIZE + i * TAIL_RECORD_SIZE;
+            long timestamp = mTail.getLong(offset);
+            if (timestamp > to) {
+                break;
+            }
+            if (timestamp >= from) {
+                visitor.onSample(timestamp, mTail.getInt(offset + 8));
+            }
+        }
+    }
+
+    /**
+     * Visits the {@link #ROLLUP_MINUTE}, {@link #ROLLUP_HOUR} or {@link #ROLLUP_DAY} buckets
+     * that overlap {@code [from, to]}, oldest first. Buckets are aligned to UTC.
+     */
+    public synchronized void queryRollup(int level, long from, long to, BucketVisitor visitor)
+            throws IOException {
+        mRollups[level].query(from, to, visitor);
+    }
+
+    /**
+     * Writes the open rollup buckets and releases the files. The tail needs no flushing.
+     */
+    public synchronized void close() {
+        if (mTail == null) {
+            return;
+        }
+        for (Rollup rollup : mRollups) {
+            try {
+                rollup.flush();
+                rollup.channel.close();
+            } catch (IOException e) {
+                Utility.logError(TAG, e, "cannot close rollup");
+            }
+        }
+        mTail = null;
+    }
+
+    private static MappedByteBuffer mapTail(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != size) {
+                /* capacity changed or new file, start over */
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void recoverTail() throws IOException {
+        if (mTail.getInt(TAIL_MAGIC_OFFSET) != TAIL_MAGIC) {
+            mTail.putInt(TAIL_GENERATION_OFFSET, 1);
+            mTail.putInt(TAIL_MAGIC_OFFSET, TAIL_MAGIC);
+        }
+        mGeneration = mTail.getInt(TAIL_GENERATION_OFFSET);
+        int count = 0;
+        long lastTimestamp = 0;
+        while (count < mTailCapacity) {
+            int offset = TAIL_HEADER_SIZE + count * TAIL_RECORD_SIZE;
+            long timestamp = mTail.getLong(offset);
+            int value = mTail.getInt(offset + 8);
+            if (mTail.getInt(offset + 12) != checksum(timestamp, value, mGeneration)
+                    || timestamp < lastTimestamp) {
+                break;
+            }
+            lastTimestamp = timestamp;
+            count++;
+        }
+
+        long lastSealed = getLastSealedTimestamp();
+        if (count > 0 && mSegmentCount > 0
+                && mTail.getLong(TAIL_HEADER_SIZE) == mSegments[mSegmentCount - 1]) {
+            /*
+             * crashed after sealing but before the generation was bumped: segments are named
+             * after their first sample, a new tail may only share the last sealed timestamp
+             */
+            resetTail();
+            count = 0;
+        }
+        mTailCount = count;
+        mLastTimestamp = count > 0 ? lastTimestamp : lastSealed;
+        for (int i = 0; i < count; i++) {
+            int offset = TAIL_HEADER_SIZE + i * TAIL_RECORD_SIZE;
+            long timestamp = mTail.getLong(offset);
+            int value = mTail.getInt(offset + 8);
+            for (Rollup rollup : mRollups) {
+                if (timestamp > rollup.coveredTimestamp) {
+                    rollup.add(timestamp, value);
+                }
+            }
+        }
+        if (count == mTailCapacity) {
+            seal();
+        }
+        Utility.logDebug(TAG, "recovered %d samples in %s", count, mDirectory.getName());
+    }
+
+    private void resetTail() {
+        mGeneration++;
+        if (mGeneration == 0) {
+            mGeneration = 1;
+        }
+        mTail.putInt(TAIL_GENERATION_OFFSET, mGeneration);
+        mTailCount = 0;
+    }
+
+    private void seal() throws IOException {
+        /* rollups first, a crash before the segment is renamed then only repeats replay */
+        for (Rollup rollup : mRollups) {
+            rollup.flush();
+        }
+        int count = mTailCount;
+        long firstTimestamp = mTail.getLong(TAIL_HEADER_SIZE);
+        long lastTimestamp = mTail.getLong(TAIL_HEADER_SIZE + (count - 1) * TAIL_RECORD_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(SEGMENT_HEADER_SIZE + count * 2 * MAX_VARLONG_SIZE);
+        out.putInt(SEGMENT_MAGIC).putInt(count).putLong(firstTimestamp).putLong(lastTimestamp);
+        long previousTimestamp = firstTimestamp;
+        long previousDelta = 0;
+        int previousValue = 0;
+        for (int i = 0; i < count; i++) {
+            int offset = TAIL_HEADER_SIZE + i * TAIL_RECORD_SIZE;
+            long timestamp = mTail.getLong(offset);
+            int value = mTail.getInt(offset + 8);
+            long delta = timestamp - previousTimestamp;
+            putVarLong(out, zigzag(delta - previousDelta));
+            putVarLong(out, zigzag((long) value - previousValue));
+            previousTimestamp = timestamp;
+            previousDelta = delta;
+            previousValue = value;
+        }
+        out.flip();
+
+        File temp = new File(mDirectory, SEGMENT_PREFIX + firstTimestamp + TEMP_SUFFIX);
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            stream.getChannel().write(out);
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (temp.renameTo(getSegmentFile(firstTimestamp)) == false) {
+            temp.delete();
+            throw new IOException("cannot seal segment " + firstTimestamp);
+        }
+        addSegment(firstTimestamp);
+        resetTail();
+        Utility.logDebug(TAG, "sealed %d samples into %d bytes", count, out.limit());
+        applyRetention(lastTimestamp);
+    }
+
+    private void applyRetention(long now) {
+        long cutoff = now - mRetentionMs;
+        int removed = 0;
+        /* a segment is old once the next one starts before the cutoff */
+        while (removed + 1 < mSegmentCount && mSegments[removed + 1] < cutoff) {
+            getSegmentFile(mSegments[removed]).delete();
+            removed++;
+        }
+        if (removed > 0) {
+            System.arraycopy(mSegments, removed, mSegments, 0, mSegmentCount - removed);
+            mSegmentCount -= removed;
+        }
+    }
+
+    private void loadSegments() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            if (name.startsWith(SEGMENT_PREFIX) == false || name.endsWith(SEGMENT_SUFFIX) == false) {
+                continue;
+            }
+            try {
+                addSegment(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                Utility.logError(TAG, "unexpected file %s", name);
+            }
+        }
+        Arrays.sort(mSegments, 0, mSegmentCount);
+    }
+
+    private void addSegment(long firstTimestamp) {
+        if (mSegmentCount == mSegments.length) {
+            mSegments = Arrays.copyOf(mSegments, mSegmentCount * 2);
+        }
+        mSegments[mSegmentCount++] = firstTimestamp;
+    }
+
+    private long getLastSealedTimestamp() throws IOException {
+        if (mSegmentCount == 0) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(getSegmentFile(mSegments[mSegmentCount - 1]),
+                "r");
+        try {
+            raf.seek(16);
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File getSegmentFile(long firstTimestamp) {
+        return new File(mDirectory, SEGMENT_PREFIX + firstTimestamp + SEGMENT_SUFFIX);
+    }
+
+    private static void readSegment(File file, long from, long to, SampleVisitor visitor)
+            throws IOException {
+        byte[] bytes;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (bytes.length < SEGMENT_HEADER_SIZE || in.getInt() != SEGMENT_MAGIC) {
+            throw new IOException("corrupt segment " + file.getName());
+        }
+        int count = in.getInt();
+        long timestamp = in.getLong();
+        in.getLong();
+        long delta = 0;
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            delta += unzigzag(getVarLong(in));
+            timestamp += delta;
+            value += unzigzag(getVarLong(in));
+            if (timestamp > to) {
+                return;
+            }
+            if (timestamp >= from) {
+                visitor.onSample(timestamp, (int) value);
+            }
+        }
+    }
+
+    private static int checksum(long timestamp, int value, int generation) {
+        int hash = (int) timestamp ^ (int) (timestamp >>> 32);
+        hash = hash * 31 + value;
+        hash = hash * 31 + generation;
+        return hash ^ TAIL_MAGIC;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+}
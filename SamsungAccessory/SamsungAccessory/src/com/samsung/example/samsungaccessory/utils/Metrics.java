@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessory.utils;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free counters and latency histograms per pipeline stage, broken down by message type
+ * and by peer.
+ * <p>
+ * Histograms are log-linear: every power of two is split into {@link #SUB_BUCKETS} buckets, so
+ * a percentile is off by at most one bucket width (12.5%). Recording is a handful of atomic
+ * increments and allocates only the first time a stage sees a type or peer.
+ */
+public class Metrics {
+    public static final int TYPE_UNKNOWN = -1;
+    public static final String NO_PEER = null;
+
+    private static final int MAX_STAGES = 32;
+    private static final int MAX_TYPES = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /* latencies are clamped to 2^36 ns, about 68 seconds */
+    private static final int MAX_SHIFT = 36 - SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_SHIFT + 1) * SUB_BUCKETS;
+    private static final double[] DUMP_PERCENTILES = { 50, 90, 99 };
+
+    private static final Metrics sDefault = new Metrics();
+
+    private final String[] mStageNames = new String[MAX_STAGES];
+    private final Stage[] mStages = new Stage[MAX_STAGES];
+    /* written after the slot is filled, so readers never see a half-added stage */
+    private volatile int mStageCount = 0;
+    private final long mStartedAtMs = SystemClock.elapsedRealtime();
+
+    /**
+     * @return the instance shared by everything in this process
+     */
+    public static Metrics getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Returns the id of the stage called {@code name}, adding it on first use.
+     */
+    public synchronized int getStage(String name) {
+        int count = mStageCount;
+        for (int i = 0; i < count; i++) {
+            if (mStageNames[i].equals(name)) {
+                return i;
+            }
+        }
+        if (count == MAX_STAGES) {
+            throw new IllegalStateException("too many stages");
+        }
+        mStageNames[count] = name;
+        mStages[count] = new Stage();
+        mStageCount = count + 1;
+        return count;
+    }
+
+    /**
+     * Records one message that spent {@code nanos} in {@code stage}.
+     *
+     * @param type message type, or {@link #TYPE_UNKNOWN}
+     * @param peerId peer the message came from or goes to, or {@link #NO_PEER}
+     * @param bytes payload size, or 0
+     */
+    public void record(int stage, int type, String peerId, long nanos, int bytes) {
+        Stage target = mStages[stage];
+        target.total.record(nanos, bytes);
+        target.getByType(type).record(nanos, bytes);
+        if (peerId != null) {
+            target.getByPeer(peerId).record(nanos, bytes);
+        }
+    }
+
+    public void record(int stage, int type, long nanos) {
+        record(stage, type, NO_PEER, nanos, 0);
+    }
+
+    /**
+     * Returns an immutable copy of every stage total and per-type statistic.
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        int count = mStageCount;
+        for (int i = 0; i < count; i++) {
+            Stage stage = mStages[i];
+            snapshot.add(mStageNames[i], Snapshot.ALL_TYPES, stage.total);
+            for (int type = 0; type < MAX_TYPES + 1; type++) {
+                Stat stat = stage.byType.get(type);
+                if (stat != null) {
+                    snapshot.add(mStageNames[i], type - 1, stat);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    public void dump(PrintWriter writer) {
+        long uptimeMs = Math.max(1, SystemClock.elapsedRealtime() - mStartedAtMs);
+        writer.println("Metrics (uptime " + uptimeMs / 1000 + " s):");
+        int count = mStageCount;
+        for (int i = 0; i < count; i++) {
+            Stage stage = mStages[i];
+            writer.println("  " + mStageNames[i]);
+            dumpStat(writer, "all", stage.total, uptimeMs);
+            for (int type = 0; type < MAX_TYPES + 1; type++) {
+                Stat stat = stage.byType.get(type);
+                if (stat != null) {
+                    dumpStat(writer, type == 0 ? "type ?" : "type " + (type - 1), stat, uptimeMs);
+                }
+            }
+            for (Map.Entry<String, Stat> entry : stage.byPeer.entrySet()) {
+                dumpStat(writer, "peer " + entry.getKey(), entry.getValue(), uptimeMs);
+            }
+        }
+    }
+
+    private static void dumpStat(PrintWriter writer, String label, Stat stat, long uptimeMs) {
+        long count = stat.count.get();
+        if (count == 0) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(128);
+        line.append("    ").append(label).append(": count=").append(count)
+                .append(String.format(Locale.US, " rate=%.2f/s", count * 1000.0 / uptimeMs));
+        long bytes = stat.bytes.get();
+        if (bytes > 0) {
+            line.append(" bytes=").append(bytes);
+        }
+        long[] buckets = stat.copyBuckets();
+        for (double percentile : DUMP_PERCENTILES) {
+            line.append(String.format(Locale.US, " p%.0f=%.3fms", percentile,
+                    getPercentile(buckets, count, percentile) / 1e6));
+        }
+        line.append(String.format(Locale.US, " max=%.3fms", stat.max.get() / 1e6));
+        writer.println(line);
+    }
+
+    static int getBucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+        if (shift > MAX_SHIFT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (nanos >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the upper bound of {@code bucket}
+     */
+    static long getBucketLimit(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    static long getPercentile(long[] buckets, long count, double percentile) {
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return getBucketLimit(i);
+            }
+        }
+        return 0;
+    }
+
+    private static class Stat {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+        void record(long nanos, int size) {
+            count.incrementAndGet();
+            if (size > 0) {
+                bytes.addAndGet(size);
+            }
+            buckets.incrementAndGet(getBucket(nanos));
+            long current;
+            while (nanos > (current = max.get())) {
+                if (max.compareAndSet(current, nanos)) {
+                    break;
+                }
+            }
+        }
+
+        long[] copyBuckets() {
+            long[] copy = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                copy[i] = buckets.get(i);
+            }
+            return copy;
+        }
+    }
+
+    private static class Stage {
+        final Stat total = new Stat();
+        /* index 0 holds unknown and out-of-range types */
+        final AtomicReferenceArray<Stat> byType = new AtomicReferenceArray<Stat>(MAX_TYPES + 1);
+        final ConcurrentHashMap<String, Stat> byPeer = new ConcurrentHashMap<String, Stat>();
+
+        Stat getByType(int type) {
+            int index = type >= 0 && type < MAX_TYPES ? type + 1 : 0;
+            Stat stat = byType.get(index);
+            if (stat == null) {
+                byType.compareAndSet(index, null, new Stat());
+                stat = byType.get(index);
+            }
+            return stat;
+        }
+
+        Stat getByPeer(String peerId) {
+            Stat stat = byPeer.get(peerId);
+            if (stat == null) {
+                Stat created = new Stat();
+                stat = byPeer.putIfAbsent(peerId, created);
+                if (stat == null) {
+                    stat = created;
+                }
+            }
+            return stat;
+        }
+    }
+
+    /**
+     * Point-in-time copy of the per-stage and per-type statistics.
+     */
+    public static class Snapshot {
+        public static final int ALL_TYPES = -2;
+
+        private final ArrayList<String> mStages = new ArrayList<String>();
+        private final ArrayList<long[]> mBuckets = new ArrayList<long[]>();
+        private long[] mTypes = new long[8];
+        private long[] mCounts = new long[8];
+        private long[] mMaxes = new long[8];
+
+        private void add(String stage, int type, Stat stat) {
+            int index = mStages.size();
+            if (index == mCounts.length) {
+                mTypes = Arrays.copyOf(mTypes, index * 2);
+                mCounts = Arrays.copyOf(mCounts, index * 2);
+                mMaxes = Arrays.copyOf(mMaxes, index * 2);
+            }
+            mStages.add(stage);
+            mBuckets.add(stat.copyBuckets());
+            mTypes[index] = type;
+            mCounts[index] = stat.count.get();
+            mMaxes[index] = stat.max.get();
+        }
+
+        /**
+         * @param type a message type, {@link Metrics#TYPE_UNKNOWN} or {@link #ALL_TYPES}
+         */
+        public long getCount(String stage, int type) {
+            int index = indexOf(stage, type);
+            return index < 0 ? 0 : mCounts[index];
+        }
+
+        public long getMaxNanos(String stage, int type) {
+            int index = indexOf(stage, type);
+            return index < 0 ? 0 : mMaxes[index];
+        }
+
+        public long getPercentileNanos(String stage, int type, double percentile) {
+            int index = indexOf(stage, type);
+            return index < 0 ? 0 : getPercentile(mBuckets.get(index), mCounts[index],
+                    percentile);
+        }
+
+        private int indexOf(String stage, int type) {
+            for (int i = 0; i < mStages.size(); i++) {
+                if (mTypes[i] == type && mStages.get(i).equals(stage)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
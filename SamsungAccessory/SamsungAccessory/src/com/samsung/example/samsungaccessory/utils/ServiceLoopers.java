@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessory.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The loopers a service handles its messages on: one for messages coming into the service and
+ * one for messages it sends out, so neither parsing nor sending waits behind the UI.
+ * <p>
+ * {@link #MODE_SPLIT} gives each direction its own thread, {@link #MODE_SHARED} puts both on
+ * one background thread and {@link #MODE_MAIN} keeps everything on the main thread, as before
+ * the loopers existed. State that a handler touches belongs to the thread of its looper.
+ * <p>
+ * The mode can be changed without a new build with {@link #saveMode}. Handlers keep the looper
+ * they were created with, so a saved mode applies from the next time the service is created.
+ */
+public class ServiceLoopers {
+    /** Inbound and outbound messages are handled on the main thread. */
+    public static final int MODE_MAIN = 0;
+    /** Inbound and outbound messages share one background thread. */
+    public static final int MODE_SHARED = 1;
+    /** Inbound and outbound messages each have a background thread. */
+    public static final int MODE_SPLIT = 2;
+
+    private static final String PREFERENCES_NAME = "service_loopers";
+
+    /**
+     * Handler that counts the messages sent through it and not handled yet, and records how
+     * long they waited in the {@code <name>.queueWait} metrics stage.
+     * <p>
+     * Messages removed with {@code removeCallbacks} or {@code removeMessages} are still
+     * counted; use {@link #clear} to drop everything.
+     */
+    public static class MonitoredHandler extends Handler {
+        private final String mName;
+        private final Metrics mMetrics = Metrics.getDefault();
+        private final int mWaitStage;
+        private final AtomicInteger mDepth = new AtomicInteger();
+        private final AtomicInteger mMaxDepth = new AtomicInteger();
+        private final AtomicLong mHandledCount = new AtomicLong();
+
+        public MonitoredHandler(Looper looper, String name) {
+            super(looper);
+            mName = name;
+            mWaitStage = mMetrics.getStage(name + ".queueWait");
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            if (super.sendMessageAtTime(msg, uptimeMillis) == false) {
+                return false;
+            }
+            int depth = mDepth.incrementAndGet();
+            int max = mMaxDepth.get();
+            while (depth > max && mMaxDepth.compareAndSet(max, depth) == false) {
+                max = mMaxDepth.get();
+            }
+            return true;
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            mDepth.decrementAndGet();
+            mHandledCount.incrementAndGet();
+            mMetrics.record(mWaitStage, Metrics.TYPE_UNKNOWN,
+                    Math.max(0, SystemClock.uptimeMillis() - msg.getWhen()) * 1000000L);
+            super.dispatchMessage(msg);
+        }
+
+        /**
+         * @return messages sent through this handler that are not handled yet
+         */
+        public int getDepth() {
+            return Math.max(0, mDepth.get());
+        }
+
+        public void clear() {
+            removeCallbacksAndMessages(null);
+            mDepth.set(0);
+        }
+
+        void dump(PrintWriter writer) {
+            writer.println("  " + mName + ": depth=" + getDepth() + " max=" + mMaxDepth.get()
+                    + " handled=" + mHandledCount.get());
+        }
+    }
+
+    /**
+     * @return the mode saved for the loopers named {@code name}, or {@code defaultMode}
+     */
+    public static int getSavedMode(Context context, String name, int defaultMode) {
+        int mode = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getInt(name, defaultMode);
+        return mode >= MODE_MAIN && mode <= MODE_SPLIT ? mode : defaultMode;
+    }
+
+    /**
+     * Saves the mode of the loopers named {@code name}, used from the next time they are
+     * created.
+     *
+     * @return false if {@code mode} is not one of the {@code MODE_} constants
+     */
+    public static boolean saveMode(Context context, String name, int mode) {
+        if (mode < MODE_MAIN || mode > MODE_SPLIT) {
+            return false;
+        }
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(name, mode).apply();
+        return true;
+    }
+
+    private final int mMode;
+    private final HandlerThread mInboundThread;
+    private final HandlerThread mOutboundThread;
+    /* guarded by this */
+    private final ArrayList<MonitoredHandler> mHandlers = new ArrayList<MonitoredHandler>();
+
+    /**
+     * Starts the threads {@code mode} needs, named after {@code name}.
+     */
+    public ServiceLoopers(String name, int mode) {
+        mMode = mode;
+        if (mode == MODE_MAIN) {
+            mInboundThread = null;
+            mOutboundThread = null;
+            return;
+        }
+        mInboundThread = new HandlerThread(name + (mode == MODE_SPLIT ? "-in" : "-io"));
+        mInboundThread.start();
+        if (mode == MODE_SPLIT) {
+            mOutboundThread = new HandlerThread(name + "-out");
+            mOutboundThread.start();
+        } else {
+            mOutboundThread = mInboundThread;
+        }
+    }
+
+    public Looper getInboundLooper() {
+        return mInboundThread != null ? mInboundThread.getLooper() : Looper.getMainLooper();
+    }
+
+    public Looper getOutboundLooper() {
+        return mOutboundThread != null ? mOutboundThread.getLooper() : Looper.getMainLooper();
+    }
+
+    /**
+     * Creates a handler on the inbound looper whose queue is shown by {@link #dump}.
+     */
+    public MonitoredHandler newInboundHandler(String name) {
+        return monitor(new MonitoredHandler(getInboundLooper(), name));
+    }
+
+    /**
+     * Creates a handler on the outbound looper whose queue is shown by {@link #dump}.
+     */
+    public MonitoredHandler newOutboundHandler(String name) {
+        return monitor(new MonitoredHandler(getOutboundLooper(), name));
+    }
+
+    /**
+     * Adds {@code handler} to the queues shown by {@link #dump}.
+     */
+    public synchronized <T extends MonitoredHandler> T monitor(T handler) {
+        mHandlers.add(handler);
+        return handler;
+    }
+
+    /**
+     * Stops the threads after the messages already due are handled. Later messages are dropped.
+     */
+    public synchronized void quit() {
+        if (mInboundThread != null) {
+            mInboundThread.quitSafely();
+        }
+        if (mOutboundThread != null && mOutboundThread != mInboundThread) {
+            mOutboundThread.quitSafely();
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Loopers (" + (mMode == MODE_SPLIT ? "split"
+                : (mMode == MODE_SHARED ? "shared" : "main")) + "):");
+        for (MonitoredHandler handler : mHandlers) {
+            handler.dump(writer);
+        }
+    }
+}
@@ -21,56 +21,169 @@ import android.content.Context;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.samsung.example.samsungaccessory.BuildConfig;
+
 import java.util.Locale;
 
 /**
  * Convenience methods
+ * <p>
+ * Log calls are dropped before any formatting when their level is below {@link #setLogLevel}.
+ * The int and long overloads avoid boxing at the call site and the overloads with one or two
+ * objects avoid the varargs array. When a {@link LogRing} is set, debug and info messages are
+ * recorded there unformatted instead of going to logcat, whatever the log level.
  */
 public class Utility {
+    private static volatile int sLogLevel = BuildConfig.DEBUG ? Log.DEBUG : Log.INFO;
+    private static volatile LogRing sLogRing = null;
+    /* the lowest level kept anywhere: debug while a log ring records */
+    private static volatile int sGateLevel = sLogLevel;
+
+    public static void setLogLevel(int level) {
+        sLogLevel = level;
+        updateGateLevel();
+    }
+
+    public static int getLogLevel() {
+        return sLogLevel;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sGateLevel;
+    }
+
+    public static void setLogRing(LogRing ring) {
+        sLogRing = ring;
+        updateGateLevel();
+    }
+
+    private static void updateGateLevel() {
+        sGateLevel = sLogRing != null ? Math.min(sLogLevel, Log.DEBUG) : sLogLevel;
+    }
+
+    public static LogRing getLogRing() {
+        return sLogRing;
+    }
+
     public static void logInfo(String tag, String message) {
-        Log.i(tag, message);
+        if (isLoggable(Log.INFO)) {
+            println(Log.INFO, tag, message, LogRing.ARGS_NONE, 0, 0, null, null);
+        }
     }
 
     public static void logInfo(String tag, String format, Object... args) {
-        Log.i(tag, buildFormattedMessage(format, args));
+        if (isLoggable(Log.INFO)) {
+            println(Log.INFO, tag, format, LogRing.ARGS_ARRAY, 0, 0, args, null);
+        }
     }
 
     public static void logDebug(String tag, String message) {
-        Log.d(tag, message);
+        if (isLoggable(Log.DEBUG)) {
+            println(Log.DEBUG, tag, message, LogRing.ARGS_NONE, 0, 0, null, null);
+        }
+    }
+
+    public static void logDebug(String tag, String format, int arg) {
+        if (isLoggable(Log.DEBUG)) {
+            println(Log.DEBUG, tag, format, LogRing.ARGS_LONG, arg, 0, null, null);
+        }
+    }
+
+    public static void logDebug(String tag, String format, long arg) {
+        if (isLoggable(Log.DEBUG)) {
+            println(Log.DEBUG, tag, format, LogRing.ARGS_LONG, arg, 0, null, null);
+        }
+    }
+
+    public static void logDebug(String tag, String format, int arg1, int arg2) {
+        if (isLoggable(Log.DEBUG)) {
+            println(Log.DEBUG, tag, format, LogRing.ARGS_LONG_LONG, arg1, arg2, null, null);
+        }
+    }
+
+    public static void logDebug(String tag, String format, int arg1, Object arg2) {
+        if (isLoggable(Log.DEBUG)) {
+            println(Log.DEBUG, tag, format, LogRing.ARGS_LONG_OBJECT, arg1, 0, arg2, null);
+        }
+    }
+
+    public static void logDebug(String tag, String format, Object arg) {
+        if (isLoggable(Log.DEBUG)) {
+            println(Log.DEBUG, tag, format, LogRing.ARGS_OBJECT, 0, 0, arg, null);
+        }
+    }
+
+    public static void logDebug(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(Log.DEBUG)) {
+            println(Log.DEBUG, tag, format, LogRing.ARGS_OBJECT_OBJECT, 0, 0, arg1, arg2);
+        }
     }
 
     public static void logDebug(String tag, String format, Object... args) {
-        Log.d(tag, buildFormattedMessage(format, args));
+        if (isLoggable(Log.DEBUG)) {
+            println(Log.DEBUG, tag, format, LogRing.ARGS_ARRAY, 0, 0, args, null);
+        }
     }
 
     public static void logWarning(String tag, String message) {
-        Log.w(tag, message);
+        if (isLoggable(Log.WARN)) {
+            println(Log.WARN, tag, message, LogRing.ARGS_NONE, 0, 0, null, null);
+        }
     }
 
     public static void logWarning(String tag, String format, Object... args) {
-        Log.w(tag, buildFormattedMessage(format, args));
+        if (isLoggable(Log.WARN)) {
+            println(Log.WARN, tag, format, LogRing.ARGS_ARRAY, 0, 0, args, null);
+        }
     }
 
     public static void logError(String tag, String message) {
-        Log.e(tag, message);
+        if (isLoggable(Log.ERROR)) {
+            println(Log.ERROR, tag, message, LogRing.ARGS_NONE, 0, 0, null, null);
+        }
+    }
+
+    public static void logError(String tag, String format, int arg) {
+        if (isLoggable(Log.ERROR)) {
+            println(Log.ERROR, tag, format, LogRing.ARGS_LONG, arg, 0, null, null);
+        }
     }
 
     public static void logError(String tag, String format, Object... args) {
-        Log.e(tag, buildFormattedMessage(format, args));
+        if (isLoggable(Log.ERROR)) {
+            println(Log.ERROR, tag, format, LogRing.ARGS_ARRAY, 0, 0, args, null);
+        }
     }
 
     public static void logError(String tag, Throwable tr, String message) {
-        Log.e(tag, message, tr);
+        if (isLoggable(Log.ERROR)) {
+            Log.e(tag, message, tr);
+        }
     }
 
     public static void logError(String tag, Throwable tr, String format, Object... args) {
-        Log.e(tag, buildFormattedMessage(format, args), tr);
+        if (isLoggable(Log.ERROR)) {
+            Log.e(tag, buildFormattedMessage(format, args), tr);
+        }
     }
 
     public static String buildFormattedMessage(String format, Object... args) {
         return String.format(Locale.US, format, args);
     }
 
+    private static void println(int level, String tag, String format, int argKind, long first,
+            long second, Object object, Object secondObject) {
+        LogRing ring = sLogRing;
+        if (ring != null) {
+            ring.record(level, tag, format, argKind, first, second, object, secondObject);
+            if (level < Log.WARN) {
+                return;
+            }
+        }
+        Log.println(level, tag,
+                LogRing.format(format, argKind, first, second, object, secondObject));
+    }
+
     public static void showShortToast(Context context, CharSequence text) {
         Toast.makeText(context, text, Toast.LENGTH_SHORT).show();
     }
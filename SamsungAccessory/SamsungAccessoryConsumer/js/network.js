@@ -22,7 +22,12 @@ var NETWORK = (function network() {
     var SAPeerAgent = null;
     var messageListener;
 
-    var CHANNEL_ID = 104;
+    // must match the serviceChannel ids in res/xml/accessoryservices.xml
+    var CHANNEL = {
+        "BULK" : 104,
+        "SENSOR" : 105,
+        "CONTROL" : 106
+    };
     var PROVIDER_APP_NAME = "SamsungAccessoryProvider";
 
     var MESSAGE_TYPE = {
@@ -185,6 +190,20 @@ var NETWORK = (function network() {
         }
     }
 
+    function getChannel(type) {
+        switch (type) {
+        case MESSAGE_TYPE.HEARTBEAT_COUNT:
+        case MESSAGE_TYPE.STEPS_COUNT:
+            return CHANNEL.SENSOR;
+        case MESSAGE_TYPE.CONNECTION_STATUS:
+        case MESSAGE_TYPE.RESET:
+        case MESSAGE_TYPE.DEVICEMODEL:
+            return CHANNEL.CONTROL;
+        default:
+            return CHANNEL.BULK;
+        }
+    }
+
     function onReceiveData(channelId, data) {
         console.log("Received data: " + data);
         var object = JSON.parse(data);
@@ -221,7 +240,7 @@ var NETWORK = (function network() {
 
         try {
             console.log("sendString: " + jsonString);
-            SASocket.sendData(CHANNEL_ID, jsonString);
+            SASocket.sendData(getChannel(data.type), jsonString);
         } catch (err) {
             console.log(UTILITY.createErrorString("sendString", err));
             UTILITY.showAlert("Internal Error: sendString", enable);
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import android.util.SparseArray;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Thread-safe set of live connections, one per peer agent.
+ * <p>
+ * Every connection gets a new id from a counter, so ids are not reused while the service
+ * lives. {@link #getConnections()} is a copy-on-write list that can be iterated without locking.
+ */
+public class ConnectionRegistry<T> {
+    private final SparseArray<T> mById = new SparseArray<T>();
+    private final HashMap<String, Integer> mIdByPeer = new HashMap<String, Integer>();
+    private final CopyOnWriteArrayList<T> mConnections = new CopyOnWriteArrayList<T>();
+    private int mNextId = 1;
+
+    /**
+     * Reserves the id of a connection that is not registered yet, so it can be set up completely
+     * before {@link #register} makes it visible to other threads.
+     */
+    public synchronized int newId() {
+        int id = mNextId++;
+        if (mNextId <= 0) {
+            mNextId = 1;
+        }
+        return id;
+    }
+
+    /**
+     * Adds {@code connection} for {@code peerId} under an id from {@link #newId}.
+     *
+     * @return the connection previously registered for the same peer, or null
+     */
+    public synchronized T register(int id, String peerId, T connection) {
+        T previous = null;
+        Integer previousId = mIdByPeer.get(peerId);
+        if (previousId != null) {
+            previous = remove(previousId);
+        }
+        mById.put(id, connection);
+        mIdByPeer.put(peerId, id);
+        mConnections.add(connection);
+        return previous;
+    }
+
+    /**
+     * @return the removed connection, or null if {@code id} was not registered
+     */
+    public synchronized T remove(int id) {
+        T connection = mById.get(id);
+        if (connection == null) {
+            return null;
+        }
+        mById.remove(id);
+        mConnections.remove(connection);
+        for (Iterator<Integer> it = mIdByPeer.values().iterator(); it.hasNext();) {
+            if (it.next() == id) {
+                it.remove();
+                break;
+            }
+        }
+        return connection;
+    }
+
+    public synchronized T get(int id) {
+        return mById.get(id);
+    }
+
+    public synchronized T getByPeerId(String peerId) {
+        Integer id = mIdByPeer.get(peerId);
+        return id == null ? null : mById.get(id);
+    }
+
+    public int size() {
+        return mConnections.size();
+    }
+
+    public List<T> getConnections() {
+        return mConnections;
+    }
+}
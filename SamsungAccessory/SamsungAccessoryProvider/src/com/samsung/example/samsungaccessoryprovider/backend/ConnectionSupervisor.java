@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.samsung.android.sdk.accessory.SAAgent;
+import com.samsung.android.sdk.accessory.SAPeerAgent;
+import com.samsung.android.sdk.accessory.SASocket;
+import com.samsung.example.samsungaccessoryprovider.utils.Metrics;
+import com.samsung.example.samsungaccessoryprovider.utils.Utility;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Brings lost watch connections back without waiting for the watch to search again.
+ * <p>
+ * The peer agent of every connection is remembered. When a connection is lost for a reason
+ * that is likely to pass, a new connection to the same agent is requested after a jittered
+ * exponential backoff whose range depends on the reason; a watch that disconnected on purpose
+ * is left alone. The state of the lost connection is kept for {@link #SESSION_TTL_MS} so a
+ * connection to the same peer resumes with it instead of negotiating again. The time from loss
+ * to reconnection is recorded in the {@code provider.reconnect} metrics stage.
+ * <p>
+ * All methods may be called from any thread; retries run on the main thread.
+ */
+public class ConnectionSupervisor {
+    private static final String TAG = ConnectionSupervisor.class.getSimpleName();
+    private static final long SESSION_TTL_MS = 10 * 60 * 1000L;
+
+    public interface Connector {
+        void requestConnection(SAPeerAgent peerAgent);
+
+        /** Searches for peer agents again, used when the remembered one became invalid. */
+        void findPeerAgents();
+    }
+
+    /**
+     * What a connection had agreed with its peer. The wire protocol has no handshake, so this
+     * is what the provider learned by itself and would otherwise have to learn again.
+     */
+    public static class Session {
+        /** the peer sends and accepts WireCodec frames */
+        public boolean binaryWire;
+        /** the peer only has the default service channel */
+        public boolean singleChannel;
+        /** messages queued for the peer, continued across reconnections */
+        public long sentCount;
+        /** messages received from the peer, continued across reconnections */
+        public long receivedCount;
+
+        long savedAt;
+    }
+
+    private static class Backoff {
+        final long baseMs;
+        final long maxMs;
+        final int maxAttempts;
+
+        Backoff(long baseMs, long maxMs, int maxAttempts) {
+            this.baseMs = baseMs;
+            this.maxMs = maxMs;
+            this.maxAttempts = maxAttempts;
+        }
+    }
+
+    /* a dropped radio frame clears quickly, a detached device takes longer to come back */
+    private static final Backoff RETRANSMISSION_BACKOFF = new Backoff(250, 8000, 8);
+    private static final Backoff UNKNOWN_REASON_BACKOFF = new Backoff(1000, 30000, 6);
+    private static final Backoff DEVICE_DETACHED_BACKOFF = new Backoff(2000, 60000, 10);
+
+    private class Retry implements Runnable {
+        final String peerId;
+        final Backoff backoff;
+        final long lostAt;
+        SAPeerAgent peerAgent;
+        int attempt = 0;
+        boolean needsFind = false;
+        /* kept after the last attempt so a late success is still measured */
+        boolean hasGivenUp = false;
+
+        Retry(String peerId, SAPeerAgent peerAgent, Backoff backoff, long lostAt) {
+            this.peerId = peerId;
+            this.peerAgent = peerAgent;
+            this.backoff = backoff;
+            this.lostAt = lostAt;
+        }
+
+        @Override
+        public void run() {
+            attemptNow(this);
+        }
+    }
+
+    private final Connector mConnector;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    private final Metrics mMetrics = Metrics.getDefault();
+    private final int mStage = mMetrics.getStage("provider.reconnect");
+
+    /* guarded by this */
+    private final HashMap<String, SAPeerAgent> mPeerAgents = new HashMap<String, SAPeerAgent>();
+    private final HashMap<String, Session> mSessions = new HashMap<String, Session>();
+    private final HashMap<String, Retry> mRetries = new HashMap<String, Retry>();
+    private boolean mIsStopped = false;
+    private long mAttemptCount = 0;
+    private long mReconnectCount = 0;
+    private long mGiveUpCount = 0;
+
+    public ConnectionSupervisor(Connector connector) {
+        mConnector = connector;
+    }
+
+    /**
+     * Called when a connection to {@code peerId} is established.
+     *
+     * @return the state of the previous connection to the same peer, or null if there is none
+     *         recent enough to resume
+     */
+    public synchronized Session onConnected(String peerId, SAPeerAgent peerAgent) {
+        if (peerAgent != null) {
+            mPeerAgents.put(peerId, peerAgent);
+        }
+        Retry retry = mRetries.remove(peerId);
+        if (retry != null) {
+            mHandler.removeCallbacks(retry);
+            long elapsedMs = SystemClock.elapsedRealtime() - retry.lostAt;
+            mMetrics.record(mStage, Metrics.TYPE_UNKNOWN, peerId, elapsedMs * 1000000L, 0);
+            mReconnectCount++;
+            Utility.logDebug(TAG, "peer %s back after %d ms", peerId, elapsedMs);
+        }
+        Session session = mSessions.remove(peerId);
+        if (session == null
+                || SystemClock.elapsedRealtime() - session.savedAt > SESSION_TTL_MS) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Called when a connection is lost. Keeps {@code session} for a later connection to the
+     * same peer and schedules reconnection if {@code reason} is worth retrying.
+     */
+    public synchronized void onConnectionLost(String peerId, int reason, Session session) {
+        long now = SystemClock.elapsedRealtime();
+        session.savedAt = now;
+        mSessions.put(peerId, session);
+        expireSessionsLocked(now);
+
+        Backoff backoff = getBackoff(reason);
+        SAPeerAgent peerAgent = mPeerAgents.get(peerId);
+        if (mIsStopped || backoff == null || peerAgent == null) {
+            return;
+        }
+        Retry previous = mRetries.get(peerId);
+        if (previous != null) {
+            mHandler.removeCallbacks(previous);
+        }
+        Retry retry = new Retry(peerId, peerAgent, backoff, now);
+        mRetries.put(peerId, retry);
+        scheduleLocked(retry);
+    }
+
+    /**
+     * Called when a requested connection could not be established. The next attempts are
+     * already scheduled. The framework does not say which agent failed, so an invalid agent
+     * makes every pending reconnection search for peers first.
+     */
+    public synchronized void onConnectionFailed(int result) {
+        if (result != SAAgent.CONNECTION_FAILURE_INVALID_PEERAGENT) {
+            return;
+        }
+        for (Retry retry : mRetries.values()) {
+            retry.needsFind = true;
+        }
+    }
+
+    /**
+     * Called for every peer agent found or updated. A peer that is being reconnected is tried
+     * at once with the fresh agent.
+     */
+    public synchronized void onPeerAgentAvailable(SAPeerAgent peerAgent) {
+        if (peerAgent == null) {
+            return;
+        }
+        String peerId = peerAgent.getPeerId();
+        if (mPeerAgents.containsKey(peerId)) {
+            mPeerAgents.put(peerId, peerAgent);
+        }
+        Retry retry = mRetries.get(peerId);
+        if (retry == null || mIsStopped || retry.hasGivenUp) {
+            return;
+        }
+        retry.peerAgent = peerAgent;
+        retry.needsFind = false;
+        mHandler.removeCallbacks(retry);
+        mHandler.post(retry);
+    }
+
+    /**
+     * Cancels every pending retry. Nothing is retried afterwards.
+     */
+    public synchronized void stop() {
+        mIsStopped = true;
+        for (Retry retry : mRetries.values()) {
+            mHandler.removeCallbacks(retry);
+        }
+        mRetries.clear();
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Reconnect: attempts=" + mAttemptCount + " reconnected=" + mReconnectCount
+                + " gave up=" + mGiveUpCount + " sessions=" + mSessions.size());
+        for (Retry retry : mRetries.values()) {
+            writer.println("  peer " + retry.peerId + " attempt " + retry.attempt + "/"
+                    + retry.backoff.maxAttempts + (retry.hasGivenUp ? " (gave up)"
+                            : (retry.needsFind ? " (searching)" : "")));
+        }
+    }
+
+    private void attemptNow(Retry retry) {
+        SAPeerAgent peerAgent;
+        boolean needsFind;
+        synchronized (this) {
+            if (mIsStopped || mRetries.get(retry.peerId) != retry || retry.hasGivenUp) {
+                return;
+            }
+            mAttemptCount++;
+            peerAgent = retry.peerAgent;
+            needsFind = retry.needsFind;
+        }
+        Utility.logDebug(TAG, "reconnect peer %s, attempt %d", retry.peerId, retry.attempt);
+        /* the next attempt runs unless the connection comes back or a found agent is tried */
+        synchronized (this) {
+            scheduleLocked(retry);
+        }
+        if (needsFind) {
+            mConnector.findPeerAgents();
+        } else {
+            mConnector.requestConnection(peerAgent);
+        }
+    }
+
+    private void scheduleLocked(Retry retry) {
+        if (retry.attempt >= retry.backoff.maxAttempts) {
+            Utility.logError(TAG, "giving up on peer %s after %d attempts", retry.peerId,
+                    retry.attempt);
+            retry.hasGivenUp = true;
+            mGiveUpCount++;
+            return;
+        }
+        long delayMs = getDelay(retry.backoff, retry.attempt, mRandom);
+        retry.attempt++;
+        mHandler.removeCallbacks(retry);
+        mHandler.postDelayed(retry, delayMs);
+    }
+
+    private void expireSessionsLocked(long now) {
+        for (Iterator<Session> it = mSessions.values().iterator(); it.hasNext();) {
+            if (now - it.next().savedAt > SESSION_TTL_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the backoff for a connection lost with {@code reason}, or null if it should not
+     *         be retried
+     */
+    private static Backoff getBackoff(int reason) {
+        switch (reason) {
+            case SASocket.CONNECTION_LOST_RETRANSMISSION_FAILED:
+                return RETRANSMISSION_BACKOFF;
+            case SASocket.CONNECTION_LOST_UNKNOWN_REASON:
+                return UNKNOWN_REASON_BACKOFF;
+            case SASocket.CONNECTION_LOST_DEVICE_DETACHED:
+                return DEVICE_DETACHED_BACKOFF;
+            default:
+                /* the peer closed the connection itself, or the framework failed */
+                return null;
+        }
+    }
+
+    /**
+     * Exponential delay with equal jitter: somewhere between half and all of
+     * {@code base * 2^attempt}, capped at the backoff's maximum.
+     */
+    private static long getDelay(Backoff backoff, int attempt, Random random) {
+        long delayMs = backoff.maxMs;
+        if (attempt < 30) {
+            delayMs = Math.min(backoff.maxMs, backoff.baseMs << attempt);
+        }
+        long half = delayMs / 2;
+        return half + (long) (random.nextDouble() * (delayMs - half));
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Finds the thumbnail a camera embeds in the EXIF segment of a JPEG.
+ * <p>
+ * The EXIF segment comes before the image data, so the thumbnail can be read from the first
+ * few kilobytes of a file that is still being received.
+ */
+public class ExifThumbnail {
+    public static final int FOUND = 0;
+    /** the file may have a thumbnail further on than the bytes available so far */
+    public static final int NEED_MORE = 1;
+    public static final int NONE = 2;
+
+    /* an APP1 segment is at most 64 KB, other segments before it are small */
+    private static final int MAX_HEADER_BYTES = 128 * 1024;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int IFD_ENTRY_SIZE = 12;
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    /**
+     * Reads the thumbnail from the start of {@code file}.
+     *
+     * @param result set to {@link #FOUND}, {@link #NEED_MORE} or {@link #NONE}
+     * @return the thumbnail JPEG, or null unless {@code result} is {@link #FOUND}
+     */
+    public static byte[] read(File file, int[] result) throws IOException {
+        int size = (int) Math.min(file.length(), MAX_HEADER_BYTES);
+        byte[] data = new byte[size];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while (length < size && (read = in.read(data, length, size - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+        int[] range = new int[2];
+        int found = find(data, length, range);
+        if (found == NEED_MORE && length >= MAX_HEADER_BYTES) {
+            found = NONE;
+        }
+        result[0] = found;
+        if (found != FOUND) {
+            return null;
+        }
+        byte[] thumbnail = new byte[range[1]];
+        System.arraycopy(data, range[0], thumbnail, 0, range[1]);
+        return thumbnail;
+    }
+
+    /**
+     * Looks for the thumbnail in the first {@code length} bytes of a JPEG.
+     *
+     * @param range set to the offset and length of the thumbnail when it is found
+     */
+    public static int find(byte[] data, int length, int[] range) {
+        if (length < 2) {
+            return NEED_MORE;
+        }
+        if ((data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != MARKER_SOI) {
+            return NONE;
+        }
+        int pos = 2;
+        while (true) {
+            if (pos + 4 > length) {
+                return NEED_MORE;
+            }
+            if ((data[pos] & 0xFF) != 0xFF) {
+                return NONE;
+            }
+            int marker = data[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                /* fill byte */
+                pos++;
+                continue;
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                return NONE;
+            }
+            int segmentLength = readShort(data, pos + 2, false);
+            if (segmentLength < 2) {
+                return NONE;
+            }
+            int start = pos + 4;
+            int end = pos + 2 + segmentLength;
+            if (marker == MARKER_APP1 && hasExifHeader(data, start, Math.min(end, length))) {
+                if (end > length) {
+                    return NEED_MORE;
+                }
+                return findInExif(data, start + EXIF_HEADER.length, end, range);
+            }
+            pos = end;
+        }
+    }
+
+    private static boolean hasExifHeader(byte[] data, int start, int end) {
+        if (end - start < EXIF_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (data[start + i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * The thumbnail is described by the second IFD of the TIFF structure in the segment; all
+     * offsets are relative to the TIFF header at {@code tiff}.
+     */
+    private static int findInExif(byte[] data, int tiff, int end, int[] range) {
+        if (end - tiff < 8) {
+            return NONE;
+        }
+        boolean littleEndian;
+        if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return NONE;
+        }
+        long ifd0 = readInt(data, tiff + 4, littleEndian);
+        if (ifd0 < 8 || ifd0 > end - tiff - 2) {
+            return NONE;
+        }
+        int ifd0Pos = tiff + (int) ifd0;
+        int ifd0Count = readShort(data, ifd0Pos, littleEndian);
+        int nextPos = ifd0Pos + 2 + ifd0Count * IFD_ENTRY_SIZE;
+        if (nextPos + 4 > end) {
+            return NONE;
+        }
+        long ifd1 = readInt(data, nextPos, littleEndian);
+        if (ifd1 < 8 || ifd1 > end - tiff - 2) {
+            return NONE;
+        }
+        int ifd1Pos = tiff + (int) ifd1;
+        int ifd1Count = readShort(data, ifd1Pos, littleEndian);
+        if (ifd1Pos + 2 + ifd1Count * IFD_ENTRY_SIZE > end) {
+            return NONE;
+        }
+        long offset = -1;
+        long size = -1;
+        for (int i = 0; i < ifd1Count; i++) {
+            int entry = ifd1Pos + 2 + i * IFD_ENTRY_SIZE;
+            int tag = readShort(data, entry, littleEndian);
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+                offset = readInt(data, entry + 8, littleEndian);
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                size = readInt(data, entry + 8, littleEndian);
+            }
+        }
+        if (offset <= 0 || size <= 2 || offset + size > end - tiff) {
+            return NONE;
+        }
+        int start = tiff + (int) offset;
+        if ((data[start] & 0xFF) != 0xFF || (data[start + 1] & 0xFF) != MARKER_SOI) {
+            return NONE;
+        }
+        range[0] = start;
+        range[1] = (int) size;
+        return FOUND;
+    }
+
+    private static int readShort(byte[] data, int pos, boolean littleEndian) {
+        int b0 = data[pos] & 0xFF;
+        int b1 = data[pos + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long readInt(byte[] data, int pos, boolean littleEndian) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = data[littleEndian ? pos + 3 - i : pos + i] & 0xFF;
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private ExifThumbnail() {
+    }
+}
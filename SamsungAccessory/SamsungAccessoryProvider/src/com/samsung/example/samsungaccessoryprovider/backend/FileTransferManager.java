@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import com.samsung.android.sdk.accessoryfiletransfer.SAFileTransfer;
+import com.samsung.example.samsungaccessoryprovider.utils.Utility;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Receives files from any number of watches into one directory.
+ * <p>
+ * Each transfer is written to its own {@code .part} file and, once complete, renamed to the
+ * hash of its content, so two transfers never share a path and a resent photo is stored once.
+ * At most {@code maxConcurrent} transfers are received at a time; further requests wait in a
+ * bounded queue and are rejected when it is full. Progress of all running transfers is merged
+ * and reported at most once per {@link #PROGRESS_INTERVAL_MS}. When the directory grows over
+ * its quota the least recently received files are deleted.
+ * <p>
+ * While a JPEG is being received, the thumbnail embedded in its EXIF data is extracted as soon
+ * as enough of the file has arrived and reported before the full image, so it can be shown in
+ * the meantime.
+ */
+public class FileTransferManager implements SAFileTransfer.EventListener {
+    private static final String TAG = FileTransferManager.class.getSimpleName();
+    private static final String PART_SUFFIX = ".part";
+    private static final String THUMBNAIL_SUFFIX = ".thumb";
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    public interface Listener {
+        /**
+         * @param progress mean progress of the running transfers, 0 to 100
+         */
+        void onTransferProgress(int runningCount, int queuedCount, int progress);
+
+        /**
+         * Called before {@link #onFileReceived} for a JPEG with an embedded thumbnail. The
+         * thumbnail file is deleted once the full image has been reported or the transfer fails.
+         */
+        void onThumbnailReceived(int transId, File thumbnail);
+
+        void onFileReceived(int transId, File file);
+
+        void onTransferFailed(int transId, int errorCode);
+    }
+
+    private static class Request {
+        final int transId;
+        final String fileName;
+
+        Request(int transId, String fileName) {
+            this.transId = transId;
+            this.fileName = fileName;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mQuotaBytes;
+    private final int mMaxConcurrent;
+    private final int mMaxQueued;
+    private final Listener mListener;
+    private final HandlerThread mStoreThread;
+    private final Handler mStoreHandler;
+
+    /* guarded by this */
+    private SAFileTransfer mFileTransfer = null;
+    private final SparseArray<File> mRunning = new SparseArray<File>();
+    private final SparseIntArray mProgress = new SparseIntArray();
+    private final ArrayDeque<Request> mQueue = new ArrayDeque<Request>();
+    /* transfers that may still yield a thumbnail, true while one is being looked for */
+    private final SparseBooleanArray mThumbnailSearches = new SparseBooleanArray();
+    private long mLastProgressAt = 0;
+    private int mLastReportedProgress = -1;
+    private long mPartSequence = 0;
+
+    public FileTransferManager(File directory, long quotaBytes, int maxConcurrent, int maxQueued,
+            Listener listener) {
+        mDirectory = directory;
+        mQuotaBytes = quotaBytes;
+        mMaxConcurrent = maxConcurrent;
+        mMaxQueued = maxQueued;
+        mListener = listener;
+        mStoreThread = new HandlerThread("FileTransferStore", Process.THREAD_PRIORITY_BACKGROUND);
+        mStoreThread.start();
+        mStoreHandler = new Handler(mStoreThread.getLooper());
+        mStoreHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deleteStaleParts();
+            }
+        });
+    }
+
+    public synchronized void setFileTransfer(SAFileTransfer fileTransfer) {
+        mFileTransfer = fileTransfer;
+    }
+
+    /**
+     * Cancels running transfers, rejects queued ones and stops the store thread.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mFileTransfer != null) {
+                for (int i = 0; i < mRunning.size(); i++) {
+                    mFileTransfer.cancel(mRunning.keyAt(i));
+                }
+                for (Request request : mQueue) {
+                    mFileTransfer.reject(request.transId);
+                }
+            }
+            mRunning.clear();
+            mProgress.clear();
+            mThumbnailSearches.clear();
+            mQueue.clear();
+        }
+        mStoreThread.quit();
+    }
+
+    @Override
+    public void onTransferRequested(int transId, String fileName) {
+        Utility.logDebug(TAG, "onTransferRequested: transId (%d), filename (%s)", transId,
+                fileName);
+        synchronized (this) {
+            if (mFileTransfer == null) {
+                return;
+            }
+            if (mRunning.size() < mMaxConcurrent) {
+                startLocked(new Request(transId, fileName));
+            } else if (mQueue.size() < mMaxQueued) {
+                mQueue.addLast(new Request(transId, fileName));
+                Utility.logDebug(TAG, "transfer (%d) queued, %d waiting", transId, mQueue.size());
+            } else {
+                Utility.logError(TAG, "transfer queue is full, reject (%d)", transId);
+                mFileTransfer.reject(transId);
+            }
+        }
+    }
+
+    @Override
+    public void onProgressChanged(int transId, int progress) {
+        int runningCount;
+        int queuedCount;
+        int mean;
+        synchronized (this) {
+            if (mRunning.get(transId) == null) {
+                return;
+            }
+            mProgress.put(transId, progress);
+            if (mThumbnailSearches.indexOfKey(transId) >= 0
+                    && mThumbnailSearches.get(transId) == false) {
+                mThumbnailSearches.put(transId, true);
+                postThumbnailSearch(transId, mRunning.get(transId));
+            }
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastProgressAt < PROGRESS_INTERVAL_MS) {
+                return;
+            }
+            mean = getMeanProgressLocked();
+            if (mean == mLastReportedProgress) {
+                return;
+            }
+            mLastProgressAt = now;
+            mLastReportedProgress = mean;
+            runningCount = mRunning.size();
+            queuedCount = mQueue.size();
+        }
+        mListener.onTransferProgress(runningCount, queuedCount, mean);
+    }
+
+    @Override
+    public void onTransferCompleted(final int transId, String fileName, final int errorCode) {
+        Utility.logDebug(TAG, "onTransferCompleted: transId (%d), errorCode (%d)", transId,
+                errorCode);
+        final File part;
+        synchronized (this) {
+            part = mRunning.get(transId);
+            if (part == null) {
+                return;
+            }
+            mRunning.remove(transId);
+            mProgress.delete(transId);
+            mThumbnailSearches.delete(transId);
+            mLastReportedProgress = -1;
+            while (mRunning.size() < mMaxConcurrent && mQueue.isEmpty() == false) {
+                startLocked(mQueue.pollFirst());
+            }
+        }
+        mStoreHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (errorCode != SAFileTransfer.ERROR_NONE) {
+                    part.delete();
+                    getThumbnailFile(part).delete();
+                    mListener.onTransferFailed(transId, errorCode);
+                    return;
+                }
+                File file = store(part);
+                if (file == null) {
+                    getThumbnailFile(part).delete();
+                    mListener.onTransferFailed(transId, SAFileTransfer.ERROR_FILE_IO);
+                    return;
+                }
+                enforceQuota(file);
+                mListener.onFileReceived(transId, file);
+                /* the full image replaces the thumbnail, which would only eat into the quota */
+                getThumbnailFile(part).delete();
+            }
+        });
+    }
+
+    private void startLocked(Request request) {
+        if (mDirectory.isDirectory() == false && mDirectory.mkdirs() == false) {
+            Utility.logError(TAG, "cannot create %s, reject (%d)", mDirectory.getPath(),
+                    request.transId);
+            mFileTransfer.reject(request.transId);
+            return;
+        }
+        File part = new File(mDirectory, request.transId + "-" + (mPartSequence++) + "-"
+                + System.currentTimeMillis() + getExtension(request.fileName) + PART_SUFFIX);
+        mRunning.put(request.transId, part);
+        mProgress.put(request.transId, 0);
+        if (isJpeg(request.fileName)) {
+            mThumbnailSearches.put(request.transId, false);
+        }
+        mFileTransfer.receive(request.transId, part.getAbsolutePath());
+    }
+
+    private void postThumbnailSearch(final int transId, final File part) {
+        mStoreHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                searchThumbnail(transId, part);
+            }
+        });
+    }
+
+    /**
+     * Looks for the thumbnail in what has arrived of {@code part} and reports it once found.
+     * Store thread only, so the report comes before the one of the complete file.
+     */
+    private void searchThumbnail(int transId, File part) {
+        int[] result = new int[1];
+        byte[] thumbnail;
+        try {
+            thumbnail = ExifThumbnail.read(part, result);
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot read thumbnail of %s", part);
+            result[0] = ExifThumbnail.NONE;
+            thumbnail = null;
+        }
+        synchronized (this) {
+            if (mRunning.get(transId) != part) {
+                return;
+            }
+            if (result[0] == ExifThumbnail.NEED_MORE) {
+                /* try again on the next progress report */
+                mThumbnailSearches.put(transId, false);
+                return;
+            }
+            mThumbnailSearches.delete(transId);
+        }
+        if (thumbnail == null) {
+            Utility.logDebug(TAG, "transfer (%d) has no thumbnail", transId);
+            return;
+        }
+        File file = getThumbnailFile(part);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(thumbnail);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot write thumbnail");
+            file.delete();
+            return;
+        }
+        Utility.logDebug(TAG, "transfer (%d) thumbnail of %d bytes", transId, thumbnail.length);
+        mListener.onThumbnailReceived(transId, file);
+    }
+
+    private int getMeanProgressLocked() {
+        int count = mProgress.size();
+        if (count == 0) {
+            return 0;
+        }
+        int sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += mProgress.valueAt(i);
+        }
+        return sum / count;
+    }
+
+    /**
+     * Renames a finished part to its content hash. Store thread only.
+     *
+     * @return the stored file, or null if it could not be read or renamed
+     */
+    private File store(File part) {
+        String hash;
+        try {
+            hash = hashFile(part);
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot hash %s", part);
+            part.delete();
+            return null;
+        }
+        String partName = part.getName();
+        String name = partName.substring(0, partName.length() - PART_SUFFIX.length());
+        File file = new File(mDirectory, hash + getExtension(name));
+        if (file.exists()) {
+            /* same content was received before, keep the old copy and mark it as fresh */
+            part.delete();
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+        if (part.renameTo(file) == false) {
+            Utility.logError(TAG, "cannot rename %s", part.getPath());
+            part.delete();
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Deletes the least recently received files until the directory fits in the quota.
+     * {@code keep} is never deleted. Store thread only.
+     */
+    private void enforceQuota(File keep) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mQuotaBytes) {
+            return;
+        }
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return modified[lhs] < modified[rhs] ? -1
+                        : (modified[lhs] == modified[rhs] ? 0 : 1);
+            }
+        });
+        for (Integer index : order) {
+            if (total <= mQuotaBytes) {
+                break;
+            }
+            File file = files[index];
+            if (file.equals(keep) || file.getName().endsWith(PART_SUFFIX)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                Utility.logDebug(TAG, "quota exceeded, deleted %s", file.getName());
+            }
+        }
+    }
+
+    /* parts left by a previous process can never complete, their thumbnails were shown */
+    private void deleteStaleParts() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(THUMBNAIL_SUFFIX)) {
+                file.delete();
+            } else if (name.endsWith(PART_SUFFIX) && isRunning(file) == false) {
+                file.delete();
+            }
+        }
+    }
+
+    private synchronized boolean isRunning(File part) {
+        for (int i = 0; i < mRunning.size(); i++) {
+            if (mRunning.valueAt(i).equals(part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static File getThumbnailFile(File part) {
+        String name = part.getName();
+        return new File(part.getParentFile(),
+                name.substring(0, name.length() - PART_SUFFIX.length()) + THUMBNAIL_SUFFIX);
+    }
+
+    static boolean isJpeg(String fileName) {
+        String extension = getExtension(fileName);
+        return ".jpg".equalsIgnoreCase(extension) || ".jpeg".equalsIgnoreCase(extension);
+    }
+
+    static String hashFile(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] bytes = digest.digest();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    static String getExtension(String fileName) {
+        if (fileName == null) {
+            return "";
+        }
+        int slash = fileName.lastIndexOf('/');
+        int dot = fileName.lastIndexOf('.');
+        if (dot <= slash + 1 || fileName.length() - dot > 6) {
+            return "";
+        }
+        return fileName.substring(dot);
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import android.os.SystemClock;
+
+import com.samsung.example.samsungaccessoryprovider.utils.Metrics;
+import com.samsung.example.samsungaccessoryprovider.utils.Utility;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates watches streaming to the provider, to measure how much the pipeline to the linked
+ * app sustains without real devices.
+ * <p>
+ * Each simulated peer runs on its own thread, like the SDK callback thread of a connection,
+ * and hands heartbeats, step counts, texts and image files to a {@link Target} that takes the
+ * same path as data received from a watch. Messages are paced by a {@link Profile}: evenly,
+ * in bursts, or with a rate that ramps up over the run.
+ * <p>
+ * The time each message spends in the target is recorded in the {@code load.pipeline} metrics
+ * stage, over all runs. That covers this process only: texts end with {@link #SENT_AT_MARKER}
+ * and the time they were sent, so the linked app records the latency up to its message
+ * receiver in its own {@code load.endToEnd} stage. {@link #dump} prints the achieved throughput
+ * of the last run, the messages the target held in the sample batcher or the outbox instead of
+ * delivering them, those that could not be forwarded, and those sent late because the target
+ * could not keep up.
+ * <p>
+ * Nothing here needs a device apart from the {@link ImageEncoder}, so the generator also runs
+ * on a plain JVM against a {@link Target} built from the codec, batcher and send queue.
+ */
+public class LoadGenerator {
+    private static final String TAG = LoadGenerator.class.getSimpleName();
+    /* a message more than this behind its schedule means the target is saturated */
+    private static final long LATE_NANOS = 1000000L;
+    private static final double[] DUMP_PERCENTILES = { 50, 90, 99 };
+
+    /** Messages evenly spaced at the profile rate. */
+    public static final int SHAPE_STEADY = 0;
+    /** {@link Profile#burstSize} messages back to back, at the profile rate on average. */
+    public static final int SHAPE_BURST = 1;
+    /** Rate rising linearly from zero to the profile rate over the run. */
+    public static final int SHAPE_RAMP = 2;
+
+    private static final int KIND_HEARTBEAT = 0;
+    private static final int KIND_STEPS = 1;
+    private static final int KIND_TEXT = 2;
+    private static final int KIND_FILE = 3;
+    private static final int KIND_COUNT = 4;
+
+    /** Texts end with this and the {@link SystemClock#elapsedRealtimeNanos} they were sent at. */
+    public static final String SENT_AT_MARKER = " sent-at=";
+
+    /** Handed to the linked app. */
+    public static final int RESULT_DELIVERED = 0;
+    /** Held by the sample batcher, to be delivered with the next batch. */
+    public static final int RESULT_BATCHED = 1;
+    /** Kept in the outbox because the linked app could not take it. */
+    public static final int RESULT_STORED = 2;
+    /** Lost. */
+    public static final int RESULT_FAILED = 3;
+
+    public interface Target {
+        /**
+         * Handles {@code data} as if {@code peerId} had sent it.
+         *
+         * @return one of the {@code RESULT_} constants
+         */
+        int receive(String peerId, int type, byte[] data);
+
+        /**
+         * Handles {@code file} as if {@code peerId} had transferred it.
+         *
+         * @return one of the {@code RESULT_} constants
+         */
+        int receiveFile(String peerId, File file);
+    }
+
+    public interface ImageEncoder {
+        /**
+         * @return a JPEG image of {@code size} by {@code size} pixels
+         */
+        byte[] encode(int size);
+    }
+
+    /** What every simulated peer sends. Rates are per peer. */
+    public static class Profile {
+        public int peers = 1;
+        public double heartbeatHz = 1;
+        public double stepsHz = 1;
+        public double textHz = 0;
+        public double fileHz = 0;
+        /** width and height of the generated images */
+        public int imageSize = 640;
+        public int shape = SHAPE_STEADY;
+        public int burstSize = 10;
+        public long durationMs = 10000;
+        /** WireCodec frames instead of JSON */
+        public boolean binary = true;
+
+        double getRate() {
+            return heartbeatHz + stepsHz + textHz + fileHz;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "peers=%d heartbeat=%.1fHz steps=%.1fHz text=%.1fHz file=%.1fHz shape=%d"
+                            + " burst=%d duration=%dms binary=%b",
+                    peers, heartbeatHz, stepsHz, textHz, fileHz, shape, burstSize, durationMs,
+                    binary);
+        }
+    }
+
+    private final Target mTarget;
+    private final File mFileDirectory;
+    private final ImageEncoder mImageEncoder;
+    private final Metrics mMetrics = Metrics.getDefault();
+    private final int mStage = mMetrics.getStage("load.pipeline");
+    private final AtomicLong mSentCount = new AtomicLong();
+    private final AtomicLong mBatchedCount = new AtomicLong();
+    private final AtomicLong mStoredCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final AtomicLong mLateCount = new AtomicLong();
+    private final AtomicLong mByteCount = new AtomicLong();
+    private final AtomicInteger mActivePeers = new AtomicInteger();
+
+    /* guarded by this */
+    private Profile mProfile = null;
+    private Thread[] mThreads = null;
+    private long mStartedAt = 0;
+    private long mStoppedAt = 0;
+    private volatile boolean mIsRunning = false;
+    private byte[] mImage = null;
+
+    /**
+     * @param fileDirectory where generated files are written, readable by the linked app
+     * @param imageEncoder creates the content of the generated files
+     */
+    public LoadGenerator(Target target, File fileDirectory, ImageEncoder imageEncoder) {
+        mTarget = target;
+        mFileDirectory = fileDirectory;
+        mImageEncoder = imageEncoder;
+    }
+
+    /**
+     * Starts a run with {@code profile}, stopping the previous one first.
+     */
+    public void start(Profile profile) {
+        stop();
+        synchronized (this) {
+            Utility.logInfo(TAG, "start: " + profile);
+            if (profile.fileHz > 0) {
+                mImage = mImageEncoder.encode(profile.imageSize);
+                if (mFileDirectory.isDirectory() == false && mFileDirectory.mkdirs() == false) {
+                    Utility.logError(TAG, "cannot create %s", mFileDirectory.getPath());
+                }
+            }
+            mProfile = profile;
+            mSentCount.set(0);
+            mBatchedCount.set(0);
+            mStoredCount.set(0);
+            mFailedCount.set(0);
+            mLateCount.set(0);
+            mByteCount.set(0);
+            mIsRunning = true;
+            mStartedAt = System.nanoTime();
+            mStoppedAt = 0;
+            mActivePeers.set(profile.peers);
+            mThreads = new Thread[profile.peers];
+            for (int i = 0; i < profile.peers; i++) {
+                final String peerId = "load-" + i;
+                final Profile peerProfile = profile;
+                mThreads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runPeer(peerId, peerProfile);
+                    }
+                }, "LoadPeer-" + i);
+                mThreads[i].start();
+            }
+        }
+    }
+
+    /**
+     * Stops the running peers, waits for them and deletes the generated files.
+     */
+    public void stop() {
+        Thread[] threads;
+        synchronized (this) {
+            if (mThreads == null) {
+                return;
+            }
+            mIsRunning = false;
+            threads = mThreads;
+            mThreads = null;
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        synchronized (this) {
+            if (mStoppedAt == 0) {
+                mStoppedAt = System.nanoTime();
+            }
+        }
+        deleteFiles();
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        if (mProfile == null) {
+            writer.println("Load: never run");
+            return;
+        }
+        long endedAt = mStoppedAt != 0 ? mStoppedAt : System.nanoTime();
+        double seconds = (endedAt - mStartedAt) / 1e9;
+        long sent = mSentCount.get();
+        writer.println(String.format(Locale.US,
+                "Load: %s %s", mIsRunning ? "running" : "stopped", mProfile));
+        writer.println(String.format(Locale.US,
+                "  %.1fs sent=%d batched=%d stored=%d failed=%d late=%d",
+                seconds, sent, mBatchedCount.get(), mStoredCount.get(), mFailedCount.get(),
+                mLateCount.get()));
+        writer.println(String.format(Locale.US,
+                "  throughput=%.1f msg/s %.1f KB/s (target %.1f msg/s)",
+                seconds > 0 ? sent / seconds : 0,
+                seconds > 0 ? mByteCount.get() / seconds / 1024 : 0,
+                mProfile.getRate() * mProfile.peers));
+        Metrics.Snapshot snapshot = mMetrics.snapshot();
+        StringBuilder line = new StringBuilder("  latency");
+        for (double percentile : DUMP_PERCENTILES) {
+            line.append(String.format(Locale.US, " p%.0f=%.3fms", percentile,
+                    snapshot.getPercentileNanos("load.pipeline", Metrics.Snapshot.ALL_TYPES,
+                            percentile) / 1e6));
+        }
+        line.append(String.format(Locale.US, " max=%.3fms",
+                snapshot.getMaxNanos("load.pipeline", Metrics.Snapshot.ALL_TYPES) / 1e6));
+        writer.println(line);
+    }
+
+    private void runPeer(String peerId, Profile profile) {
+        double rate = profile.getRate();
+        double[] weights = { profile.heartbeatHz, profile.stepsHz, profile.textHz,
+                profile.fileHz };
+        double[] credits = new double[KIND_COUNT];
+        WireCodec.Frame frame = new WireCodec.Frame();
+        long startedAt = System.nanoTime();
+        long endAt = startedAt + profile.durationMs * 1000000L;
+        int burstSize = profile.shape == SHAPE_BURST ? Math.max(1, profile.burstSize) : 1;
+        long sequence = 0;
+        while (mIsRunning && rate > 0) {
+            long dueAt = startedAt + getOffsetNanos(profile, rate, sequence);
+            if (dueAt >= endAt) {
+                break;
+            }
+            long now = System.nanoTime();
+            if (dueAt > now) {
+                try {
+                    Thread.sleep((dueAt - now) / 1000000L, (int) ((dueAt - now) % 1000000L));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            } else if (now - dueAt > LATE_NANOS) {
+                mLateCount.addAndGet(burstSize);
+            }
+            for (int i = 0; i < burstSize && mIsRunning; i++) {
+                send(peerId, profile, nextKind(weights, credits, rate), sequence, frame);
+                sequence++;
+            }
+        }
+        if (mActivePeers.decrementAndGet() == 0) {
+            synchronized (this) {
+                mIsRunning = false;
+                mStoppedAt = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * @return when message {@code sequence} is due, relative to the start of the run
+     */
+    private static long getOffsetNanos(Profile profile, double rate, long sequence) {
+        if (profile.shape == SHAPE_RAMP) {
+            /* n(t) = rate * t^2 / (2 * duration), solved for t */
+            double durationSeconds = profile.durationMs / 1000.0;
+            return (long) (Math.sqrt(2 * durationSeconds * sequence / rate) * 1e9);
+        }
+        return (long) (sequence * 1e9 / rate);
+    }
+
+    /* smooth weighted round robin, so each kind is spread evenly over the run */
+    private static int nextKind(double[] weights, double[] credits, double total) {
+        int best = 0;
+        for (int i = 0; i < KIND_COUNT; i++) {
+            credits[i] += weights[i];
+            if (credits[i] > credits[best]) {
+                best = i;
+            }
+        }
+        credits[best] -= total;
+        return best;
+    }
+
+    private void send(String peerId, Profile profile, int kind, long sequence,
+            WireCodec.Frame frame) {
+        long startedAt = System.nanoTime();
+        int result;
+        int type;
+        int bytes;
+        if (kind == KIND_FILE) {
+            type = SamsungAccessoryProviderService.TYPE_FILE_PATH;
+            File file = writeImage(peerId, sequence);
+            if (file == null) {
+                mFailedCount.incrementAndGet();
+                return;
+            }
+            bytes = mImage.length;
+            startedAt = System.nanoTime();
+            result = mTarget.receiveFile(peerId, file);
+        } else {
+            frame.clear();
+            switch (kind) {
+                case KIND_HEARTBEAT:
+                    frame.type = SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT;
+                    frame.intValue = 60 + (int) (sequence % 40);
+                    break;
+                case KIND_STEPS:
+                    frame.type = SamsungAccessoryProviderService.TYPE_STEPS_COUNT;
+                    frame.intValue = (int) sequence;
+                    break;
+                default:
+                    frame.type = SamsungAccessoryProviderService.TYPE_TEXT;
+                    frame.text = peerId + " message " + sequence + SENT_AT_MARKER
+                            + SystemClock.elapsedRealtimeNanos();
+                    break;
+            }
+            type = frame.type;
+            byte[] data;
+            if (profile.binary) {
+                data = WireCodec.encode(frame);
+            } else {
+                try {
+                    data = WireCodec.toJSONObject(frame).toString().getBytes();
+                } catch (JSONException e) {
+                    mFailedCount.incrementAndGet();
+                    return;
+                }
+            }
+            bytes = data.length;
+            result = mTarget.receive(peerId, type, data);
+        }
+        mMetrics.record(mStage, type, peerId, System.nanoTime() - startedAt, bytes);
+        mSentCount.incrementAndGet();
+        mByteCount.addAndGet(bytes);
+        if (result == RESULT_BATCHED) {
+            mBatchedCount.incrementAndGet();
+        } else if (result == RESULT_STORED) {
+            mStoredCount.incrementAndGet();
+        } else if (result == RESULT_FAILED) {
+            mFailedCount.incrementAndGet();
+        }
+    }
+
+    private File writeImage(String peerId, long sequence) {
+        File file = new File(mFileDirectory, peerId + "-" + sequence + ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(mImage);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot write %s", file.getPath());
+            file.delete();
+            return null;
+        }
+        return file;
+    }
+
+    private void deleteFiles() {
+        File[] files = mFileDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+}
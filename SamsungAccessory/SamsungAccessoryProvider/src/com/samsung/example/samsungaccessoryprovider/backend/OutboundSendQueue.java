@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import com.samsung.example.samsungaccessoryprovider.utils.Utility;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Sends outgoing channel data from a dedicated writer thread.
+ * <p>
+ * Control, sensor and bulk messages wait in separate bounded lanes, served in that order, so a
+ * sample only waits for the message being written and not for every text queued before it.
+ * A pending message is replaced in place when another one with the same coalesce key is
+ * queued. What happens when a lane is full is set by {@link OverflowPolicy}.
+ */
+public class OutboundSendQueue {
+    private static final String TAG = OutboundSendQueue.class.getSimpleName();
+
+    /* in the order the writer serves them */
+    public static final int LANE_CONTROL = 0;
+    public static final int LANE_SENSOR = 1;
+    public static final int LANE_BULK = 2;
+    public static final int NO_COALESCE = -1;
+
+    public enum OverflowPolicy {
+        /** Drop the oldest pending message of the lane to make room. */
+        DROP_OLDEST,
+        /** Wait on the calling thread until there is room; the caller must hold no other lock. */
+        BLOCK,
+        /** Refuse the new message. */
+        REJECT
+    }
+
+    public interface Transport {
+        void send(int channelId, byte[] data) throws IOException;
+    }
+
+    private static class Item {
+        int channelId;
+        byte[] data;
+        int coalesceKey;
+        long enqueuedAtNanos;
+    }
+
+    private final String mName;
+    private final Transport mTransport;
+    private final ArrayDeque<Item>[] mLanes;
+    private final int[] mCapacities;
+    private OverflowPolicy mPolicy;
+    private Thread mWriter = null;
+    private boolean mIsRunning = false;
+
+    private long mSentCount;
+    private long mDroppedCount;
+    private long mRejectedCount;
+    private long mFailedCount;
+    private long mCoalescedCount;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+
+    @SuppressWarnings("unchecked")
+    public OutboundSendQueue(String name, Transport transport, int controlCapacity,
+            int sensorCapacity, int bulkCapacity, OverflowPolicy policy) {
+        mName = name;
+        mTransport = transport;
+        mLanes = new ArrayDeque[] {
+                new ArrayDeque<Item>(controlCapacity), new ArrayDeque<Item>(sensorCapacity),
+                new ArrayDeque<Item>(bulkCapacity)
+        };
+        mCapacities = new int[] { controlCapacity, sensorCapacity, bulkCapacity };
+        mPolicy = policy;
+    }
+
+    public synchronized void setOverflowPolicy(OverflowPolicy policy) {
+        mPolicy = policy;
+        notifyAll();
+    }
+
+    public synchronized void start() {
+        if (mIsRunning) {
+            return;
+        }
+        mIsRunning = true;
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, mName);
+        mWriter.start();
+    }
+
+    /**
+     * Stops the writer thread. Pending messages are discarded.
+     */
+    public synchronized void stop() {
+        mIsRunning = false;
+        for (ArrayDeque<Item> lane : mLanes) {
+            mDroppedCount += lane.size();
+            lane.clear();
+        }
+        mWriter = null;
+        notifyAll();
+    }
+
+    /**
+     * Queues {@code data} for the writer thread.
+     *
+     * @param coalesceKey key of a control message that replaces a pending one with the same key,
+     *            or {@link #NO_COALESCE}
+     * @return false if the message was rejected
+     */
+    public synchronized boolean enqueue(int lane, int channelId, byte[] data, int coalesceKey) {
+        ArrayDeque<Item> queue = mLanes[lane];
+        if (coalesceKey != NO_COALESCE) {
+            for (Item pending : queue) {
+                if (pending.coalesceKey == coalesceKey && pending.channelId == channelId) {
+                    pending.data = data;
+                    mCoalescedCount++;
+                    return true;
+                }
+            }
+        }
+        while (mIsRunning && queue.size() >= mCapacities[lane]) {
+            if (mPolicy == OverflowPolicy.DROP_OLDEST) {
+                queue.pollFirst();
+                mDroppedCount++;
+            } else if (mPolicy == OverflowPolicy.REJECT) {
+                mRejectedCount++;
+                return false;
+            } else {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mRejectedCount++;
+                    return false;
+                }
+            }
+        }
+        if (!mIsRunning) {
+            mRejectedCount++;
+            return false;
+        }
+        Item item = new Item();
+        item.channelId = channelId;
+        item.data = data;
+        item.coalesceKey = coalesceKey;
+        item.enqueuedAtNanos = System.nanoTime();
+        queue.addLast(item);
+        notifyAll();
+        return true;
+    }
+
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (ArrayDeque<Item> lane : mLanes) {
+            depth += lane.size();
+        }
+        return depth;
+    }
+
+    public synchronized int getQueueDepth(int lane) {
+        return mLanes[lane].size();
+    }
+
+    public synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return mean time from enqueue until the transport returned, in nanoseconds
+     */
+    public synchronized long getAverageSendLatencyNanos() {
+        long completed = mSentCount + mFailedCount;
+        return completed == 0 ? 0 : mTotalLatencyNanos / completed;
+    }
+
+    public synchronized long getMaxSendLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    /* guarded by this */
+    private Item pollLocked() {
+        for (ArrayDeque<Item> lane : mLanes) {
+            Item item = lane.pollFirst();
+            if (item != null) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private void writeLoop() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            Item item;
+            synchronized (this) {
+                while (true) {
+                    if (mWriter != self) {
+                        return;
+                    }
+                    item = pollLocked();
+                    if (item != null) {
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                notifyAll();
+            }
+
+            boolean isSent = true;
+            try {
+                mTransport.send(item.channelId, item.data);
+            } catch (IOException e) {
+                isSent = false;
+                Utility.logError(TAG, e, "cannot send on channel %d", item.channelId);
+            }
+            long latency = System.nanoTime() - item.enqueuedAtNanos;
+
+            synchronized (this) {
+                if (isSent) {
+                    mSentCount++;
+                } else {
+                    mFailedCount++;
+                }
+                mTotalLatencyNanos += latency;
+                if (latency > mMaxLatencyNanos) {
+                    mMaxLatencyNanos = latency;
+                }
+            }
+        }
+    }
+}
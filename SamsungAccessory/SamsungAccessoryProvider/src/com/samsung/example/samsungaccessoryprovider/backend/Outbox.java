@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only journal of records that could not be delivered yet, in a memory-mapped file.
+ * <p>
+ * Each record is a 4-byte length, a kind byte, an 8-byte wall-clock timestamp and the payload.
+ * A record is written before the tail in the header moves past it, so a process that dies
+ * mid-append leaves the journal as it was. Records are replayed oldest first; records older
+ * than the time to live are skipped, and a record refused on every one of its delivery attempts
+ * is discarded so it does not hold back the ones behind it. When an append does not fit, the
+ * oldest records are dropped and the live ones are moved to the start of the file.
+ */
+public class Outbox {
+    public interface Reader {
+        /**
+         * @return false to stop the replay and keep this record for the next one, unless it has
+         *         used up its delivery attempts
+         */
+        boolean onRecord(byte kind, byte[] payload);
+    }
+
+    private static final int MAGIC = 0x4F424F58;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 12;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_HEADER_SIZE = 13;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private long mTtlMs;
+    private final int mMaxAttempts;
+    /* failed deliveries of the record at the head, not kept across processes */
+    private int mHeadAttempts = 0;
+    /* offsets into the record area */
+    private int mHead;
+    private int mTail;
+    private long mAppendedCount = 0;
+    private long mReplayedCount = 0;
+    private long mDroppedCount = 0;
+    private long mExpiredCount = 0;
+    private long mDiscardedCount = 0;
+
+    /**
+     * Opens the journal in {@code file}, keeping its records if it was written with the same
+     * capacity.
+     *
+     * @param capacity bytes available for records, headers included
+     * @param maxAttempts failed deliveries after which a record is discarded
+     */
+    public Outbox(File file, int capacity, long ttlMs, int maxAttempts) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(HEADER_SIZE + capacity);
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + capacity);
+        } finally {
+            raf.close();
+        }
+        mCapacity = capacity;
+        mTtlMs = ttlMs;
+        mMaxAttempts = maxAttempts;
+        mHead = mBuffer.getInt(HEAD_OFFSET);
+        mTail = mBuffer.getInt(TAIL_OFFSET);
+        if (mBuffer.getInt(MAGIC_OFFSET) != MAGIC || mBuffer.getInt(CAPACITY_OFFSET) != capacity
+                || isConsistent() == false) {
+            mBuffer.putInt(CAPACITY_OFFSET, capacity);
+            setPositions(0, 0);
+            mBuffer.putInt(MAGIC_OFFSET, MAGIC);
+        }
+    }
+
+    public synchronized void setTtl(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    /**
+     * @return false if the record is larger than the whole journal
+     */
+    public synchronized boolean append(byte kind, byte[] payload) {
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (size > mCapacity) {
+            mDroppedCount++;
+            return false;
+        }
+        if (mTail + size > mCapacity) {
+            while (mCapacity - (mTail - mHead) < size) {
+                mHead += RECORD_HEADER_SIZE + mBuffer.getInt(HEADER_SIZE + mHead);
+                mHeadAttempts = 0;
+                mDroppedCount++;
+            }
+            compact();
+        }
+        int pos = HEADER_SIZE + mTail;
+        mBuffer.putInt(pos, payload.length);
+        mBuffer.put(pos + 4, kind);
+        mBuffer.putLong(pos + 5, System.currentTimeMillis());
+        mBuffer.position(pos + RECORD_HEADER_SIZE);
+        mBuffer.put(payload);
+        setPositions(mHead, mTail + size);
+        mAppendedCount++;
+        return true;
+    }
+
+    /**
+     * Hands up to {@code maxRecords} records to {@code reader}, oldest first, and removes the
+     * ones it accepted.
+     *
+     * @return the number of records accepted
+     */
+    public synchronized int replay(int maxRecords, Reader reader) {
+        long oldest = System.currentTimeMillis() - mTtlMs;
+        int count = 0;
+        while (mHead < mTail && count < maxRecords) {
+            int pos = HEADER_SIZE + mHead;
+            int length = mBuffer.getInt(pos);
+            byte kind = mBuffer.get(pos + 4);
+            long timestamp = mBuffer.getLong(pos + 5);
+            int next = mHead + RECORD_HEADER_SIZE + length;
+            if (timestamp < oldest) {
+                mExpiredCount++;
+            } else {
+                byte[] payload = new byte[length];
+                mBuffer.position(pos + RECORD_HEADER_SIZE);
+                mBuffer.get(payload);
+                if (reader.onRecord(kind, payload)) {
+                    count++;
+                    mReplayedCount++;
+                } else if (++mHeadAttempts < mMaxAttempts) {
+                    break;
+                } else {
+                    mDiscardedCount++;
+                }
+            }
+            mHeadAttempts = 0;
+            setPositions(next, mTail);
+        }
+        if (mHead == mTail) {
+            setPositions(0, 0);
+        }
+        return count;
+    }
+
+    /**
+     * Writes dirty pages back to the file.
+     */
+    public synchronized void close() {
+        mBuffer.force();
+    }
+
+    public synchronized String getStats() {
+        return "pending=" + (mTail - mHead) + "B appended=" + mAppendedCount + " replayed="
+                + mReplayedCount + " dropped=" + mDroppedCount + " expired=" + mExpiredCount
+                + " discarded=" + mDiscardedCount;
+    }
+
+    /* a compaction cut short leaves records that no longer chain up to the tail */
+    private boolean isConsistent() {
+        if (mHead < 0 || mHead > mTail || mTail > mCapacity) {
+            return false;
+        }
+        int pos = mHead;
+        while (pos < mTail) {
+            if (mTail - pos < RECORD_HEADER_SIZE) {
+                return false;
+            }
+            int length = mBuffer.getInt(HEADER_SIZE + pos);
+            if (length < 0 || length > mTail - pos - RECORD_HEADER_SIZE) {
+                return false;
+            }
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        return true;
+    }
+
+    private void compact() {
+        int length = mTail - mHead;
+        if (mHead == 0) {
+            return;
+        }
+        byte[] live = new byte[length];
+        mBuffer.position(HEADER_SIZE + mHead);
+        mBuffer.get(live);
+        mBuffer.position(HEADER_SIZE);
+        mBuffer.put(live);
+        setPositions(0, length);
+    }
+
+    private void setPositions(int head, int tail) {
+        mHead = head;
+        mTail = tail;
+        mBuffer.putInt(HEAD_OFFSET, head);
+        mBuffer.putInt(TAIL_OFFSET, tail);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+
+import com.samsung.example.samsungaccessoryprovider.utils.Utility;
+
+/**
+ * Remembers whether one package is installed, so the package manager is asked once instead of
+ * on every check. Install, update and removal broadcasts for the package drop the cached answer.
+ */
+public class PackageInstallCache extends BroadcastReceiver {
+    private static final String TAG = PackageInstallCache.class.getSimpleName();
+
+    public interface Listener {
+        void onPackageChanged(String packageName, boolean isInstalled);
+    }
+
+    private static final int UNKNOWN = 0;
+    private static final int INSTALLED = 1;
+    private static final int NOT_INSTALLED = 2;
+
+    private final Context mContext;
+    private final String mPackageName;
+    private final Listener mListener;
+    private volatile int mState = UNKNOWN;
+
+    public PackageInstallCache(Context context, String packageName, Listener listener) {
+        mContext = context;
+        mPackageName = packageName;
+        mListener = listener;
+    }
+
+    public void register() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(this, filter);
+    }
+
+    public void unregister() {
+        mContext.unregisterReceiver(this);
+    }
+
+    public boolean isInstalled() {
+        int state = mState;
+        if (state == UNKNOWN) {
+            state = query() ? INSTALLED : NOT_INSTALLED;
+            mState = state;
+        }
+        return state == INSTALLED;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        if (data == null || mPackageName.equals(data.getSchemeSpecificPart()) == false) {
+            return;
+        }
+        Utility.logDebug(TAG, "%s: %s", intent.getAction(), mPackageName);
+        mState = UNKNOWN;
+        if (mListener != null) {
+            mListener.onPackageChanged(mPackageName, isInstalled());
+        }
+    }
+
+    private boolean query() {
+        try {
+            mContext.getPackageManager().getPackageInfo(mPackageName, 0);
+            return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+}
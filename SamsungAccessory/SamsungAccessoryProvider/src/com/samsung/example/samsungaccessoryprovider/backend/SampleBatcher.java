@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import android.os.Handler;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Collects heartbeat and step samples and hands them over in batches. A batch holds samples of
+ * one type from one peer, so the linked app can keep a series per watch.
+ * <p>
+ * A batch is flushed when it reaches the max size or when its oldest sample is older than the
+ * max latency, whichever comes first. A max size of 1 or less turns batching off.
+ * <p>
+ * Full batches go to a queue in the order they were cut, and the sink is called for one batch
+ * at a time under a flush lock. So batches arrive in order whether a size flush on the adding
+ * thread, the timer on the handler thread or {@link #flush} hands them over.
+ */
+public class SampleBatcher {
+    public interface Sink {
+        void onSampleBatch(String peerId, int type, long[] timestamps, int[] values);
+    }
+
+    private static final int[] BATCHED_TYPES = {
+            SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT,
+            SamsungAccessoryProviderService.TYPE_STEPS_COUNT
+    };
+
+    private final Handler mHandler;
+    private final Sink mSink;
+    /* the lanes of each peer in BATCHED_TYPES order, guarded by this */
+    private final HashMap<String, Lane[]> mLanes = new HashMap<String, Lane[]>();
+    /* held while calling the sink, so batches reach it one at a time and in queue order */
+    private final Object mFlushLock = new Object();
+    /* guarded by this */
+    private final ArrayDeque<Batch> mReady = new ArrayDeque<Batch>();
+    private int mMaxSize;
+    private long mMaxLatencyMs;
+
+    private static class Batch {
+        final String peerId;
+        final int type;
+        final long[] timestamps;
+        final int[] values;
+
+        Batch(String peerId, int type, long[] timestamps, int[] values) {
+            this.peerId = peerId;
+            this.type = type;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    private class Lane implements Runnable {
+        final String peerId;
+        final int type;
+        long[] timestamps;
+        int[] values;
+        int count;
+
+        Lane(String peerId, int type) {
+            this.peerId = peerId;
+            this.type = type;
+        }
+
+        @Override
+        public void run() {
+            synchronized (SampleBatcher.this) {
+                if (count == 0) {
+                    return;
+                }
+                mReady.add(take());
+            }
+            deliverReady();
+        }
+
+        /* called with the batcher locked */
+        Batch take() {
+            Batch batch = new Batch(peerId, type, Arrays.copyOf(timestamps, count),
+                    Arrays.copyOf(values, count));
+            count = 0;
+            return batch;
+        }
+    }
+
+    public SampleBatcher(Handler handler, int maxSize, long maxLatencyMs, Sink sink) {
+        mHandler = handler;
+        mSink = sink;
+        configure(maxSize, maxLatencyMs);
+    }
+
+    public void configure(int maxSize, long maxLatencyMs) {
+        synchronized (this) {
+            takeAllLocked();
+            mMaxSize = maxSize;
+            mMaxLatencyMs = maxLatencyMs;
+            for (Lane[] lanes : mLanes.values()) {
+                for (Lane lane : lanes) {
+                    allocateLocked(lane);
+                }
+            }
+        }
+        deliverReady();
+    }
+
+    public synchronized boolean isEnabled() {
+        return mMaxSize > 1;
+    }
+
+    public static boolean isBatchedType(int type) {
+        for (int batchedType : BATCHED_TYPES) {
+            if (batchedType == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues a sample of one of the batched types received from {@code peerId}, which may be
+     * null.
+     *
+     * @return false if batching is off or the type is not batched
+     */
+    public boolean add(String peerId, int type, int value) {
+        boolean isFull = false;
+        synchronized (this) {
+            if (mMaxSize <= 1) {
+                return false;
+            }
+            int index = -1;
+            for (int i = 0; i < BATCHED_TYPES.length; i++) {
+                if (BATCHED_TYPES[i] == type) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+            Lane[] lanes = mLanes.get(peerId);
+            if (lanes == null) {
+                lanes = new Lane[BATCHED_TYPES.length];
+                for (int i = 0; i < BATCHED_TYPES.length; i++) {
+                    lanes[i] = new Lane(peerId, BATCHED_TYPES[i]);
+                    allocateLocked(lanes[i]);
+                }
+                mLanes.put(peerId, lanes);
+            }
+            Lane lane = lanes[index];
+            lane.timestamps[lane.count] = System.currentTimeMillis();
+            lane.values[lane.count] = value;
+            lane.count++;
+            if (lane.count >= mMaxSize) {
+                mHandler.removeCallbacks(lane);
+                mReady.add(lane.take());
+                isFull = true;
+            } else if (lane.count == 1) {
+                mHandler.postDelayed(lane, mMaxLatencyMs);
+            }
+        }
+        if (isFull) {
+            deliverReady();
+        }
+        return true;
+    }
+
+    /**
+     * Hands over every pending sample right away. When this returns, every sample added before
+     * the call has reached the sink.
+     */
+    public void flush() {
+        synchronized (this) {
+            takeAllLocked();
+        }
+        deliverReady();
+    }
+
+    private void takeAllLocked() {
+        for (Lane[] lanes : mLanes.values()) {
+            for (Lane lane : lanes) {
+                if (lane.count > 0) {
+                    mHandler.removeCallbacks(lane);
+                    mReady.add(lane.take());
+                }
+            }
+        }
+    }
+
+    private void allocateLocked(Lane lane) {
+        int capacity = Math.max(mMaxSize, 1);
+        if (lane.timestamps == null || lane.timestamps.length < capacity) {
+            lane.timestamps = new long[capacity];
+            lane.values = new int[capacity];
+        }
+    }
+
+    private void deliverReady() {
+        synchronized (mFlushLock) {
+            while (true) {
+                Batch batch;
+                synchronized (this) {
+                    batch = mReady.poll();
+                }
+                if (batch == null) {
+                    return;
+                }
+                mSink.onSampleBatch(batch.peerId, batch.type, batch.timestamps, batch.values);
+            }
+        }
+    }
+}
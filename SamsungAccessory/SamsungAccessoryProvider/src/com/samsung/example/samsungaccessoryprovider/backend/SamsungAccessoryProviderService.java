@@ -18,13 +18,15 @@
 package com.samsung.example.samsungaccessoryprovider.backend;
 
 import android.content.Intent;
-import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.widget.Toast;
 
@@ -34,41 +36,197 @@ import com.samsung.android.sdk.accessory.SAAgent;
 import com.samsung.android.sdk.accessory.SAPeerAgent;
 import com.samsung.android.sdk.accessory.SASocket;
 import com.samsung.android.sdk.accessoryfiletransfer.SAFileTransfer;
-import com.samsung.android.sdk.accessoryfiletransfer.SAFileTransfer.EventListener;
 import com.samsung.android.sdk.accessoryfiletransfer.SAft;
+import com.samsung.example.samsungaccessoryprovider.BuildConfig;
 import com.samsung.example.samsungaccessoryprovider.R;
+import com.samsung.example.samsungaccessoryprovider.utils.LogRing;
+import com.samsung.example.samsungaccessoryprovider.utils.Metrics;
+import com.samsung.example.samsungaccessoryprovider.utils.ServiceLoopers;
 import com.samsung.example.samsungaccessoryprovider.utils.Utility;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SamsungAccessoryProviderService extends SAAgent {
     private static final String TAG = SamsungAccessoryProviderService.class.getSimpleName();
     private static final String SAMSUNG_ACCESSORY_LINKED_PACKAGE_NAME = "com.samsung.example.samsungaccessory";
     private static final String BUNDLE_DATA = "bundle_data";
+    private static final String BUNDLE_FRAME = "bundle_frame";
+    /* must match the serviceChannel ids in res/xml/accessoryservices.xml */
     private static final int SAMSUNGACCESSORY_CHANNEL_ID = 104;
+    private static final int SENSOR_CHANNEL_ID = 105;
+    private static final int CONTROL_CHANNEL_ID = 106;
     private static final int MSG_REGISTER_CLIENT = 1;
     private static final int MSG_UNREGISTER_CLIENT = 2;
     private static final int MSG_TO_SAMSUNGACCESSORYPROVIDERSERVICE = 3;
     private static final int MSG_TO_SAMSUNGACCESSORYSERVICE = 4;
+    private static final int MSG_SAMPLE_BATCH_TO_SAMSUNGACCESSORYSERVICE = 5;
+    private static final String BUNDLE_SAMPLE_TYPE = "sample_type";
+    private static final String BUNDLE_SAMPLE_TIMESTAMPS = "sample_timestamps";
+    private static final String BUNDLE_SAMPLE_VALUES = "sample_values";
+    /* the watch a message or sample batch came from, absent if unknown */
+    private static final String BUNDLE_PEER_ID = "peer_id";
+    /* kept well inside the 16-bit length of a KIND_PEER_MESSAGE, even in UTF-8 */
+    private static final int MAX_FORWARDED_PEER_ID_LENGTH = 1024;
+    private static final int MSG_SHARED_RING_TO_SAMSUNGACCESSORYSERVICE = 6;
+    private static final int MSG_RING_DOORBELL_TO_SAMSUNGACCESSORYSERVICE = 7;
+    private static final String BUNDLE_RING_FD = "ring_fd";
+    private static final String SHARED_RING_FILE_NAME = "ipc_ring";
+    private static final int SHARED_RING_CAPACITY = 64 * 1024;
+    private static final int OUTBOUND_CONTROL_CAPACITY = 16;
+    private static final int OUTBOUND_SENSOR_CAPACITY = 32;
+    private static final int OUTBOUND_BULK_CAPACITY = 64;
+    private static final int DEFAULT_BATCH_MAX_SIZE = 16;
+    private static final long DEFAULT_BATCH_MAX_LATENCY_MS = 250;
+    private static final String RECEIVED_FILES_DIRECTORY = "SamsungAccessory";
+    private static final long RECEIVED_FILES_QUOTA_BYTES = 64L * 1024 * 1024;
+    /**
+     * Release builds keep their recent log in memory instead of sending it to logcat.
+     * {@code dumpsys activity service <service> --log-ring} saves it in binary to
+     * {@link #LOG_RING_FILE_NAME} of the cache directory, see {@link LogRing#decode}.
+     */
+    private static final int LOG_RING_CAPACITY = 1024;
+    private static final String LOG_RING_FILE_NAME = "log.ring";
+    private static final String OUTBOX_FILE_NAME = "outbox";
+    private static final int OUTBOX_CAPACITY = 256 * 1024;
+    private static final long DEFAULT_OUTBOX_TTL_MS = 5 * 60 * 1000L;
+    private static final int OUTBOX_REPLAY_BATCH = 32;
+    private static final int OUTBOX_MAX_ATTEMPTS = 5;
+    private static final long OUTBOX_RETRY_MIN_MS = 500;
+    private static final long OUTBOX_RETRY_MAX_MS = 30 * 1000L;
+    /* what became of a message handed to the linked app */
+    private static final int FORWARD_DELIVERED = 0;
+    private static final int FORWARD_BATCHED = 1;
+    private static final int FORWARD_STORED = 2;
+    private static final int FORWARD_FAILED = 3;
+    private static final int MAX_CONCURRENT_TRANSFERS = 2;
+    private static final int MAX_QUEUED_TRANSFERS = 16;
+    /**
+     * Starts simulated watches in a debug build, for example:
+     * {@code adb shell am startservice -n <package>/.backend.SamsungAccessoryProviderService
+     * -a <action> --ei peers 8 --ed heartbeatHz 20 --ei shape 1}. Extras are the field names of
+     * {@link LoadGenerator.Profile}; results are in {@code dumpsys activity service}, the
+     * latency up to the message receiver in the dump of the linked app's service.
+     */
+    public static final String ACTION_LOAD_TEST =
+            "com.samsung.example.samsungaccessoryprovider.action.LOAD_TEST";
+    private static final String LOAD_FILES_DIRECTORY = "load";
+    private static final int LOAD_IMAGE_QUALITY = 80;
+    /**
+     * Starts or stops recording channel traffic in a debug build, with the boolean extra
+     * {@code enabled}. The trace is kept in {@link #TRACE_DIRECTORY} of the files directory.
+     */
+    public static final String ACTION_CAPTURE =
+            "com.samsung.example.samsungaccessoryprovider.action.CAPTURE";
+    /**
+     * Replays the recorded trace in a debug build, spaced as recorded if the boolean extra
+     * {@code realtime} is true and as fast as possible otherwise.
+     */
+    public static final String ACTION_REPLAY =
+            "com.samsung.example.samsungaccessoryprovider.action.REPLAY";
+    private static final String TRACE_DIRECTORY = "trace";
+    private static final int TRACE_FILE_SIZE = 1024 * 1024;
+    private static final int TRACE_FILE_COUNT = 4;
 
-    private boolean mBound = false;
-    private Messenger mSamsungAccessoryMessenger = null;
-    private final Messenger mMessenger = new Messenger(new IncomingHandler(this));
-    private SamsungAccessoryProviderConnection myConnection = null;
+    /**
+     * Where messages are handled unless {@link #ACTION_SET_THREADING_MODE} chose otherwise:
+     * messages from the linked app are parsed and routed to the watches on the inbound thread,
+     * and sample batches and outbox replays are sent to the linked app on the outbound thread.
+     * The main thread is left to the framework callbacks.
+     */
+    private static final int DEFAULT_THREADING_MODE = ServiceLoopers.MODE_SPLIT;
+    private static final String LOOPERS_NAME = "SAProvider";
+    /**
+     * Saves the {@link ServiceLoopers} mode given by the int extra {@code mode}, for example
+     * {@code adb shell am startservice -n <package>/.backend.SamsungAccessoryProviderService
+     * -a <action> --ei mode 0}. It applies from the next time the service is created.
+     */
+    public static final String ACTION_SET_THREADING_MODE =
+            "com.samsung.example.samsungaccessoryprovider.action.SET_THREADING_MODE";
 
-    private HashMap<Integer, SamsungAccessoryProviderConnection> mConnectionsMap = null;
+    private static final Metrics sMetrics = Metrics.getDefault();
+    private static final int STAGE_RECEIVE = sMetrics.getStage("provider.onReceive");
+    private static final int STAGE_FORWARD = sMetrics.getStage(
+            "provider.sendToSamsungAccessoryService");
 
+    /* created by onCreate, before anything can reach the service */
+    private ServiceLoopers mLoopers;
+    private IncomingHandler mInboundHandler;
+    private Handler mOutboundHandler;
+    private Messenger mMessenger;
+    private SampleBatcher mSampleBatcher;
+    /* written on the inbound thread only, read by the threads that deliver to the linked app */
+    private volatile boolean mBound = false;
+    private volatile Messenger mSamsungAccessoryMessenger = null;
+    private boolean mSharedRingEnabled = true;
+    private volatile SharedRingBuffer mSharedRing = null;
+    /* kept for the life of the service so a re-registering app drains what it left behind */
+    private SharedRingBuffer mRingProducer = null;
+    private final ConnectionRegistry<SamsungAccessoryProviderConnection> mConnections =
+            new ConnectionRegistry<SamsungAccessoryProviderConnection>();
+
+    private final ConnectionSupervisor mSupervisor = new ConnectionSupervisor(
+            new ConnectionSupervisor.Connector() {
+                @Override
+                public void requestConnection(SAPeerAgent peerAgent) {
+                    requestServiceConnection(peerAgent);
+                }
+
+                @Override
+                public void findPeerAgents() {
+                    SamsungAccessoryProviderService.this.findPeerAgents();
+                }
+            });
+
+    /* keeps the order between direct deliveries and outbox replay */
+    private final Object mDeliveryLock = new Object();
+    /* guarded by mDeliveryLock */
+    private Outbox mOutbox = null;
+    /* guarded by mDeliveryLock */
+    private boolean mIsReplayPending = false;
+    /* guarded by mDeliveryLock */
+    private long mReplayBackoffMs = OUTBOX_RETRY_MIN_MS;
+    private final Runnable mReplayBatch = new Runnable() {
+        @Override
+        public void run() {
+            replayOutbox();
+        }
+    };
+    private final Outbox.Reader mOutboxReader = new Outbox.Reader() {
+        @Override
+        public boolean onRecord(byte kind, byte[] payload) {
+            return deliver(kind, payload);
+        }
+    };
+
+    private final Handler mMainHandler = new Handler();
+    private StartupOrchestrator mStartup = null;
+    private PackageInstallCache mLinkedApp = null;
+    private final AtomicBoolean mIsFileTransferRequested = new AtomicBoolean();
+    private boolean mIsFirstRequest = true;
+    /* debug builds only, created by the first ACTION_LOAD_TEST; guarded by this */
+    private LoadGenerator mLoadGenerator = null;
+    /* null unless capturing, read on every frame without locking */
+    private volatile TraceRecorder mTraceRecorder = null;
+    /* debug builds only, created by the first ACTION_REPLAY; guarded by this */
+    private TraceReplayer mTraceReplayer = null;
     private SAFileTransfer mSAFileTransfer = null;
-    private EventListener mCallback;
-    private final String mFileDestPath = Environment.getExternalStoragePublicDirectory(
-            Environment.DIRECTORY_DCIM).getAbsolutePath() + File.separator
-            + "temp.jpg";
+    private FileTransferManager mFileTransferManager = null;
 
     public static final int TYPE_CONNECTION_STATUS = 0;
     public static final int TYPE_HEARTBEAT_COUNT = 1;
@@ -78,11 +236,14 @@ public class SamsungAccessoryProviderService extends SAAgent {
     public static final int TYPE_ERROR = 5;
     public static final int TYPE_RESET = 6;
     public static final int TYPE_DEVICEMODEL = 7;
+    /** path of a preview of the image that follows as TYPE_FILE_PATH */
+    public static final int TYPE_THUMBNAIL_PATH = 8;
 
-    static class IncomingHandler extends Handler {
+    static class IncomingHandler extends ServiceLoopers.MonitoredHandler {
         private final WeakReference<SamsungAccessoryProviderService> mService;
 
-        IncomingHandler(SamsungAccessoryProviderService service) {
+        IncomingHandler(SamsungAccessoryProviderService service, Looper looper) {
+            super(looper, "provider.inbound");
             mService = new WeakReference<SamsungAccessoryProviderService>(service);
         }
 
@@ -112,13 +273,16 @@ public class SamsungAccessoryProviderService extends SAAgent {
                 Utility.logDebug(TAG, "MSG_REGISTER_CLIENT");
                 mSamsungAccessoryMessenger = msg.replyTo;
                 mBound = true;
-                if (myConnection != null) {
+                offerSharedRing();
+                restartReplay();
+                if (mConnections.size() > 0) {
                     JSONObject jObj2 = createConnectionStatusJSONObject(true);
                     sendToSamsungAccessoryService(jObj2.toString());
                 }
                 break;
             case MSG_UNREGISTER_CLIENT:
                 Utility.logDebug(TAG, "MSG_UNREGISTER_CLIENT");
+                mSharedRing = null;
                 mSamsungAccessoryMessenger = null;
                 mBound = false;
                 break;
@@ -134,11 +298,141 @@ public class SamsungAccessoryProviderService extends SAAgent {
 
     public class SamsungAccessoryProviderConnection extends SASocket {
         private int mConnectionId;
+        private String mPeerId;
+        /* set once the peer sends a WireCodec frame; replies then use the same format */
+        private volatile boolean mBinaryWire = false;
+        /* set when the peer lacks the sensor and control channels, written by the writer thread */
+        private volatile boolean mSingleChannel = false;
+        /* each watch has its own writer thread so a slow one does not hold back the others */
+        private OutboundSendQueue mOutboundQueue = null;
+        /* guarded by this */
+        private long mSentCount = 0;
+        /* SASocket callback thread only */
+        private long mReceivedCount = 0;
 
         public SamsungAccessoryProviderConnection() {
             super(SamsungAccessoryProviderConnection.class.getName());
         }
 
+        public int getConnectionId() {
+            return mConnectionId;
+        }
+
+        public String getPeerId() {
+            return mPeerId;
+        }
+
+        private synchronized void startSending() {
+            mOutboundQueue = new OutboundSendQueue("SAProviderWriter-" + mConnectionId,
+                    new OutboundSendQueue.Transport() {
+                        @Override
+                        public void send(int channelId, byte[] data) throws IOException {
+                            sendOnChannel(channelId, data);
+                        }
+                    }, OUTBOUND_CONTROL_CAPACITY, OUTBOUND_SENSOR_CAPACITY,
+                    OUTBOUND_BULK_CAPACITY, OutboundSendQueue.OverflowPolicy.DROP_OLDEST);
+            mOutboundQueue.start();
+        }
+
+        private synchronized void stopSending() {
+            if (mOutboundQueue != null) {
+                mOutboundQueue.stop();
+                mOutboundQueue = null;
+            }
+        }
+
+        private synchronized void dumpQueue(PrintWriter writer) {
+            writer.print("  connection " + mConnectionId + " peer " + mPeerId);
+            if (mOutboundQueue == null) {
+                writer.println(" (stopped)");
+                return;
+            }
+            writer.println(String.format(Locale.US,
+                    " queued=%d sent=%d dropped=%d rejected=%d failed=%d coalesced=%d"
+                            + " avg=%.3fms max=%.3fms",
+                    mOutboundQueue.getQueueDepth(), mOutboundQueue.getSentCount(),
+                    mOutboundQueue.getDroppedCount(), mOutboundQueue.getRejectedCount(),
+                    mOutboundQueue.getFailedCount(), mOutboundQueue.getCoalescedCount(),
+                    mOutboundQueue.getAverageSendLatencyNanos() / 1e6,
+                    mOutboundQueue.getMaxSendLatencyNanos() / 1e6));
+        }
+
+        /*
+         * The queue is called outside the connection lock: with the BLOCK policy the caller
+         * waits for the writer, and stopSending must still be able to wake it.
+         */
+        private boolean enqueue(int lane, int channelId, byte[] payload, int coalesceKey) {
+            OutboundSendQueue queue;
+            synchronized (this) {
+                queue = mOutboundQueue;
+            }
+            if (queue == null) {
+                return false;
+            }
+            boolean isQueued = queue.enqueue(lane, channelId, payload, coalesceKey);
+            if (isQueued) {
+                synchronized (this) {
+                    mSentCount++;
+                }
+            }
+            return isQueued;
+        }
+
+        private synchronized ConnectionSupervisor.Session saveSession() {
+            ConnectionSupervisor.Session session = new ConnectionSupervisor.Session();
+            session.binaryWire = mBinaryWire;
+            session.singleChannel = mSingleChannel;
+            session.sentCount = mSentCount;
+            session.receivedCount = mReceivedCount;
+            return session;
+        }
+
+        private synchronized void resumeSession(ConnectionSupervisor.Session session) {
+            mBinaryWire = session.binaryWire;
+            mSingleChannel = session.singleChannel;
+            mSentCount = session.sentCount;
+            mReceivedCount = session.receivedCount;
+        }
+
+        /*
+         * A consumer built before the sensor and control channels existed only has the default
+         * channel. The SDK refuses a channel the peer did not declare with an
+         * IllegalArgumentException, while an IOException means the socket is closed or busy and
+         * says nothing about the channel. Once the default channel takes a message another
+         * channel refused, everything goes there.
+         */
+        private void sendOnChannel(int channelId, byte[] data) throws IOException {
+            boolean isRefused = false;
+            if (channelId != SAMSUNGACCESSORY_CHANNEL_ID && mSingleChannel == false) {
+                try {
+                    sendCaptured(channelId, data);
+                    return;
+                } catch (IllegalArgumentException e) {
+                    Utility.logError(TAG, "channel (%d) refused: %s", channelId, e.getMessage());
+                    isRefused = true;
+                }
+            }
+            try {
+                sendCaptured(SAMSUNGACCESSORY_CHANNEL_ID, data);
+            } catch (IllegalArgumentException e) {
+                /* too big for any channel; fail the message rather than the writer thread */
+                throw new IOException(e.getMessage());
+            }
+            if (isRefused) {
+                Utility.logError(TAG, "channel (%d) is not declared, falling back to (%d)",
+                        channelId, SAMSUNGACCESSORY_CHANNEL_ID);
+                mSingleChannel = true;
+            }
+        }
+
+        private void sendCaptured(int channelId, byte[] data) throws IOException {
+            send(channelId, data);
+            TraceRecorder recorder = mTraceRecorder;
+            if (recorder != null) {
+                recorder.record(TraceRecorder.DIRECTION_OUT, mPeerId, channelId, data);
+            }
+        }
+
         @Override
         public void onError(int channelId, String errorString, int error) {
             Utility.logError(TAG, "Connection is not alive. error: %s (%d)", errorString, error);
@@ -146,15 +440,41 @@ public class SamsungAccessoryProviderService extends SAAgent {
 
         @Override
         public void onReceive(int channelId, byte[] data) {
-            String str = new String(data);
-            Utility.logDebug(TAG, "onReceive: channelId: %d, data: %s", channelId, str);
+            long startedAt = System.nanoTime();
+            TraceRecorder recorder = mTraceRecorder;
+            if (recorder != null) {
+                recorder.record(TraceRecorder.DIRECTION_IN, mPeerId, channelId, data);
+            }
+            mReceivedCount++;
+            int type = WireCodec.peekType(data);
+            receive(channelId, data, type);
+            sMetrics.record(STAGE_RECEIVE, type, mPeerId, System.nanoTime() - startedAt,
+                    data.length);
+        }
+
+        private void receive(int channelId, byte[] data, int type) {
+            boolean isBinary = WireCodec.isBinaryFrame(data);
+            String str = null;
+            if (isBinary) {
+                Utility.logDebug(TAG, "onReceive: channelId: %d, binary frame (%d bytes)", channelId,
+                        data.length);
+            } else {
+                str = new String(data);
+                Utility.logDebug(TAG, "onReceive: channelId: %d, data: %s", channelId, str);
+            }
 
-            if (channelId == SAMSUNGACCESSORY_CHANNEL_ID) {
-                if (sendToSamsungAccessoryService(str) == false) {
+            if (isKnownChannel(channelId)) {
+                if (type >= 0 && getChannelId(type) != channelId) {
+                    Utility.logDebug(TAG, "type (%d) received on channel (%d)", type, channelId);
+                }
+                if (isBinary) {
+                    mBinaryWire = true;
+                }
+                if (forwardReceived(mPeerId, type, data, str) == FORWARD_FAILED) {
                     Utility.logError(TAG,
                             "fails sending data to samsung accessory app, send Error to consumer");
                     JSONObject jObj = createErrorJSONObject("binding error or linked app doesn't exist");
-                    sendToConsumer(jObj.toString());
+                    sendToConsumer(mConnectionId, jObj.toString());
                 }
             }
         }
@@ -187,12 +507,16 @@ public class SamsungAccessoryProviderService extends SAAgent {
                             "onServiceConnectionLost: unknown result (%d)", result);
                     break;
             }
-            myConnection = null;
-            JSONObject jObj = createConnectionStatusJSONObject(false);
-            sendToSamsungAccessoryService(jObj.toString());
-
-            if (mConnectionsMap != null) {
-                mConnectionsMap.remove(mConnectionId);
+            mSampleBatcher.flush();
+            stopSending();
+            boolean isCurrent = mConnections.remove(mConnectionId) != null;
+            /* a connection replaced by a newer one to the same peer needs no recovery */
+            if (isCurrent && mPeerId != null) {
+                mSupervisor.onConnectionLost(mPeerId, result, saveSession());
+            }
+            if (mConnections.size() == 0) {
+                JSONObject jObj = createConnectionStatusJSONObject(false);
+                sendToSamsungAccessoryService(jObj.toString());
             }
         }
     }
@@ -200,26 +524,172 @@ public class SamsungAccessoryProviderService extends SAAgent {
     @Override
     public void onCreate() {
         super.onCreate();
+        if (BuildConfig.DEBUG == false) {
+            Utility.setLogRing(new LogRing(LOG_RING_CAPACITY));
+        }
         Utility.logDebug(TAG, "onCreate");
+        mStartup = new StartupOrchestrator();
+        createLoopers();
+        mLinkedApp = new PackageInstallCache(this, SAMSUNG_ACCESSORY_LINKED_PACKAGE_NAME,
+                new PackageInstallCache.Listener() {
+                    @Override
+                    public void onPackageChanged(String packageName, boolean isInstalled) {
+                        if (isInstalled) {
+                            startLinkedApp();
+                        }
+                    }
+                });
+        mLinkedApp.register();
+        /*
+         * Undelivered messages are journaled from the first one on, and a linked app that
+         * registers right away must find the records of the previous process, so the outbox
+         * is open before the service can receive anything.
+         */
+        mStartup.runTraced("openOutbox", new Runnable() {
+            @Override
+            public void run() {
+                openOutbox();
+            }
+        });
+        /* the package manager query fills mLinkedApp's cache while SA initializes */
+        final Future<?> linkedAppQuery = mStartup.submit("queryLinkedApp", new Runnable() {
+            @Override
+            public void run() {
+                mLinkedApp.isInstalled();
+            }
+        });
+        /* file transfer waits for the first watch */
+        mStartup.execute("SA.initialize", new Runnable() {
+            @Override
+            public void run() {
+                if (initializeAccessory() && mStartup.join(linkedAppQuery)) {
+                    startLinkedAppIfInstalled();
+                }
+            }
+        });
+        mStartup.mark("onCreate done");
+    }
+
+    private void createLoopers() {
+        mLoopers = new ServiceLoopers(LOOPERS_NAME,
+                ServiceLoopers.getSavedMode(this, LOOPERS_NAME, DEFAULT_THREADING_MODE));
+        mInboundHandler = mLoopers.monitor(new IncomingHandler(this, mLoopers.getInboundLooper()));
+        mOutboundHandler = new Handler(mLoopers.getOutboundLooper());
+        mMessenger = new Messenger(mInboundHandler);
+        mSampleBatcher = new SampleBatcher(mOutboundHandler, DEFAULT_BATCH_MAX_SIZE,
+                DEFAULT_BATCH_MAX_LATENCY_MS, new SampleBatcher.Sink() {
+                    @Override
+                    public void onSampleBatch(String peerId, int type, long[] timestamps,
+                            int[] values) {
+                        sendSampleBatchToSamsungAccessoryService(peerId, type, timestamps,
+                                values);
+                    }
+                });
+    }
+
+    /**
+     * @return false if the accessory framework is unavailable, in which case the linked app is
+     *         not started
+     */
+    private boolean initializeAccessory() {
         SA mAccessory = new SA();
         try {
             mAccessory.initialize(this);
-            boolean isInstalled = isAppInstalled(SAMSUNG_ACCESSORY_LINKED_PACKAGE_NAME);
-            if (isInstalled) {
-                Utility.logDebug(TAG, "samsung accessory app is installed");
-                Intent intent = new Intent("com.samsung.example.samsungaccessory.SamsungAccessoryService");
-                this.startService(intent);
-            }
-            else {
-                Utility.logDebug(TAG, "samsung accessory app is not installed yet");
-            }
+            return true;
         } catch (SsdkUnsupportedException e) {
-            Utility.logError(TAG, "", e);
+            Utility.logError(TAG, e, "SAccessory is not supported");
         } catch (Exception e1) {
-            Utility.logError(TAG, "Cannot initialize SAccessory package.", e1);
-            stopSelf();
+            Utility.logError(TAG, e1, "Cannot initialize SAccessory package.");
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopSelf();
+                }
+            });
+        }
+        return false;
+    }
+
+    private void startLinkedAppIfInstalled() {
+        mStartup.runTraced("startLinkedApp", new Runnable() {
+            @Override
+            public void run() {
+                if (mLinkedApp.isInstalled()) {
+                    startLinkedApp();
+                } else {
+                    Utility.logDebug(TAG, "samsung accessory app is not installed yet");
+                }
+            }
+        });
+    }
+
+    private void startLinkedApp() {
+        Utility.logDebug(TAG, "samsung accessory app is installed");
+        Intent intent = new Intent("com.samsung.example.samsungaccessory.SamsungAccessoryService");
+        startService(intent);
+    }
+
+    private void openOutbox() {
+        synchronized (mDeliveryLock) {
+            try {
+                mOutbox = new Outbox(new File(getFilesDir(), OUTBOX_FILE_NAME), OUTBOX_CAPACITY,
+                        DEFAULT_OUTBOX_TTL_MS, OUTBOX_MAX_ATTEMPTS);
+            } catch (IOException e) {
+                Utility.logError(TAG, e, "cannot open outbox, undelivered messages are dropped");
+            }
+        }
+    }
+
+    /**
+     * Sets up file transfer on the main thread the first time a watch connects. The SDK only
+     * reports transfer requests to a registered SAFileTransfer, so this is the latest safe point.
+     */
+    private void ensureFileTransfer() {
+        if (mIsFileTransferRequested.getAndSet(true)) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStartup.runTraced("registerForFileTransfer", new Runnable() {
+                    @Override
+                    public void run() {
+                        registerForFileTransfer();
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_LOAD_TEST.equals(intent.getAction())) {
+            if (BuildConfig.DEBUG) {
+                startLoadTest(intent);
+            } else {
+                Utility.logError(TAG, "load tests are only available in debug builds");
+            }
+        } else if (intent != null && ACTION_CAPTURE.equals(intent.getAction())) {
+            if (BuildConfig.DEBUG) {
+                setCaptureEnabled(intent.getBooleanExtra("enabled", true));
+            } else {
+                Utility.logError(TAG, "capture is only available in debug builds");
+            }
+        } else if (intent != null && ACTION_REPLAY.equals(intent.getAction())) {
+            if (BuildConfig.DEBUG) {
+                startReplay(intent.getBooleanExtra("realtime", false));
+            } else {
+                Utility.logError(TAG, "replay is only available in debug builds");
+            }
+        } else if (intent != null && ACTION_SET_THREADING_MODE.equals(intent.getAction())) {
+            int mode = intent.getIntExtra("mode", DEFAULT_THREADING_MODE);
+            if (ServiceLoopers.saveMode(this, LOOPERS_NAME, mode)) {
+                Utility.logInfo(TAG, "threading mode (%d) applies from the next start", mode);
+            } else {
+                Utility.logError(TAG, "unknown threading mode (%d)", mode);
+            }
         }
-        registerForFileTransfer();
+        return super.onStartCommand(intent, flags, startId);
     }
 
     @Override
@@ -231,31 +701,121 @@ public class SamsungAccessoryProviderService extends SAAgent {
     @Override
     public void onDestroy() {
         Utility.logDebug(TAG, "onDestroy");
+        mStartup.shutdown();
+        synchronized (this) {
+            if (mLoadGenerator != null) {
+                mLoadGenerator.stop();
+            }
+            if (mTraceReplayer != null) {
+                mTraceReplayer.stop();
+            }
+        }
+        setCaptureEnabled(false);
+        mLinkedApp.unregister();
+        mMainHandler.removeCallbacksAndMessages(null);
+        mSupervisor.stop();
+        mSampleBatcher.flush();
+        if (mFileTransferManager != null) {
+            mFileTransferManager.close();
+        }
+        mOutboundHandler.removeCallbacks(mReplayBatch);
+        synchronized (mDeliveryLock) {
+            if (mOutbox != null) {
+                mOutbox.close();
+            }
+        }
+        for (SamsungAccessoryProviderConnection connection : mConnections.getConnections()) {
+            connection.stopSending();
+        }
+        mInboundHandler.clear();
+        mLoopers.quit();
+        Utility.setLogRing(null);
         super.onDestroy();
     }
 
-    private boolean isAppInstalled(String uri) {
-        PackageManager pm = getPackageManager();
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        sMetrics.dump(writer);
+        writer.println("Connections (" + mConnections.size() + "):");
+        for (SamsungAccessoryProviderConnection connection : mConnections.getConnections()) {
+            connection.dumpQueue(writer);
+        }
+        mSupervisor.dump(writer);
+        mStartup.dump(writer);
+        mLoopers.dump(writer);
+        synchronized (this) {
+            if (mLoadGenerator != null) {
+                mLoadGenerator.dump(writer);
+            }
+            TraceRecorder recorder = mTraceRecorder;
+            if (recorder != null) {
+                writer.println("Capture: " + recorder.getStats());
+            }
+            if (mTraceReplayer != null) {
+                mTraceReplayer.dump(writer);
+            }
+        }
+        synchronized (mDeliveryLock) {
+            if (mOutbox != null) {
+                writer.println("Outbox: " + mOutbox.getStats());
+            }
+        }
+        LogRing logRing = Utility.getLogRing();
+        if (logRing != null && Arrays.asList(args).contains("--log-ring")) {
+            writeLogRing(writer, logRing);
+        } else if (logRing != null) {
+            writer.println("Recent log:");
+            logRing.dump(writer);
+        }
+    }
 
+    private void writeLogRing(PrintWriter writer, LogRing logRing) {
+        File file = new File(getCacheDir(), LOG_RING_FILE_NAME);
         try {
-            pm.getPackageInfo(uri, PackageManager.GET_ACTIVITIES);
-            return true;
-        } catch (PackageManager.NameNotFoundException e) {
-            Utility.logError(TAG, "", e);
-            return false;
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                writer.println("Wrote " + logRing.writeTo(out) + " log records to " + file);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            writer.println("Cannot write " + file + ": " + e);
         }
     }
 
+    /**
+     * Returns a copy of the stage metrics of this process, for tests and diagnostics.
+     */
+    public Metrics.Snapshot getMetricsSnapshot() {
+        return sMetrics.snapshot();
+    }
+
     @Override
     protected void onServiceConnectionRequested(SAPeerAgent peerAgent) {
-        Utility.logDebug("onServiceConnectionRequested: peerAgent [appName:%s, getPeerId:%s]",
+        Utility.logDebug(TAG, "onServiceConnectionRequested: peerAgent [appName:%s, getPeerId:%s]",
                 peerAgent.getAppName(), peerAgent.getPeerId());
+        if (mIsFirstRequest) {
+            mIsFirstRequest = false;
+            mStartup.mark("first connection request");
+        }
         acceptServiceConnectionRequest(peerAgent);
+        ensureFileTransfer();
     }
 
     @Override
     protected void onFindPeerAgentResponse(SAPeerAgent arg0, int result) {
         Utility.logDebug(TAG, "onFindPeerAgentResponse: result (%d)", result);
+        if (result == PEER_AGENT_FOUND) {
+            mSupervisor.onPeerAgentAvailable(arg0);
+        }
+    }
+
+    @Override
+    protected void onPeerAgentUpdated(SAPeerAgent peerAgent, int result) {
+        Utility.logDebug(TAG, "onPeerAgentUpdated: result (%d)", result);
+        if (result == PEER_AGENT_AVAILABLE) {
+            mSupervisor.onPeerAgentAvailable(peerAgent);
+        }
     }
 
     private JSONObject createConnectionStatusJSONObject(boolean isConnected) {
@@ -264,7 +824,7 @@ public class SamsungAccessoryProviderService extends SAAgent {
             jObj.put("type", TYPE_CONNECTION_STATUS);
             jObj.put("connection", isConnected);
         } catch (JSONException e) {
-            Utility.logError(TAG, "", e);
+            Utility.logError(TAG, e, "Unable to create connection status JSON object");
         }
         return jObj;
     }
@@ -275,18 +835,18 @@ public class SamsungAccessoryProviderService extends SAAgent {
             jObj.put("type", TYPE_ERROR);
             jObj.put("error", str);
         } catch (JSONException e) {
-            Utility.logError(TAG, "", e);
+            Utility.logError(TAG, e, "Unable to create error JSON object");
         }
         return jObj;
     }
 
-    private JSONObject createFileNameJSONObject(String filename) {
+    private JSONObject createFileNameJSONObject(int type, String filename) {
         JSONObject jObj = new JSONObject();
         try {
-            jObj.put("type", TYPE_FILE_PATH);
+            jObj.put("type", type);
             jObj.put("filename", filename);
         } catch (JSONException e) {
-            Utility.logError(TAG, "", e);
+            Utility.logError(TAG, e, "Unable to create file name JSON object");
         }
         return jObj;
     }
@@ -296,16 +856,34 @@ public class SamsungAccessoryProviderService extends SAAgent {
         if (result == CONNECTION_SUCCESS) {
             if (thisConnection != null) {
                 Utility.logDebug(TAG, "SA Socket connection established");
-                myConnection = (SamsungAccessoryProviderConnection) thisConnection;
-
-                if (mConnectionsMap == null) {
-                    mConnectionsMap = new HashMap<Integer, SamsungAccessoryProviderConnection>();
+                SamsungAccessoryProviderConnection connection =
+                        (SamsungAccessoryProviderConnection) thisConnection;
+                SAPeerAgent peerAgent = connection.getConnectedPeerAgent();
+                connection.mPeerId = peerAgent != null ? peerAgent.getPeerId() : null;
+                connection.mConnectionId = mConnections.newId();
+                if (connection.mPeerId != null) {
+                    ConnectionSupervisor.Session session =
+                            mSupervisor.onConnected(connection.mPeerId, peerAgent);
+                    if (session != null) {
+                        Utility.logDebug(TAG, "resume session of peer %s", connection.mPeerId);
+                        connection.resumeSession(session);
+                    }
                 }
-
-                myConnection.mConnectionId = (int) (System.currentTimeMillis() & 255);
-                Utility.logDebug(TAG, "onServiceConnectionResponse connectionID = (%d)",
-                        myConnection.mConnectionId);
-                mConnectionsMap.put(myConnection.mConnectionId, myConnection);
+                /* senders may pick the connection up as soon as it is registered */
+                connection.startSending();
+                SamsungAccessoryProviderConnection previous = mConnections.register(
+                        connection.mConnectionId,
+                        connection.mPeerId != null ? connection.mPeerId : connection.toString(),
+                        connection);
+                if (previous != null) {
+                    Utility.logDebug(TAG, "peer reconnected, close connection (%d)",
+                            previous.mConnectionId);
+                    previous.stopSending();
+                    previous.close();
+                }
+                ensureFileTransfer();
+                Utility.logDebug(TAG, "onServiceConnectionResponse connectionID = (%d), peers = (%d)",
+                        connection.mConnectionId, mConnections.size());
                 Toast.makeText(getBaseContext(), R.string.connection_established_message,
                         Toast.LENGTH_LONG)
                         .show();
@@ -320,6 +898,7 @@ public class SamsungAccessoryProviderService extends SAAgent {
             JSONObject jObj = createConnectionStatusJSONObject(true);
             sendToSamsungAccessoryService(jObj.toString());
         } else {
+            mSupervisor.onConnectionFailed(result);
             switch (result) {
                 case SAAgent.CONNECTION_FAILURE_NETWORK:
                     Utility.logError(TAG, "onServiceConnectionResponse: CONNECTION_FAILURE_NETWORK");
@@ -349,80 +928,591 @@ public class SamsungAccessoryProviderService extends SAAgent {
     }
 
     private boolean sendToSamsungAccessoryService(String data) {
+        return deliverOrStore(SharedRingBuffer.KIND_JSON, data.getBytes()) != FORWARD_FAILED;
+    }
+
+    /*
+     * While older messages wait in the outbox, new ones are journaled behind them so the
+     * linked app always receives messages in order. Returns FORWARD_DELIVERED, FORWARD_STORED
+     * or FORWARD_FAILED.
+     */
+    private int deliverOrStore(byte kind, byte[] payload) {
+        synchronized (mDeliveryLock) {
+            if (mOutbox == null) {
+                return deliver(kind, payload) ? FORWARD_DELIVERED : FORWARD_FAILED;
+            }
+            if (mOutbox.isEmpty() && deliver(kind, payload)) {
+                return FORWARD_DELIVERED;
+            }
+            if (mOutbox.append(kind, payload) == false) {
+                Utility.logError(TAG, "message of %d bytes does not fit in the outbox",
+                        payload.length);
+                return FORWARD_FAILED;
+            }
+            Utility.logDebug(TAG, "samsung accessory app unavailable, message kept in outbox");
+            if (mBound) {
+                scheduleReplayLocked(mReplayBackoffMs);
+            }
+            return FORWARD_STORED;
+        }
+    }
 
-        if (mSamsungAccessoryMessenger == null || mBound == false) {
+    /*
+     * Once the linked app holds the shared ring, every message goes through it and nothing
+     * overtakes it through Messenger. A full ring leaves the message to the outbox.
+     */
+    private boolean deliver(byte kind, byte[] payload) {
+        SharedRingBuffer ring = mSharedRing;
+        if (ring != null) {
+            return sendThroughSharedRing(ring, kind, payload);
+        }
+        if (kind == SharedRingBuffer.KIND_SAMPLE_BATCH) {
+            return deliverSampleBatch(payload);
+        }
+        Bundle providerData = new Bundle(2);
+        if (kind == SharedRingBuffer.KIND_PEER_MESSAGE) {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            kind = buffer.get();
+            byte[] peerId = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(peerId);
+            providerData.putString(BUNDLE_PEER_ID, new String(peerId));
+            payload = Arrays.copyOfRange(payload, buffer.position(), payload.length);
+        }
+        if (kind == SharedRingBuffer.KIND_FRAME) {
+            providerData.putByteArray(BUNDLE_FRAME, payload);
+        } else {
+            providerData.putString(BUNDLE_DATA, new String(payload));
+        }
+        return sendBundleToSamsungAccessoryService(MSG_TO_SAMSUNGACCESSORYSERVICE, providerData);
+    }
+
+    /**
+     * Delivers one batch of journaled messages to the linked app and posts the next batch, so
+     * a long backlog does not hold the outbound thread. While the linked app stays bound, a
+     * failed delivery is retried with an exponential backoff.
+     */
+    private void replayOutbox() {
+        synchronized (mDeliveryLock) {
+            mIsReplayPending = false;
+            if (mOutbox == null || mBound == false) {
+                return;
+            }
+            int count = mOutbox.replay(OUTBOX_REPLAY_BATCH, mOutboxReader);
+            if (count > 0) {
+                Utility.logDebug(TAG, "replayed %d messages from outbox", count);
+                mReplayBackoffMs = OUTBOX_RETRY_MIN_MS;
+            }
+            if (mOutbox.isEmpty()) {
+                return;
+            }
+            if (count > 0) {
+                scheduleReplayLocked(0);
+            } else {
+                scheduleReplayLocked(mReplayBackoffMs);
+                mReplayBackoffMs = Math.min(mReplayBackoffMs * 2, OUTBOX_RETRY_MAX_MS);
+            }
+        }
+    }
+
+    /* the linked app (re)registered: replay now instead of waiting for a pending retry */
+    private void restartReplay() {
+        synchronized (mDeliveryLock) {
+            mOutboundHandler.removeCallbacks(mReplayBatch);
+            mIsReplayPending = false;
+            mReplayBackoffMs = OUTBOX_RETRY_MIN_MS;
+        }
+        replayOutbox();
+    }
+
+    /* with mDeliveryLock held */
+    private void scheduleReplayLocked(long delayMs) {
+        if (mIsReplayPending == false) {
+            mIsReplayPending = true;
+            mOutboundHandler.postDelayed(mReplayBatch, delayMs);
+        }
+    }
+
+    /**
+     * Sets how long an undelivered message is kept in the outbox.
+     */
+    public void setOutboxTtl(long ttlMs) {
+        synchronized (mDeliveryLock) {
+            if (mOutbox != null) {
+                mOutbox.setTtl(ttlMs);
+            }
+        }
+    }
+
+    /**
+     * Enables or disables the shared memory transport for the next registration of the linked
+     * app. Messenger is used whenever the ring is off or not handed over yet.
+     */
+    public void setSharedRingEnabled(boolean enabled) {
+        mSharedRingEnabled = enabled;
+        if (enabled == false) {
+            mSharedRing = null;
+        }
+    }
+
+    private void offerSharedRing() {
+        mSharedRing = null;
+        if (mSharedRingEnabled == false) {
+            return;
+        }
+        ParcelFileDescriptor descriptor;
+        try {
+            if (mRingProducer == null) {
+                mRingProducer = SharedRingBuffer.createProducer(new File(getCacheDir(),
+                        SHARED_RING_FILE_NAME), SHARED_RING_CAPACITY);
+            }
+            descriptor = mRingProducer.openForConsumer();
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot create shared ring, keep using messenger");
+            return;
+        }
+        Bundle providerData = new Bundle(1);
+        providerData.putParcelable(BUNDLE_RING_FD, descriptor);
+        /* no delivery may fall between the hand-over and the switch to the ring */
+        synchronized (mDeliveryLock) {
+            if (sendBundleToSamsungAccessoryService(MSG_SHARED_RING_TO_SAMSUNGACCESSORYSERVICE,
+                    providerData)) {
+                mSharedRing = mRingProducer;
+            }
+        }
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot close the ring descriptor");
+        }
+    }
+
+    private boolean sendThroughSharedRing(SharedRingBuffer ring, byte kind, byte[] payload) {
+        Messenger messenger = mSamsungAccessoryMessenger;
+        if (messenger == null || mBound == false) {
+            return false;
+        }
+        int result = ring.offer(kind, payload);
+        if (result == SharedRingBuffer.OFFER_FULL) {
+            Utility.logWarning(TAG, "shared ring is full, message left to the outbox");
+            return false;
+        }
+        if (result == SharedRingBuffer.OFFER_QUEUED_WAKE) {
+            try {
+                messenger.send(Message.obtain(null, MSG_RING_DOORBELL_TO_SAMSUNGACCESSORYSERVICE,
+                        0, 0));
+            } catch (RemoteException e) {
+                /* the record is published: the linked app reads it when it attaches the ring */
+                Utility.logError(TAG, e, "cannot ring the shared ring doorbell");
+            }
+        }
+        return true;
+    }
+
+    private void sendSampleBatchToSamsungAccessoryService(String peerId, int type,
+            long[] timestamps, int[] values) {
+        byte[] payload = encodeSampleBatch(peerId, type, timestamps, values);
+        if (deliverOrStore(SharedRingBuffer.KIND_SAMPLE_BATCH, payload) == FORWARD_FAILED) {
+            Utility.logError(TAG,
+                    "fails sending samples to samsung accessory app, send Error to consumer");
+            JSONObject jObj = createErrorJSONObject("binding error or linked app doesn't exist");
+            sendToConsumer(jObj.toString());
+        }
+    }
+
+    private boolean deliverSampleBatch(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int type = buffer.getInt();
+        int count = buffer.getInt();
+        long[] timestamps = new long[count];
+        int[] values = new int[count];
+        buffer.asLongBuffer().get(timestamps);
+        buffer.position(buffer.position() + count * 8);
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        Bundle providerData = new Bundle(4);
+        providerData.putInt(BUNDLE_SAMPLE_TYPE, type);
+        providerData.putLongArray(BUNDLE_SAMPLE_TIMESTAMPS, timestamps);
+        providerData.putIntArray(BUNDLE_SAMPLE_VALUES, values);
+        if (buffer.hasRemaining()) {
+            providerData.putString(BUNDLE_PEER_ID,
+                    new String(payload, buffer.position(), buffer.remaining()));
+        }
+        return sendBundleToSamsungAccessoryService(MSG_SAMPLE_BATCH_TO_SAMSUNGACCESSORYSERVICE,
+                providerData);
+    }
+
+    /* a SharedRingBuffer.KIND_SAMPLE_BATCH record */
+    private static byte[] encodeSampleBatch(String peerId, int type, long[] timestamps,
+            int[] values) {
+        byte[] peer = peerId != null ? peerId.getBytes() : new byte[0];
+        ByteBuffer buffer = ByteBuffer.allocate(8 + values.length * 12 + peer.length);
+        buffer.putInt(type);
+        buffer.putInt(values.length);
+        buffer.asLongBuffer().put(timestamps);
+        buffer.position(buffer.position() + timestamps.length * 8);
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + values.length * 4);
+        buffer.put(peer);
+        return buffer.array();
+    }
+
+    /* a SharedRingBuffer.KIND_PEER_MESSAGE record wrapping a message of another kind */
+    private static byte[] encodePeerMessage(String peerId, byte kind, byte[] payload) {
+        byte[] peer = peerId.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(3 + peer.length + payload.length);
+        buffer.put(kind);
+        buffer.putShort((short) peer.length);
+        buffer.put(peer);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    private boolean sendBundleToSamsungAccessoryService(int what, Bundle providerData) {
+        Messenger messenger = mSamsungAccessoryMessenger;
+        if (messenger == null || mBound == false) {
             Utility.logError(TAG, "mSamsungAccessoryMessenger is null or mBound is false, return false");
             return false;
         }
-        Bundle providerData = new Bundle(1);
-        providerData.putString(BUNDLE_DATA, data);
-        Message providerMsg = Message.obtain(null, MSG_TO_SAMSUNGACCESSORYSERVICE, 0, 0);
+        Message providerMsg = Message.obtain(null, what, 0, 0);
         providerMsg.setData(providerData);
 
         try {
-            mSamsungAccessoryMessenger.send(providerMsg);
-            Utility.logDebug(TAG, "MSG_TO_SAMSUNGACCESSORYSERVICE");
+            messenger.send(providerMsg);
+            Utility.logDebug(TAG, "send message (%d) to samsung accessory service", what);
         } catch (RemoteException e) {
-            Utility.logError(TAG, "", e);
+            Utility.logError(TAG, e, "cannot send message (%d) to samsung accessory service", what);
             return false;
         }
         return true;
     }
 
+    /**
+     * Queues {@code data} for every connected watch. The payload is encoded at most once per
+     * wire format and the same bytes are handed to each connection's writer thread.
+     * Connection status, TYPE_RESET and TYPE_DEVICEMODEL go to the control lane and channel,
+     * where a pending message of the same type is replaced instead of repeated.
+     *
+     * @return false if there is no connection or no queue accepted the message
+     */
     public boolean sendToConsumer(String data) {
+        return sendToConsumers(data, mConnections.getConnections());
+    }
+
+    /**
+     * Queues {@code data} for the watch with the given connection id only.
+     */
+    public boolean sendToConsumer(int connectionId, String data) {
+        SamsungAccessoryProviderConnection connection = mConnections.get(connectionId);
+        if (connection == null) {
+            Utility.logError(TAG, "no connection (%d)", connectionId);
+            return false;
+        }
+        return sendToConsumers(data, Collections.singletonList(connection));
+    }
+
+    /**
+     * Queues {@code data} for the watch of the given peer agent only.
+     */
+    public boolean sendToPeer(String peerId, String data) {
+        SamsungAccessoryProviderConnection connection = mConnections.getByPeerId(peerId);
+        if (connection == null) {
+            Utility.logError(TAG, "no connection for peer %s", peerId);
+            return false;
+        }
+        return sendToConsumers(data, Collections.singletonList(connection));
+    }
+
+    private boolean sendToConsumers(String data,
+            List<SamsungAccessoryProviderConnection> connections) {
         if (data == null) {
             Utility.logError(TAG, "data is null");
             return false;
         }
-        Utility.logDebug(TAG, "sendToConsumer: data = " + data);
-        if (myConnection == null || data == null) {
-            Utility.logError(TAG, "myConnection is null");
+        Utility.logDebug(TAG, "sendToConsumer: data = %s", data);
+        if (connections.isEmpty()) {
+            Utility.logError(TAG, "no connection");
             return false;
         }
-        else {
+
+        WireCodec.Frame frame = new WireCodec.Frame();
+        boolean hasType = false;
+        try {
+            hasType = WireCodec.fromJSONObject(new JSONObject(data), frame);
+        } catch (JSONException e) {
+            Utility.logError(TAG, e, "cannot parse message from samsung accessory service");
+        }
+        int lane = OutboundSendQueue.LANE_BULK;
+        int channelId = SAMSUNGACCESSORY_CHANNEL_ID;
+        int coalesceKey = OutboundSendQueue.NO_COALESCE;
+        if (hasType) {
+            channelId = getChannelId(frame.type);
+            if (channelId == CONTROL_CHANNEL_ID) {
+                lane = OutboundSendQueue.LANE_CONTROL;
+                coalesceKey = frame.type;
+            } else if (channelId == SENSOR_CHANNEL_ID) {
+                lane = OutboundSendQueue.LANE_SENSOR;
+            }
+        }
+
+        byte[] jsonPayload = null;
+        byte[] binaryPayload = null;
+        boolean isQueued = false;
+        for (SamsungAccessoryProviderConnection connection : connections) {
+            byte[] payload;
+            if (hasType && connection.mBinaryWire) {
+                if (binaryPayload == null) {
+                    binaryPayload = WireCodec.encode(frame);
+                }
+                payload = binaryPayload;
+            } else {
+                if (jsonPayload == null) {
+                    jsonPayload = data.getBytes();
+                }
+                payload = jsonPayload;
+            }
+            if (connection.enqueue(lane, channelId, payload, coalesceKey)) {
+                isQueued = true;
+            } else {
+                Utility.logError(TAG, "connection (%d) rejected the message",
+                        connection.mConnectionId);
+            }
+        }
+        return isQueued;
+    }
+
+    /**
+     * Samples take the high-rate channel and connection status, reset and device model the
+     * high-priority one, so neither waits behind a long text on the default channel.
+     */
+    private static int getChannelId(int type) {
+        switch (type) {
+            case TYPE_HEARTBEAT_COUNT:
+            case TYPE_STEPS_COUNT:
+                return SENSOR_CHANNEL_ID;
+            case TYPE_CONNECTION_STATUS:
+            case TYPE_RESET:
+            case TYPE_DEVICEMODEL:
+                return CONTROL_CHANNEL_ID;
+            default:
+                return SAMSUNGACCESSORY_CHANNEL_ID;
+        }
+    }
+
+    private static boolean isKnownChannel(int channelId) {
+        return channelId == SAMSUNGACCESSORY_CHANNEL_ID || channelId == SENSOR_CHANNEL_ID
+                || channelId == CONTROL_CHANNEL_ID;
+    }
+
+    /**
+     * Sets how heartbeat and step samples are batched before they cross to the linked app.
+     * A max size of 1 or less forwards every sample on its own.
+     */
+    public void setSampleBatching(int maxSize, long maxLatencyMs) {
+        mSampleBatcher.configure(maxSize, maxLatencyMs);
+    }
+
+    private boolean offerToSampleBatcher(String peerId, int type, byte[] data, String str) {
+        if (SampleBatcher.isBatchedType(type) == false || mSampleBatcher.isEnabled() == false) {
+            return false;
+        }
+        WireCodec.Frame frame = new WireCodec.Frame();
+        if (str == null) {
+            if (WireCodec.decode(data, frame) == false) {
+                return false;
+            }
+        } else {
             try {
-                myConnection.send(SAMSUNGACCESSORY_CHANNEL_ID, data.getBytes());
-            } catch (IOException e) {
-                Utility.logError(TAG, "", e);
+                if (WireCodec.fromJSONObject(new JSONObject(str), frame) == false) {
+                    return false;
+                }
+            } catch (JSONException e) {
+                return false;
             }
-            return true;
         }
+        return mSampleBatcher.add(peerId, frame.type, frame.intValue);
+    }
+
+    /**
+     * Hands data received from a watch to the sample batcher or the linked app.
+     *
+     * @param str {@code data} as a string, or null if it is a binary frame
+     * @return one of the FORWARD_ constants
+     */
+    private int forwardReceived(String peerId, int type, byte[] data, String str) {
+        if (offerToSampleBatcher(peerId, type, data, str)) {
+            return FORWARD_BATCHED;
+        }
+        /* samples held back by the batcher were received first, so they are delivered first */
+        mSampleBatcher.flush();
+        long forwardedAt = System.nanoTime();
+        byte kind = str == null ? SharedRingBuffer.KIND_FRAME : SharedRingBuffer.KIND_JSON;
+        byte[] payload = str == null ? data : str.getBytes();
+        if (peerId != null && peerId.length() <= MAX_FORWARDED_PEER_ID_LENGTH) {
+            payload = encodePeerMessage(peerId, kind, payload);
+            kind = SharedRingBuffer.KIND_PEER_MESSAGE;
+        }
+        int result = deliverOrStore(kind, payload);
+        sMetrics.record(STAGE_FORWARD, type, peerId, System.nanoTime() - forwardedAt,
+                data.length);
+        return result;
+    }
+
+    /**
+     * @return FORWARD_DELIVERED, FORWARD_STORED or FORWARD_FAILED
+     */
+    private int forwardReceivedFile(File file) {
+        JSONObject jObj = createFileNameJSONObject(TYPE_FILE_PATH, file.getAbsolutePath());
+        return deliverOrStore(SharedRingBuffer.KIND_JSON, jObj.toString().getBytes());
+    }
+
+    /**
+     * Starts a load test described by the extras of {@code intent}, see
+     * {@link #ACTION_LOAD_TEST}. Results are printed by dump.
+     */
+    private void startLoadTest(Intent intent) {
+        LoadGenerator.Profile profile = new LoadGenerator.Profile();
+        profile.peers = intent.getIntExtra("peers", profile.peers);
+        profile.heartbeatHz = intent.getDoubleExtra("heartbeatHz", profile.heartbeatHz);
+        profile.stepsHz = intent.getDoubleExtra("stepsHz", profile.stepsHz);
+        profile.textHz = intent.getDoubleExtra("textHz", profile.textHz);
+        profile.fileHz = intent.getDoubleExtra("fileHz", profile.fileHz);
+        profile.imageSize = intent.getIntExtra("imageSize", profile.imageSize);
+        profile.shape = intent.getIntExtra("shape", profile.shape);
+        profile.burstSize = intent.getIntExtra("burstSize", profile.burstSize);
+        profile.durationMs = intent.getLongExtra("durationMs", profile.durationMs);
+        profile.binary = intent.getBooleanExtra("binary", profile.binary);
+        synchronized (this) {
+            if (mLoadGenerator == null) {
+                mLoadGenerator = new LoadGenerator(new LoadGenerator.Target() {
+                    @Override
+                    public int receive(String peerId, int type, byte[] data) {
+                        String str = WireCodec.isBinaryFrame(data) ? null : new String(data);
+                        return toLoadResult(forwardReceived(peerId, type, data, str));
+                    }
+
+                    @Override
+                    public int receiveFile(String peerId, File file) {
+                        return toLoadResult(forwardReceivedFile(file));
+                    }
+                }, new File(getExternalFilesDir(null), LOAD_FILES_DIRECTORY),
+                        new LoadGenerator.ImageEncoder() {
+                            @Override
+                            public byte[] encode(int size) {
+                                Bitmap bitmap = Bitmap.createBitmap(size, size,
+                                        Bitmap.Config.RGB_565);
+                                bitmap.eraseColor(0xFF3366CC);
+                                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                                bitmap.compress(Bitmap.CompressFormat.JPEG, LOAD_IMAGE_QUALITY,
+                                        out);
+                                bitmap.recycle();
+                                return out.toByteArray();
+                            }
+                        });
+            }
+        }
+        mLoadGenerator.start(profile);
+    }
+
+    private static int toLoadResult(int forwardResult) {
+        switch (forwardResult) {
+            case FORWARD_DELIVERED:
+                return LoadGenerator.RESULT_DELIVERED;
+            case FORWARD_BATCHED:
+                return LoadGenerator.RESULT_BATCHED;
+            case FORWARD_STORED:
+                return LoadGenerator.RESULT_STORED;
+            default:
+                return LoadGenerator.RESULT_FAILED;
+        }
+    }
+
+    /**
+     * Starts or stops recording the frames exchanged with watches, see {@link #ACTION_CAPTURE}.
+     * A new capture keeps the trace of the previous one until it needs the space.
+     */
+    public synchronized void setCaptureEnabled(boolean isEnabled) {
+        TraceRecorder recorder = mTraceRecorder;
+        if (isEnabled == (recorder != null)) {
+            return;
+        }
+        if (isEnabled == false) {
+            mTraceRecorder = null;
+            recorder.close();
+            Utility.logDebug(TAG, "capture stopped: %s", recorder.getStats());
+            return;
+        }
+        try {
+            mTraceRecorder = new TraceRecorder(new File(getFilesDir(), TRACE_DIRECTORY),
+                    TRACE_FILE_SIZE, TRACE_FILE_COUNT);
+            Utility.logDebug(TAG, "capture started");
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot start capture");
+        }
+    }
+
+    /**
+     * Replays the recorded trace as if the watches had sent it again, see
+     * {@link #ACTION_REPLAY}. Results are printed by dump.
+     */
+    private synchronized void startReplay(boolean isRealtime) {
+        if (mTraceReplayer == null) {
+            mTraceReplayer = new TraceReplayer(new File(getFilesDir(), TRACE_DIRECTORY),
+                    new TraceReplayer.Target() {
+                        @Override
+                        public boolean receive(String peerId, int channelId, byte[] data) {
+                            if (isKnownChannel(channelId) == false) {
+                                return false;
+                            }
+                            String str = WireCodec.isBinaryFrame(data) ? null : new String(data);
+                            return forwardReceived(peerId, WireCodec.peekType(data), data, str)
+                                    != FORWARD_FAILED;
+                        }
+                    });
+        }
+        mTraceReplayer.start(isRealtime);
     }
 
     public void registerForFileTransfer() {
         Utility.logDebug(TAG, "registerForFileTransfer");
-        mCallback = new EventListener() {
-            @Override
-            public void onProgressChanged(int transId, int progress) {
-                Utility.logDebug(TAG, "onTransferProgress: transId(%d), progress(%d)", progress,
-                        transId);
-            }
+        File directory = new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DCIM), RECEIVED_FILES_DIRECTORY);
+        mFileTransferManager = new FileTransferManager(directory, RECEIVED_FILES_QUOTA_BYTES,
+                MAX_CONCURRENT_TRANSFERS, MAX_QUEUED_TRANSFERS,
+                new FileTransferManager.Listener() {
+                    @Override
+                    public void onTransferProgress(int runningCount, int queuedCount,
+                            int progress) {
+                        Utility.logDebug(TAG,
+                                "onTransferProgress: running(%d), queued(%d), progress(%d)",
+                                runningCount, queuedCount, progress);
+                    }
 
-            @Override
-            public void onTransferCompleted(int transId, String fileName, int errorCode) {
-                Utility.logDebug(TAG,
-                        "onTransferComplete: transId(%d), filename(%s), errorCode(%d)", transId,
-                        fileName, errorCode);
-
-                if (errorCode == SAFileTransfer.ERROR_NONE) {
-                    JSONObject jObj = createFileNameJSONObject(fileName);
-                    if (sendToSamsungAccessoryService(jObj.toString()) == false) {
-                        Utility.logError(TAG,
-                                "fails sending file to samsung accessory app, send Error to consumer");
-                        JSONObject jObjErr = createErrorJSONObject("binding error or linked app doesn't exist");
-                        sendToConsumer(jObjErr.toString());
+                    @Override
+                    public void onThumbnailReceived(int transId, File thumbnail) {
+                        JSONObject jObj = createFileNameJSONObject(TYPE_THUMBNAIL_PATH,
+                                thumbnail.getAbsolutePath());
+                        if (sendToSamsungAccessoryService(jObj.toString()) == false) {
+                            Utility.logError(TAG, "fails sending thumbnail of transfer (%d)",
+                                    transId);
+                        }
                     }
-                }
-            }
 
-            @Override
-            public void onTransferRequested(int id, String fileName) {
-                Utility.logDebug(TAG, "receiving file : transId: (%d) filename (%s)", id, fileName);
-                if (mSAFileTransfer != null)
-                    mSAFileTransfer.receive(id, getDestFilePath());
-            }
+                    @Override
+                    public void onFileReceived(int transId, File file) {
+                        if (forwardReceivedFile(file) == FORWARD_FAILED) {
+                            Utility.logError(TAG,
+                                    "fails sending file to samsung accessory app, send Error to consumer");
+                            JSONObject jObjErr = createErrorJSONObject("binding error or linked app doesn't exist");
+                            sendToConsumer(jObjErr.toString());
+                        }
+                    }
 
-        };
+                    @Override
+                    public void onTransferFailed(int transId, int errorCode) {
+                        Utility.logError(TAG, "transfer (%d) failed, errorCode (%d)", transId,
+                                errorCode);
+                    }
+                });
 
         SAft SAftPkg = new SAft();
         try {
@@ -441,23 +1531,17 @@ public class SamsungAccessoryProviderService extends SAAgent {
                 Toast.makeText(getBaseContext(), "Cannot initialize, unknown.", Toast.LENGTH_SHORT)
                         .show();
             }
-            Utility.logError(TAG, "", e);
+            Utility.logError(TAG, e, "SAFileTransfer is not supported");
             return;
         } catch (Exception e1) {
             Toast.makeText(getBaseContext(), "Cannot initialize, SAFileTransfer.",
                     Toast.LENGTH_SHORT).show();
-            Utility.logError(TAG, "", e1);
+            Utility.logError(TAG, e1, "Cannot initialize SAFileTransfer.");
             return;
         }
 
-        mSAFileTransfer = new SAFileTransfer(SamsungAccessoryProviderService.this, mCallback);
-    }
-
-    private String getDestFilePath() {
-        File file = new File(mFileDestPath);
-        if (file.exists() == true) {
-            file.delete();
-        }
-        return mFileDestPath;
+        mSAFileTransfer = new SAFileTransfer(SamsungAccessoryProviderService.this,
+                mFileTransferManager);
+        mFileTransferManager.setFileTransfer(mSAFileTransfer);
     }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import android.os.SystemClock;
+
+import com.samsung.example.samsungaccessoryprovider.utils.Utility;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs independent startup steps in parallel off the main thread and keeps a trace of when
+ * each step and milestone happened, relative to the creation of the orchestrator.
+ * <p>
+ * Worker threads exit once startup is over, so nothing is left running afterwards.
+ */
+public class StartupOrchestrator {
+    private static final String TAG = StartupOrchestrator.class.getSimpleName();
+    /* one per step that runs in parallel today: the SA initialization and the package query */
+    private static final int THREAD_COUNT = 2;
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    private static class Entry {
+        final String name;
+        final String thread;
+        final long startMs;
+        final long durationMs;
+
+        Entry(String name, String thread, long startMs, long durationMs) {
+            this.name = name;
+            this.thread = thread;
+            this.startMs = startMs;
+            this.durationMs = durationMs;
+        }
+    }
+
+    private final long mCreatedAt = SystemClock.elapsedRealtime();
+    private final ThreadPoolExecutor mExecutor;
+    /* guarded by this */
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+    public StartupOrchestrator() {
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int mCount = 0;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "Startup-" + (++mCount));
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs {@code step} on a startup thread, in parallel with other steps.
+     */
+    public void execute(final String name, final Runnable step) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runTraced(name, step);
+            }
+        });
+    }
+
+    /**
+     * Runs {@code step} on a startup thread, in parallel with other steps, so that a later
+     * step can wait for it with {@link #join}.
+     */
+    public Future<?> submit(final String name, final Runnable step) {
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                runTraced(name, step);
+            }
+        });
+    }
+
+    /**
+     * Waits until a step given to {@link #submit} is over.
+     *
+     * @return false if the step failed or the wait was interrupted
+     */
+    public boolean join(Future<?> step) {
+        try {
+            step.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Utility.logError(TAG, e.getCause(), "startup step failed");
+        }
+        return false;
+    }
+
+    /**
+     * Runs {@code step} on the calling thread and records how long it took.
+     */
+    public void runTraced(String name, Runnable step) {
+        long startedAt = SystemClock.elapsedRealtime();
+        try {
+            step.run();
+        } finally {
+            long endedAt = SystemClock.elapsedRealtime();
+            add(new Entry(name, Thread.currentThread().getName(), startedAt - mCreatedAt,
+                    endedAt - startedAt));
+        }
+    }
+
+    /**
+     * Records that {@code name} happened now.
+     */
+    public void mark(String name) {
+        add(new Entry(name, Thread.currentThread().getName(),
+                SystemClock.elapsedRealtime() - mCreatedAt, 0));
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Startup trace:");
+        for (Entry entry : mEntries) {
+            writer.println("  +" + entry.startMs + "ms " + entry.name
+                    + (entry.durationMs > 0 ? " took " + entry.durationMs + "ms" : "")
+                    + " [" + entry.thread + "]");
+        }
+    }
+
+    private synchronized void add(Entry entry) {
+        mEntries.add(entry);
+        Utility.logDebug(TAG, "startup: %s at +%d ms, took %d ms", entry.name, entry.startMs,
+                entry.durationMs);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Records the frames exchanged with watches into a ring of memory-mapped trace files.
+ * <p>
+ * A record is appended with a few buffer writes under a lock; the kernel writes the pages back
+ * to the files. When the current file is full the oldest one is reused, so the trace keeps
+ * the most recent traffic in a fixed amount of storage. Every file starts with a header
+ * holding its generation, which orders the files, and the end of its last complete record,
+ * which moves only after a record is written. {@link TraceReplayer} reads the files back.
+ * <p>
+ * File layout: magic, version, generation (long) and end offset (int) in a
+ * {@link #FILE_HEADER_SIZE} byte header, then records of: data length (int), direction
+ * (byte), {@link SystemClock#elapsedRealtimeNanos} (long), channel id (short), peer id length
+ * (byte), peer id in UTF-8 and the data.
+ */
+public class TraceRecorder {
+    public static final int DIRECTION_IN = 0;
+    public static final int DIRECTION_OUT = 1;
+
+    static final int MAGIC = 0x54524345;
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 32;
+    static final int GENERATION_OFFSET = 8;
+    static final int END_OFFSET = 16;
+    static final int RECORD_HEADER_SIZE = 16;
+    static final String FILE_PREFIX = "trace-";
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_PEER_ID_BYTES = 255;
+
+    private final File mDirectory;
+    private final int mFileSize;
+    private final int mFileCount;
+    /* guarded by this */
+    private final HashMap<String, byte[]> mPeerIds = new HashMap<String, byte[]>();
+    private MappedByteBuffer mBuffer = null;
+    private int mFileIndex = -1;
+    private long mGeneration = 0;
+    private int mEnd = 0;
+    private long mRecordCount = 0;
+    private long mDroppedCount = 0;
+    private boolean mIsClosed = false;
+
+    /**
+     * Starts a new trace in {@code directory}, after the files of any previous one.
+     *
+     * @param fileSize bytes per file, headers included
+     */
+    public TraceRecorder(File directory, int fileSize, int fileCount) throws IOException {
+        mDirectory = directory;
+        mFileSize = fileSize;
+        mFileCount = fileCount;
+        if (directory.isDirectory() == false && directory.mkdirs() == false) {
+            throw new IOException("cannot create " + directory.getPath());
+        }
+        /* continue after the newest file so the replayer sees one ordered trace */
+        File[] files = TraceReplayer.listTraceFiles(directory);
+        for (int i = 0; i < files.length; i++) {
+            long generation = TraceReplayer.readGeneration(files[i]);
+            if (generation >= mGeneration) {
+                mGeneration = generation + 1;
+            }
+        }
+        rotate();
+    }
+
+    /**
+     * Appends one frame. Frames that do not fit in a whole file are counted and skipped.
+     */
+    public synchronized void record(int direction, String peerId, int channelId, byte[] data) {
+        if (mIsClosed) {
+            return;
+        }
+        byte[] peer = getPeerIdBytes(peerId);
+        int size = RECORD_HEADER_SIZE + peer.length + data.length;
+        if (size > mFileSize - FILE_HEADER_SIZE) {
+            mDroppedCount++;
+            return;
+        }
+        if (mEnd + size > mFileSize) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                mDroppedCount++;
+                return;
+            }
+        }
+        int pos = mEnd;
+        mBuffer.putInt(pos, data.length);
+        mBuffer.put(pos + 4, (byte) direction);
+        mBuffer.putLong(pos + 5, SystemClock.elapsedRealtimeNanos());
+        mBuffer.putShort(pos + 13, (short) channelId);
+        mBuffer.put(pos + 15, (byte) peer.length);
+        mBuffer.position(pos + RECORD_HEADER_SIZE);
+        mBuffer.put(peer);
+        mBuffer.put(data);
+        mEnd = pos + size;
+        mBuffer.putInt(END_OFFSET, mEnd);
+        mRecordCount++;
+    }
+
+    /**
+     * Writes the current file back and stops recording.
+     */
+    public synchronized void close() {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+        mBuffer.force();
+    }
+
+    public synchronized String getStats() {
+        return "file=" + mFileIndex + " generation=" + mGeneration + " used=" + mEnd + "B records="
+                + mRecordCount + " dropped=" + mDroppedCount;
+    }
+
+    private void rotate() throws IOException {
+        if (mBuffer != null) {
+            mBuffer.force();
+            mGeneration++;
+        }
+        mFileIndex = (int) (mGeneration % mFileCount);
+        RandomAccessFile raf = new RandomAccessFile(new File(mDirectory,
+                FILE_PREFIX + mFileIndex), "rw");
+        try {
+            raf.setLength(mFileSize);
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mFileSize);
+        } finally {
+            raf.close();
+        }
+        /* an empty end first, so a half written header never exposes old records */
+        mBuffer.putInt(END_OFFSET, FILE_HEADER_SIZE);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putLong(GENERATION_OFFSET, mGeneration);
+        mEnd = FILE_HEADER_SIZE;
+    }
+
+    private byte[] getPeerIdBytes(String peerId) {
+        if (peerId == null) {
+            return new byte[0];
+        }
+        byte[] bytes = mPeerIds.get(peerId);
+        if (bytes == null) {
+            bytes = peerId.getBytes(UTF_8);
+            if (bytes.length > MAX_PEER_ID_BYTES) {
+                bytes = Arrays.copyOf(bytes, MAX_PEER_ID_BYTES);
+            }
+            mPeerIds.put(peerId, bytes);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import com.samsung.example.samsungaccessoryprovider.utils.Utility;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Feeds a trace written by {@link TraceRecorder} back into the provider, to reproduce what a
+ * watch sent without the watch.
+ * <p>
+ * Frames received from watches are handed to a {@link Target} in the order they were recorded,
+ * either as fast as the target takes them or spaced as they were recorded. Pauses longer than
+ * {@link #MAX_GAP_NANOS}, such as the time between two capture sessions, are shortened to it.
+ * Frames sent to watches are only counted. A replay runs on its own thread.
+ */
+public class TraceReplayer {
+    private static final String TAG = TraceReplayer.class.getSimpleName();
+    private static final long MAX_GAP_NANOS = 5000000000L;
+    /* a frame more than this behind its recorded time means the target could not keep up */
+    private static final long LATE_NANOS = 1000000L;
+
+    public interface Target {
+        /**
+         * Handles {@code data} as if {@code peerId} had sent it on {@code channelId}.
+         *
+         * @return false if it could not be forwarded to the linked app
+         */
+        boolean receive(String peerId, int channelId, byte[] data);
+    }
+
+    private static class Frame {
+        final int direction;
+        final long timestampNanos;
+        final int channelId;
+        final String peerId;
+        final byte[] data;
+
+        Frame(int direction, long timestampNanos, int channelId, String peerId, byte[] data) {
+            this.direction = direction;
+            this.timestampNanos = timestampNanos;
+            this.channelId = channelId;
+            this.peerId = peerId;
+            this.data = data;
+        }
+    }
+
+    private final File mDirectory;
+    private final Target mTarget;
+    /* guarded by this */
+    private Thread mThread = null;
+    private boolean mIsRealtime = false;
+    private long mReplayedCount = 0;
+    private long mFailedCount = 0;
+    private long mSkippedCount = 0;
+    private long mLateCount = 0;
+    private long mDurationNanos = 0;
+
+    public TraceReplayer(File directory, Target target) {
+        mDirectory = directory;
+        mTarget = target;
+    }
+
+    /**
+     * Replays the trace, unless a replay is already running.
+     *
+     * @param isRealtime true to keep the recorded spacing, false to replay as fast as possible
+     */
+    public synchronized void start(boolean isRealtime) {
+        if (mThread != null) {
+            Utility.logError(TAG, "replay already running");
+            return;
+        }
+        mIsRealtime = isRealtime;
+        mReplayedCount = 0;
+        mFailedCount = 0;
+        mSkippedCount = 0;
+        mLateCount = 0;
+        mDurationNanos = 0;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "TraceReplayer");
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Trace replay: " + (mThread != null ? "running" : "idle") + " realtime="
+                + mIsRealtime + " replayed=" + mReplayedCount + " failed=" + mFailedCount
+                + " skipped=" + mSkippedCount + " late=" + mLateCount + " duration="
+                + mDurationNanos / 1000000L + "ms");
+    }
+
+    private void replay() {
+        ArrayList<Frame> frames;
+        try {
+            frames = read(mDirectory);
+        } catch (IOException e) {
+            Utility.logError(TAG, e, "cannot read trace");
+            finish(0);
+            return;
+        }
+        Utility.logDebug(TAG, "replaying %d frames", frames.size());
+        long startedAt = System.nanoTime();
+        long offset = 0;
+        long previous = frames.isEmpty() ? 0 : frames.get(0).timestampNanos;
+        for (Frame frame : frames) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            offset += Math.min(Math.max(frame.timestampNanos - previous, 0), MAX_GAP_NANOS);
+            previous = frame.timestampNanos;
+            if (frame.direction != TraceRecorder.DIRECTION_IN) {
+                synchronized (this) {
+                    mSkippedCount++;
+                }
+                continue;
+            }
+            boolean isLate = false;
+            if (mIsRealtime) {
+                long delayNanos = startedAt + offset - System.nanoTime();
+                if (delayNanos > 0) {
+                    try {
+                        Thread.sleep(delayNanos / 1000000L, (int) (delayNanos % 1000000L));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                } else {
+                    isLate = -delayNanos > LATE_NANOS;
+                }
+            }
+            boolean isSent = mTarget.receive(frame.peerId, frame.channelId, frame.data);
+            synchronized (this) {
+                mReplayedCount++;
+                if (isSent == false) {
+                    mFailedCount++;
+                }
+                if (isLate) {
+                    mLateCount++;
+                }
+            }
+        }
+        finish(System.nanoTime() - startedAt);
+    }
+
+    private synchronized void finish(long durationNanos) {
+        mDurationNanos = durationNanos;
+        mThread = null;
+        Utility.logDebug(TAG, "replay done: %d frames in %d ms", mReplayedCount,
+                durationNanos / 1000000L);
+    }
+
+    /**
+     * Reads every complete frame of the trace in {@code directory}, oldest first.
+     */
+    private static ArrayList<Frame> read(File directory) throws IOException {
+        final File[] files = listTraceFiles(directory);
+        final long[] generations = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            generations[i] = readGeneration(files[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long diff = generations[lhs] - generations[rhs];
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        ArrayList<Frame> frames = new ArrayList<Frame>();
+        for (Integer index : order) {
+            if (generations[index] >= 0) {
+                readFrames(files[index], frames);
+            }
+        }
+        return frames;
+    }
+
+    static File[] listTraceFiles(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(TraceRecorder.FILE_PREFIX);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    /**
+     * @return the generation of a trace file, or -1 if {@code file} is not one
+     */
+    static long readGeneration(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() < TraceRecorder.FILE_HEADER_SIZE
+                        || raf.readInt() != TraceRecorder.MAGIC
+                        || raf.readInt() != TraceRecorder.VERSION) {
+                    return -1;
+                }
+                raf.seek(TraceRecorder.GENERATION_OFFSET);
+                return raf.readLong();
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void readFrames(File file, ArrayList<Frame> frames) throws IOException {
+        byte[] bytes;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(TraceRecorder.END_OFFSET);
+            int end = raf.readInt();
+            if (end < TraceRecorder.FILE_HEADER_SIZE || end > raf.length()) {
+                Utility.logError(TAG, "%s: bad end offset %d", file.getName(), end);
+                return;
+            }
+            bytes = new byte[end];
+            raf.seek(0);
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int pos = TraceRecorder.FILE_HEADER_SIZE;
+        while (bytes.length - pos >= TraceRecorder.RECORD_HEADER_SIZE) {
+            int length = buffer.getInt(pos);
+            int direction = buffer.get(pos + 4);
+            long timestamp = buffer.getLong(pos + 5);
+            int channelId = buffer.getShort(pos + 13) & 0xFFFF;
+            int peerLength = buffer.get(pos + 15) & 0xFF;
+            int dataStart = pos + TraceRecorder.RECORD_HEADER_SIZE + peerLength;
+            if (length < 0 || length > bytes.length - dataStart) {
+                Utility.logError(TAG, "%s: truncated record at %d", file.getName(), pos);
+                return;
+            }
+            String peerId = new String(bytes, pos + TraceRecorder.RECORD_HEADER_SIZE, peerLength,
+                    TraceRecorder.UTF_8);
+            frames.add(new Frame(direction, timestamp, channelId, peerId,
+                    Arrays.copyOfRange(bytes, dataStart, dataStart + length)));
+            pos = dataStart + length;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.backend;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary encoding of the channel messages.
+ * <p>
+ * A frame is {@link #MAGIC}, {@link #VERSION}, the message type and the payload of that type:
+ * a single byte for TYPE_CONNECTION_STATUS, a zigzag varint for TYPE_HEARTBEAT_COUNT and
+ * TYPE_STEPS_COUNT, a varint length followed by UTF-8 bytes for the text types, and nothing for
+ * TYPE_RESET. JSON text always starts with '{', so both formats can share one channel.
+ * <p>
+ * Frames are used between the provider and the linked app. The watch application sends
+ * strings through the Tizen SAP JavaScript API, which cannot carry arbitrary bytes, so the
+ * watch link stays on JSON unless a peer sends a binary frame first.
+ */
+public final class WireCodec {
+    public static final byte MAGIC = (byte) 0xA7;
+    public static final byte VERSION = 1;
+
+    private static final int HEADER_SIZE = 3;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] JSON_TYPE_KEY = "\"type\"".getBytes(UTF_8);
+
+    /**
+     * Decoded message. Only the fields used by {@link #type} are meaningful.
+     */
+    public static class Frame {
+        public int type;
+        public int intValue;
+        public boolean boolValue;
+        public String text;
+
+        public void clear() {
+            type = -1;
+            intValue = 0;
+            boolValue = false;
+            text = null;
+        }
+
+        public void set(Frame other) {
+            type = other.type;
+            intValue = other.intValue;
+            boolValue = other.boolValue;
+            text = other.text;
+        }
+    }
+
+    private WireCodec() {
+    }
+
+    public static boolean isBinaryFrame(byte[] data) {
+        return data != null && data.length >= HEADER_SIZE && data[0] == MAGIC;
+    }
+
+    /**
+     * Reads the message type of a binary frame or a JSON message without decoding it.
+     *
+     * @return the type, or -1 if there is none
+     */
+    public static int peekType(byte[] data) {
+        if (isBinaryFrame(data)) {
+            return data[2] & 0xFF;
+        }
+        if (data == null) {
+            return -1;
+        }
+        int last = data.length - JSON_TYPE_KEY.length;
+        for (int i = 0; i <= last; i++) {
+            int matched = 0;
+            while (matched < JSON_TYPE_KEY.length && data[i + matched] == JSON_TYPE_KEY[matched]) {
+                matched++;
+            }
+            if (matched < JSON_TYPE_KEY.length) {
+                continue;
+            }
+            int pos = skipSpaces(data, i + JSON_TYPE_KEY.length);
+            if (pos == data.length || data[pos] != ':') {
+                /* "type" was a value, not a key */
+                continue;
+            }
+            pos = skipSpaces(data, pos + 1);
+            int type = -1;
+            while (pos < data.length && data[pos] >= '0' && data[pos] <= '9') {
+                type = (type < 0 ? 0 : type * 10) + data[pos] - '0';
+                pos++;
+            }
+            if (type >= 0) {
+                return type;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(byte[] data, int pos) {
+        while (pos < data.length && data[pos] == ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    public static byte[] encodeEmpty(int type) {
+        return header(type, 0);
+    }
+
+    public static byte[] encodeBoolean(int type, boolean value) {
+        byte[] out = header(type, 1);
+        out[HEADER_SIZE] = (byte) (value ? 1 : 0);
+        return out;
+    }
+
+    public static byte[] encodeInt(int type, int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        byte[] out = header(type, varintSize(zigzag));
+        writeVarint(out, HEADER_SIZE, zigzag);
+        return out;
+    }
+
+    public static byte[] encodeText(int type, String text) {
+        if (text == null) {
+            return encodeEmpty(type);
+        }
+        byte[] utf8 = text.getBytes(UTF_8);
+        int lengthSize = varintSize(utf8.length);
+        byte[] out = header(type, lengthSize + utf8.length);
+        writeVarint(out, HEADER_SIZE, utf8.length);
+        System.arraycopy(utf8, 0, out, HEADER_SIZE + lengthSize, utf8.length);
+        return out;
+    }
+
+    public static byte[] encode(Frame frame) {
+        switch (frame.type) {
+            case SamsungAccessoryProviderService.TYPE_CONNECTION_STATUS:
+                return encodeBoolean(frame.type, frame.boolValue);
+            case SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT:
+            case SamsungAccessoryProviderService.TYPE_STEPS_COUNT:
+                return encodeInt(frame.type, frame.intValue);
+            case SamsungAccessoryProviderService.TYPE_TEXT:
+            case SamsungAccessoryProviderService.TYPE_FILE_PATH:
+            case SamsungAccessoryProviderService.TYPE_THUMBNAIL_PATH:
+            case SamsungAccessoryProviderService.TYPE_ERROR:
+            case SamsungAccessoryProviderService.TYPE_DEVICEMODEL:
+                return encodeText(frame.type, frame.text);
+            default:
+                return encodeEmpty(frame.type);
+        }
+    }
+
+    /**
+     * Decodes a binary frame into {@code out}.
+     *
+     * @return false if the frame is truncated or uses an unsupported version
+     */
+    public static boolean decode(byte[] data, Frame out) {
+        out.clear();
+        if (!isBinaryFrame(data) || data[1] != VERSION) {
+            return false;
+        }
+        out.type = data[2] & 0xFF;
+        int pos = HEADER_SIZE;
+        switch (out.type) {
+            case SamsungAccessoryProviderService.TYPE_CONNECTION_STATUS:
+                if (pos >= data.length) {
+                    return false;
+                }
+                out.boolValue = data[pos] != 0;
+                return true;
+            case SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT:
+            case SamsungAccessoryProviderService.TYPE_STEPS_COUNT: {
+                long varint = readVarint(data, pos);
+                if (varint < 0) {
+                    return false;
+                }
+                int zigzag = (int) varint;
+                out.intValue = (zigzag >>> 1) ^ -(zigzag & 1);
+                return true;
+            }
+            case SamsungAccessoryProviderService.TYPE_TEXT:
+            case SamsungAccessoryProviderService.TYPE_FILE_PATH:
+            case SamsungAccessoryProviderService.TYPE_THUMBNAIL_PATH:
+            case SamsungAccessoryProviderService.TYPE_ERROR:
+            case SamsungAccessoryProviderService.TYPE_DEVICEMODEL: {
+                if (pos == data.length) {
+                    return true;
+                }
+                long varint = readVarint(data, pos);
+                if (varint < 0) {
+                    return false;
+                }
+                /* compared as long: a length of 2^31 or more must not wrap negative */
+                long length = varint & 0xFFFFFFFFL;
+                pos += (int) (varint >>> 32);
+                if (length > data.length - pos) {
+                    return false;
+                }
+                out.text = new String(data, pos, (int) length, UTF_8);
+                return true;
+            }
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Fills {@code out} from a legacy JSON message.
+     *
+     * @return false if the JSON has no type
+     */
+    public static boolean fromJSONObject(JSONObject jObj, Frame out) {
+        out.clear();
+        try {
+            out.type = jObj.getInt("type");
+        } catch (JSONException e) {
+            return false;
+        }
+        switch (out.type) {
+            case SamsungAccessoryProviderService.TYPE_CONNECTION_STATUS:
+                out.boolValue = jObj.optBoolean("connection");
+                break;
+            case SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT:
+                out.intValue = jObj.optInt("heartbeat", 0);
+                break;
+            case SamsungAccessoryProviderService.TYPE_STEPS_COUNT:
+                out.intValue = jObj.optInt("steps", 0);
+                break;
+            case SamsungAccessoryProviderService.TYPE_TEXT:
+            case SamsungAccessoryProviderService.TYPE_DEVICEMODEL:
+                out.text = jObj.optString("text", null);
+                break;
+            case SamsungAccessoryProviderService.TYPE_FILE_PATH:
+            case SamsungAccessoryProviderService.TYPE_THUMBNAIL_PATH:
+                out.text = jObj.optString("filename", null);
+                break;
+            case SamsungAccessoryProviderService.TYPE_ERROR:
+                out.text = jObj.optString("error", null);
+                break;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    public static JSONObject toJSONObject(Frame frame) throws JSONException {
+        JSONObject jObj = new JSONObject();
+        jObj.put("type", frame.type);
+        switch (frame.type) {
+            case SamsungAccessoryProviderService.TYPE_CONNECTION_STATUS:
+                jObj.put("connection", frame.boolValue);
+                break;
+            case SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT:
+                jObj.put("heartbeat", frame.intValue);
+                break;
+            case SamsungAccessoryProviderService.TYPE_STEPS_COUNT:
+                jObj.put("steps", frame.intValue);
+                break;
+            case SamsungAccessoryProviderService.TYPE_TEXT:
+            case SamsungAccessoryProviderService.TYPE_DEVICEMODEL:
+                jObj.put("text", frame.text);
+                break;
+            case SamsungAccessoryProviderService.TYPE_FILE_PATH:
+            case SamsungAccessoryProviderService.TYPE_THUMBNAIL_PATH:
+                jObj.put("filename", frame.text);
+                break;
+            case SamsungAccessoryProviderService.TYPE_ERROR:
+                jObj.put("error", frame.text);
+                break;
+            default:
+                break;
+        }
+        return jObj;
+    }
+
+    private static byte[] header(int type, int payloadSize) {
+        byte[] out = new byte[HEADER_SIZE + payloadSize];
+        out[0] = MAGIC;
+        out[1] = VERSION;
+        out[2] = (byte) type;
+        return out;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos] = (byte) value;
+    }
+
+    /**
+     * Reads an unsigned 32-bit varint. The number of bytes read is returned along with the
+     * value, because a non-canonical encoding such as {@code 0x83 0x00} is longer than
+     * {@link #varintSize} of its value.
+     *
+     * @return the value in the low 32 bits and the number of bytes read above them, or -1 if
+     *         the varint runs past the end of {@code data} or does not fit in 32 bits
+     */
+    private static long readVarint(byte[] data, int pos) {
+        long result = 0;
+        int start = pos;
+        for (int shift = 0; shift < 35 && pos < data.length; shift += 7) {
+            byte b = data[pos++];
+            if (shift == 28 && (b & 0x70) != 0) {
+                /* the fifth byte carries the top 4 bits only */
+                return -1;
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (long) (pos - start) << 32 | result;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+
+package com.samsung.example.samsungaccessoryprovider.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.IllegalFormatException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size in-memory log that stores the format string and the arguments of each message.
+ * <p>
+ * Writers only claim a slot and copy the arguments into preallocated arrays: numbers, booleans
+ * and characters as primitives, strings by reference and any other object as its string value
+ * at the time of the call. Formatting is done when the ring is dumped, so a recorded message
+ * costs no string building. Old records are overwritten once the ring wraps.
+ * <p>
+ * {@link #writeTo} saves the records in a binary form that {@link #decode} turns into text on
+ * any JVM: {@code java -cp bin <this class> log.ring}.
+ */
+public class LogRing {
+    static final int ARGS_NONE = 0;
+    static final int ARGS_LONG = 1;
+    static final int ARGS_LONG_LONG = 2;
+    static final int ARGS_LONG_OBJECT = 3;
+    static final int ARGS_ARRAY = 4;
+    static final int ARGS_OBJECT = 5;
+    static final int ARGS_OBJECT_OBJECT = 6;
+
+    /** Arguments past this count are not kept and the message is shown unformatted. */
+    public static final int MAX_ARGS = 6;
+
+    private static final int NO_FORMAT = -1;
+
+    private static final byte ARG_NULL = 0;
+    private static final byte ARG_INT = 1;
+    private static final byte ARG_LONG = 2;
+    private static final byte ARG_DOUBLE = 3;
+    private static final byte ARG_BOOLEAN = 4;
+    private static final byte ARG_CHAR = 5;
+    private static final byte ARG_STRING = 6;
+
+    private static final int FILE_MAGIC = 0x4C4F4752;
+    private static final int FILE_VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int mCapacity;
+    private final AtomicLong mNext = new AtomicLong();
+    private final AtomicLongArray mSequences;
+    private final long[] mTimes;
+    private final int[] mLevels;
+    private final String[] mTags;
+    private final String[] mFormats;
+    private final int[] mArgCounts;
+    private final byte[] mArgTypes;
+    private final long[] mArgValues;
+    private final String[] mArgStrings;
+
+    public LogRing(int capacity) {
+        mCapacity = capacity;
+        mSequences = new AtomicLongArray(capacity);
+        mTimes = new long[capacity];
+        mLevels = new int[capacity];
+        mTags = new String[capacity];
+        mFormats = new String[capacity];
+        mArgCounts = new int[capacity];
+        mArgTypes = new byte[capacity * MAX_ARGS];
+        mArgValues = new long[capacity * MAX_ARGS];
+        mArgStrings = new String[capacity * MAX_ARGS];
+        for (int i = 0; i < capacity; i++) {
+            mSequences.set(i, -1);
+        }
+    }
+
+    void record(int level, String tag, String format, int argKind, long first, long second,
+            Object object, Object secondObject) {
+        long sequence = mNext.getAndIncrement();
+        int slot = (int) (sequence % mCapacity);
+        int base = slot * MAX_ARGS;
+        int count;
+        mSequences.set(slot, -1);
+        mTimes[slot] = System.currentTimeMillis();
+        mLevels[slot] = level;
+        mTags[slot] = tag;
+        mFormats[slot] = format;
+        switch (argKind) {
+            case ARGS_LONG:
+                putPrimitive(base, ARG_LONG, first);
+                count = 1;
+                break;
+            case ARGS_LONG_LONG:
+                putPrimitive(base, ARG_LONG, first);
+                putPrimitive(base + 1, ARG_LONG, second);
+                count = 2;
+                break;
+            case ARGS_LONG_OBJECT:
+                putPrimitive(base, ARG_LONG, first);
+                putObject(base + 1, object);
+                count = 2;
+                break;
+            case ARGS_OBJECT:
+                putObject(base, object);
+                count = 1;
+                break;
+            case ARGS_OBJECT_OBJECT:
+                putObject(base, object);
+                putObject(base + 1, secondObject);
+                count = 2;
+                break;
+            case ARGS_ARRAY:
+                Object[] args = (Object[]) object;
+                count = args == null ? 0 : args.length;
+                for (int i = 0; i < count && i < MAX_ARGS; i++) {
+                    putObject(base + i, args[i]);
+                }
+                break;
+            default:
+                count = NO_FORMAT;
+                break;
+        }
+        mArgCounts[slot] = count;
+        mSequences.lazySet(slot, sequence);
+    }
+
+    private void putPrimitive(int index, byte type, long value) {
+        mArgTypes[index] = type;
+        mArgValues[index] = value;
+        mArgStrings[index] = null;
+    }
+
+    private void putObject(int index, Object value) {
+        if (value == null) {
+            putPrimitive(index, ARG_NULL, 0);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            putPrimitive(index, ARG_INT, ((Number) value).longValue());
+        } else if (value instanceof Long) {
+            putPrimitive(index, ARG_LONG, ((Long) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            putPrimitive(index, ARG_DOUBLE,
+                    Double.doubleToRawLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof Boolean) {
+            putPrimitive(index, ARG_BOOLEAN, ((Boolean) value).booleanValue() ? 1 : 0);
+        } else if (value instanceof Character) {
+            putPrimitive(index, ARG_CHAR, ((Character) value).charValue());
+        } else {
+            /* anything mutable is captured as it is now, not as it is when dumped */
+            mArgTypes[index] = ARG_STRING;
+            mArgValues[index] = 0;
+            mArgStrings[index] = value.toString();
+        }
+    }
+
+    /**
+     * Formats the retained records, oldest first. Records overwritten while dumping are skipped.
+     */
+    public void dump(PrintWriter writer) {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        Entry entry = new Entry();
+        long end = mNext.get();
+        for (long sequence = Math.max(0, end - mCapacity); sequence < end; sequence++) {
+            if (read(sequence, entry)) {
+                entry.print(writer, timeFormat);
+            }
+        }
+    }
+
+    /**
+     * Writes the retained records in the binary form read by {@link #decode}.
+     *
+     * @return the number of records written
+     */
+    public int writeTo(OutputStream stream) throws IOException {
+        Entry entry = new Entry();
+        long end = mNext.get();
+        long start = Math.max(0, end - mCapacity);
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            if (read(sequence, entry)) {
+                entry.write(out);
+                count++;
+            }
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Turns records saved by {@link #writeTo} into the text {@link #dump} prints.
+     */
+    public static void decode(InputStream stream, PrintWriter writer) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+            throw new IOException("not a log ring file");
+        }
+        SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        Entry entry = new Entry();
+        while (entry.read(in)) {
+            entry.print(writer, timeFormat);
+        }
+        writer.flush();
+    }
+
+    public static void main(String[] args) throws IOException {
+        PrintWriter writer = new PrintWriter(System.out);
+        for (String path : args) {
+            InputStream in = new FileInputStream(path);
+            try {
+                decode(in, writer);
+            } finally {
+                in.close();
+            }
+        }
+        writer.flush();
+    }
+
+    private boolean read(long sequence, Entry entry) {
+        int slot = (int) (sequence % mCapacity);
+        if (mSequences.get(slot) != sequence) {
+            return false;
+        }
+        entry.time = mTimes[slot];
+        entry.level = mLevels[slot];
+        entry.tag = mTags[slot];
+        entry.format = mFormats[slot];
+        entry.count = mArgCounts[slot];
+        int base = slot * MAX_ARGS;
+        for (int i = 0; i < entry.count && i < MAX_ARGS; i++) {
+            entry.types[i] = mArgTypes[base + i];
+            entry.values[i] = mArgValues[base + i];
+            entry.strings[i] = mArgStrings[base + i];
+        }
+        return mSequences.get(slot) == sequence;
+    }
+
+    static String format(String format, int argKind, long first, long second,
+            Object object, Object secondObject) {
+        Object[] args;
+        switch (argKind) {
+            case ARGS_LONG:
+                args = new Object[] { first };
+                break;
+            case ARGS_LONG_LONG:
+                args = new Object[] { first, second };
+                break;
+            case ARGS_LONG_OBJECT:
+                args = new Object[] { first, object };
+                break;
+            case ARGS_OBJECT:
+                args = new Object[] { object };
+                break;
+            case ARGS_OBJECT_OBJECT:
+                args = new Object[] { object, secondObject };
+                break;
+            case ARGS_ARRAY:
+                args = (Object[]) object;
+                break;
+            default:
+                return format;
+        }
+        try {
+            return String.format(Locale.US, format, args);
+        } catch (IllegalFormatException e) {
+            return format;
+        }
+    }
+
+    private static char levelChar(int level) {
+        return "??VDIWEA".charAt(Math.min(Math.max(level, 0), 7));
+    }
+
+    /* one record copied out of the ring or read back from a file */
+    private static class Entry {
+        long time;
+        int level;
+        String tag;
+        String format;
+        int count;
+        final byte[] types = new byte[MAX_ARGS];
+        final long[] values = new long[MAX_ARGS];
+        final String[] strings = new String[MAX_ARGS];
+
+        void print(PrintWriter writer, SimpleDateFormat timeFormat) {
+            writer.print(timeFormat.format(new Date(time)));
+            writer.print(' ');
+            writer.print(levelChar(level));
+            writer.print('/');
+            writer.print(tag);
+            writer.print(": ");
+            writer.println(message());
+        }
+
+        String message() {
+            if (count == NO_FORMAT || count > MAX_ARGS) {
+                return format;
+            }
+            Object[] args = new Object[count];
+            for (int i = 0; i < count; i++) {
+                args[i] = argument(i);
+            }
+            return format(format, ARGS_ARRAY, 0, 0, args, null);
+        }
+
+        private Object argument(int i) {
+            switch (types[i]) {
+                case ARG_INT:
+                    return Integer.valueOf((int) values[i]);
+                case ARG_LONG:
+                    return Long.valueOf(values[i]);
+                case ARG_DOUBLE:
+                    return Double.valueOf(Double.longBitsToDouble(values[i]));
+                case ARG_BOOLEAN:
+                    return Boolean.valueOf(values[i] != 0);
+                case ARG_CHAR:
+                    return Character.valueOf((char) values[i]);
+                case ARG_STRING:
+                    return strings[i];
+                default:
+                    return null;
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(time);
+            out.writeByte(level);
+            writeString(out, tag);
+            writeString(out, format);
+            out.writeInt(count);
+            for (int i = 0; i < count && i < MAX_ARGS; i++) {
+                out.writeByte(types[i]);
+                if (types[i] == ARG_STRING) {
+                    writeString(out, strings[i]);
+                } else {
+                    out.writeLong(values[i]);
+                }
+            }
+        }
+
+        boolean read(DataInputStream in) throws IOException {
+            try {
+                time = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            level = in.readByte();
+            tag = readString(in);
+            format = readString(in);
+            count = in.readInt();
+            for (int i = 0; i < count && i < MAX_ARGS; i++) {
+                types[i] = in.readByte();
+                if (types[i] == ARG_STRING) {
+                    strings[i] = readString(in);
+                } else {
+                    values[i] = in.readLong();
+                }
+            }
+            return true;
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+}
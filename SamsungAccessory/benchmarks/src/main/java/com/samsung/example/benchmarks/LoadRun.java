@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+package com.samsung.example.benchmarks;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.samsung.example.samsungaccessoryprovider.backend.LoadGenerator;
+import com.samsung.example.samsungaccessoryprovider.backend.OutboundSendQueue;
+import com.samsung.example.samsungaccessoryprovider.backend.SamsungAccessoryProviderService;
+import com.samsung.example.samsungaccessoryprovider.backend.SampleBatcher;
+import com.samsung.example.samsungaccessoryprovider.backend.WireCodec;
+import com.samsung.example.samsungaccessoryprovider.utils.Metrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Runs the provider's {@link LoadGenerator} on a plain JVM, against a pipeline built from the
+ * classes the provider service uses: samples go through a {@link SampleBatcher}, everything
+ * else through an {@link OutboundSendQueue} whose transport decodes the frames as the linked
+ * app does. Texts are timed from the generator to that decoder in {@code load.endToEnd}.
+ * <p>
+ * Arguments are {@code name=value} pairs named after the fields of
+ * {@link LoadGenerator.Profile}, for example {@code peers=8 heartbeatHz=20 shape=1}.
+ */
+public final class LoadRun {
+    private static final int DEFAULT_CHANNEL_ID = 104;
+    private static final int SENSOR_CHANNEL_ID = 105;
+    private static final int CONTROL_CAPACITY = 8;
+    private static final int SENSOR_CAPACITY = 32;
+    private static final int BULK_CAPACITY = 64;
+    private static final int BATCH_MAX_SIZE = 16;
+    private static final long BATCH_MAX_LATENCY_MS = 1000;
+    private static final String SENT_AT_MARKER = LoadGenerator.SENT_AT_MARKER;
+
+    private final Metrics mMetrics = Metrics.getDefault();
+    private final int mEndToEndStage = mMetrics.getStage("load.endToEnd");
+    private final Handler mHandler = new Handler();
+    private final OutboundSendQueue mQueue;
+    private final SampleBatcher mBatcher;
+
+    private LoadRun() {
+        mQueue = new OutboundSendQueue("LoadRun-writer", new OutboundSendQueue.Transport() {
+            @Override
+            public void send(int channelId, byte[] data) throws IOException {
+                receiveInLinkedApp(data);
+            }
+        }, CONTROL_CAPACITY, SENSOR_CAPACITY, BULK_CAPACITY,
+                OutboundSendQueue.OverflowPolicy.BLOCK);
+        mBatcher = new SampleBatcher(mHandler, BATCH_MAX_SIZE, BATCH_MAX_LATENCY_MS,
+                new SampleBatcher.Sink() {
+                    @Override
+                    public void onSampleBatch(String peerId, int type, long[] timestamps, int[] values) {
+                        for (int value : values) {
+                            mQueue.enqueue(OutboundSendQueue.LANE_SENSOR, SENSOR_CHANNEL_ID,
+                                    WireCodec.encodeInt(type, value),
+                                    OutboundSendQueue.NO_COALESCE);
+                        }
+                    }
+                });
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator.Profile profile = parseProfile(args);
+        new LoadRun().run(profile);
+    }
+
+    private void run(LoadGenerator.Profile profile) throws InterruptedException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "load-run");
+        LoadGenerator generator = new LoadGenerator(new LoadGenerator.Target() {
+            @Override
+            public int receive(String peerId, int type, byte[] data) {
+                return forward(peerId, type, data);
+            }
+
+            @Override
+            public int receiveFile(String peerId, File file) {
+                WireCodec.Frame frame = new WireCodec.Frame();
+                frame.type = SamsungAccessoryProviderService.TYPE_FILE_PATH;
+                frame.text = file.getAbsolutePath();
+                return enqueue(OutboundSendQueue.LANE_BULK, DEFAULT_CHANNEL_ID,
+                        WireCodec.encode(frame));
+            }
+        }, directory, new LoadGenerator.ImageEncoder() {
+            @Override
+            public byte[] encode(int size) {
+                return encodeImage(size);
+            }
+        });
+
+        mQueue.start();
+        generator.start(profile);
+        Thread.sleep(profile.durationMs);
+        generator.stop();
+        mBatcher.flush();
+        mQueue.stop();
+        mHandler.quit();
+
+        PrintWriter writer = new PrintWriter(System.out);
+        generator.dump(writer);
+        writer.println("Queue: sent=" + mQueue.getSentCount() + " dropped="
+                + mQueue.getDroppedCount() + " rejected=" + mQueue.getRejectedCount());
+        mMetrics.dump(writer);
+        writer.flush();
+    }
+
+    /* what the provider service does with data from a watch */
+    private int forward(String peerId, int type, byte[] data) {
+        WireCodec.Frame frame = new WireCodec.Frame();
+        if (WireCodec.isBinaryFrame(data)) {
+            if (WireCodec.decode(data, frame) == false) {
+                return LoadGenerator.RESULT_FAILED;
+            }
+        } else {
+            try {
+                if (WireCodec.fromJSONObject(new JSONObject(new String(data)), frame) == false) {
+                    return LoadGenerator.RESULT_FAILED;
+                }
+            } catch (JSONException e) {
+                return LoadGenerator.RESULT_FAILED;
+            }
+        }
+        if (SampleBatcher.isBatchedType(frame.type)
+                && mBatcher.add(peerId, frame.type, frame.intValue)) {
+            return LoadGenerator.RESULT_BATCHED;
+        }
+        mBatcher.flush();
+        return enqueue(OutboundSendQueue.LANE_BULK, DEFAULT_CHANNEL_ID, WireCodec.encode(frame));
+    }
+
+    private int enqueue(int lane, int channelId, byte[] data) {
+        return mQueue.enqueue(lane, channelId, data, OutboundSendQueue.NO_COALESCE)
+                ? LoadGenerator.RESULT_DELIVERED : LoadGenerator.RESULT_FAILED;
+    }
+
+    /* what the linked app does with a frame from the provider */
+    private void receiveInLinkedApp(byte[] data) throws IOException {
+        WireCodec.Frame frame = new WireCodec.Frame();
+        if (WireCodec.decode(data, frame) == false) {
+            throw new IOException("malformed frame");
+        }
+        if (frame.type != SamsungAccessoryProviderService.TYPE_TEXT || frame.text == null) {
+            return;
+        }
+        int marker = frame.text.lastIndexOf(SENT_AT_MARKER);
+        if (marker >= 0) {
+            long sentAt = Long.parseLong(frame.text.substring(marker + SENT_AT_MARKER.length()));
+            mMetrics.record(mEndToEndStage, frame.type,
+                    SystemClock.elapsedRealtimeNanos() - sentAt);
+        }
+    }
+
+    private static byte[] encodeImage(int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(0x3366CC));
+        graphics.fillRect(0, 0, size, size);
+        graphics.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "jpg", out);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot encode image", e);
+        }
+        return out.toByteArray();
+    }
+
+    private static LoadGenerator.Profile parseProfile(String[] args) {
+        LoadGenerator.Profile profile = new LoadGenerator.Profile();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("expected name=value: " + arg);
+            }
+            String name = arg.substring(0, separator);
+            String value = arg.substring(separator + 1);
+            if ("peers".equals(name)) {
+                profile.peers = Integer.parseInt(value);
+            } else if ("heartbeatHz".equals(name)) {
+                profile.heartbeatHz = Double.parseDouble(value);
+            } else if ("stepsHz".equals(name)) {
+                profile.stepsHz = Double.parseDouble(value);
+            } else if ("textHz".equals(name)) {
+                profile.textHz = Double.parseDouble(value);
+            } else if ("fileHz".equals(name)) {
+                profile.fileHz = Double.parseDouble(value);
+            } else if ("imageSize".equals(name)) {
+                profile.imageSize = Integer.parseInt(value);
+            } else if ("shape".equals(name)) {
+                profile.shape = Integer.parseInt(value);
+            } else if ("burstSize".equals(name)) {
+                profile.burstSize = Integer.parseInt(value);
+            } else if ("durationMs".equals(name)) {
+                profile.durationMs = Long.parseLong(value);
+            } else if ("binary".equals(name)) {
+                profile.binary = Boolean.parseBoolean(value);
+            } else {
+                throw new IllegalArgumentException("unknown profile field: " + name);
+            }
+        }
+        return profile;
+    }
+}
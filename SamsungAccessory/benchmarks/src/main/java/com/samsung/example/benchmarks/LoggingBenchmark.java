@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+package com.samsung.example.benchmarks;
+
+import android.util.Log;
+
+import com.samsung.example.samsungaccessoryprovider.utils.LogRing;
+import com.samsung.example.samsungaccessoryprovider.utils.Utility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The logging calls of the message paths, with debug logging off as in a release build and on
+ * as in a debug build, with and without the log ring that release builds install. While the
+ * ring is set, debug messages are recorded whatever the log level.
+ */
+@State(Scope.Thread)
+public class LoggingBenchmark extends BaseBenchmark {
+    private static final String TAG = "Benchmark";
+    private static final int LOG_RING_CAPACITY = 1024;
+
+    @Param({ "false", "true" })
+    public boolean debug;
+
+    @Param({ "false", "true" })
+    public boolean logRing;
+
+    private int mChannelId = 104;
+    private String mText = "Hello from the Gear";
+
+    @Setup
+    public void setUp() {
+        Utility.setLogLevel(debug ? Log.DEBUG : Log.INFO);
+        Utility.setLogRing(logRing ? new LogRing(LOG_RING_CAPACITY) : null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Utility.setLogRing(null);
+    }
+
+    @Benchmark
+    public String buildFormattedMessage() {
+        return Utility.buildFormattedMessage("onReceive: channelId: %d, data: %s", mChannelId,
+                mText);
+    }
+
+    @Benchmark
+    public void logDebugPrimitive() {
+        Utility.logDebug(TAG, "onReceive: channelId: %d, binary frame (%d bytes)", mChannelId,
+                mText.length());
+    }
+
+    @Benchmark
+    public void logDebugObject() {
+        Utility.logDebug(TAG, "text = %s", mText);
+    }
+
+    @Benchmark
+    public void logDebugVarargs() {
+        Utility.logDebug(TAG, "onReceive: channelId: %d, data: %s", mChannelId, mText);
+    }
+
+    @Benchmark
+    public void logWarning() {
+        Utility.logWarning(TAG, "shared ring is full, message left to the outbox");
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+package com.samsung.example.benchmarks;
+
+import com.samsung.example.samsungaccessoryprovider.backend.SamsungAccessoryProviderService;
+import com.samsung.example.samsungaccessoryprovider.backend.WireCodec;
+
+/**
+ * Typical content of each message type.
+ */
+final class Messages {
+    private Messages() {
+    }
+
+    static void fill(WireCodec.Frame frame, int type, int sequence) {
+        frame.clear();
+        frame.type = type;
+        switch (type) {
+            case SamsungAccessoryProviderService.TYPE_CONNECTION_STATUS:
+                frame.boolValue = true;
+                break;
+            case SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT:
+                frame.intValue = 60 + sequence % 40;
+                break;
+            case SamsungAccessoryProviderService.TYPE_STEPS_COUNT:
+                frame.intValue = 1000 + sequence;
+                break;
+            case SamsungAccessoryProviderService.TYPE_TEXT:
+                frame.text = "Hello from the Gear, message " + sequence;
+                break;
+            case SamsungAccessoryProviderService.TYPE_FILE_PATH:
+            case SamsungAccessoryProviderService.TYPE_THUMBNAIL_PATH:
+                frame.text = "/storage/emulated/0/DCIM/SamsungAccessory/image-" + sequence
+                        + ".jpg";
+                break;
+            case SamsungAccessoryProviderService.TYPE_ERROR:
+                frame.text = "binding error or linked app doesn't exist";
+                break;
+            case SamsungAccessoryProviderService.TYPE_DEVICEMODEL:
+                frame.text = "SM-R750";
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+package com.samsung.example.benchmarks;
+
+import com.samsung.example.samsungaccessoryprovider.backend.SamsungAccessoryProviderService;
+import com.samsung.example.samsungaccessoryprovider.utils.Metrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Recording a latency sample, done several times for every message that crosses the services.
+ */
+@State(Scope.Benchmark)
+public class MetricsBenchmark extends BaseBenchmark {
+    private Metrics mMetrics;
+    private int mStage;
+
+    @Setup
+    public void setUp() {
+        mMetrics = Metrics.getDefault();
+        mStage = mMetrics.getStage("benchmark.record");
+    }
+
+    @Benchmark
+    public void record() {
+        mMetrics.record(mStage, SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT, "peer", 1000,
+                16);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        mMetrics.record(mStage, SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT, "peer", 1000,
+                16);
+    }
+}
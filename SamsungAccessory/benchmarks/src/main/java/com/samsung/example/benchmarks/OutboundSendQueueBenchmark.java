@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+package com.samsung.example.benchmarks;
+
+import com.samsung.example.samsungaccessoryprovider.backend.OutboundSendQueue;
+import com.samsung.example.samsungaccessoryprovider.backend.SamsungAccessoryProviderService;
+import com.samsung.example.samsungaccessoryprovider.backend.WireCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Queueing messages for the writer thread while it sends them through a transport that takes
+ * {@link #sendNanos} per message, roughly the cost of a channel write. With a slow transport
+ * the lanes fill up and the overflow policy decides what enqueue costs.
+ */
+@State(Scope.Benchmark)
+public class OutboundSendQueueBenchmark extends BaseBenchmark {
+    private static final int CONTROL_CAPACITY = 8;
+    private static final int SENSOR_CAPACITY = 32;
+    private static final int BULK_CAPACITY = 64;
+    private static final int DEFAULT_CHANNEL_ID = 104;
+    private static final int SENSOR_CHANNEL_ID = 105;
+
+    @Param({ "0", "20000" })
+    public long sendNanos;
+
+    @Param({ "DROP_OLDEST", "BLOCK" })
+    public OutboundSendQueue.OverflowPolicy policy;
+
+    private OutboundSendQueue mQueue;
+    private byte[] mSample;
+    private byte[] mText;
+
+    @Setup
+    public void setUp() {
+        mQueue = new OutboundSendQueue("Benchmark-writer", new OutboundSendQueue.Transport() {
+            @Override
+            public void send(int channelId, byte[] data) {
+                if (sendNanos > 0) {
+                    LockSupport.parkNanos(sendNanos);
+                }
+            }
+        }, CONTROL_CAPACITY, SENSOR_CAPACITY, BULK_CAPACITY, policy);
+        mQueue.start();
+        mSample = WireCodec.encodeInt(SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT, 72);
+        mText = WireCodec.encodeText(SamsungAccessoryProviderService.TYPE_TEXT,
+                "Hello from the phone");
+    }
+
+    @TearDown
+    public void tearDown() {
+        mQueue.stop();
+    }
+
+    @Benchmark
+    public boolean enqueueSample() {
+        return mQueue.enqueue(OutboundSendQueue.LANE_SENSOR, SENSOR_CHANNEL_ID, mSample,
+                OutboundSendQueue.NO_COALESCE);
+    }
+
+    @Benchmark
+    public boolean enqueueText() {
+        return mQueue.enqueue(OutboundSendQueue.LANE_BULK, DEFAULT_CHANNEL_ID, mText,
+                OutboundSendQueue.NO_COALESCE);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+package com.samsung.example.benchmarks;
+
+import android.os.Handler;
+
+import com.samsung.example.samsungaccessoryprovider.backend.SamsungAccessoryProviderService;
+import com.samsung.example.samsungaccessoryprovider.backend.SampleBatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Adding heart rate samples to the batcher, including the size flushes to the sink. A max size
+ * of 1 turns batching off, so each sample is handed over on its own.
+ */
+@State(Scope.Thread)
+public class SampleBatcherBenchmark extends BaseBenchmark {
+    private static final long MAX_LATENCY_MS = 1000;
+    private static final String PEER_ID = "benchmark-peer";
+
+    @Param({ "1", "16", "64" })
+    public int maxSize;
+
+    private Handler mHandler;
+    private SampleBatcher mBatcher;
+    private int mValue = 0;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mHandler = new Handler();
+        mBatcher = new SampleBatcher(mHandler, maxSize, MAX_LATENCY_MS, new SampleBatcher.Sink() {
+            @Override
+            public void onSampleBatch(String peerId, int type, long[] timestamps, int[] values) {
+                blackhole.consume(values);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        mBatcher.flush();
+        mHandler.quit();
+    }
+
+    @Benchmark
+    public boolean add() {
+        return mBatcher.add(PEER_ID, SamsungAccessoryProviderService.TYPE_HEARTBEAT_COUNT,
+                60 + (mValue++ & 31));
+    }
+}
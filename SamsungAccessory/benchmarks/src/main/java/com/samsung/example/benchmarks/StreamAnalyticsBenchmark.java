@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+package com.samsung.example.benchmarks;
+
+import com.samsung.example.samsungaccessory.backend.StreamAnalytics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Feeding one heart rate sample to the analytics of the linked app and publishing the result,
+ * as done for every heartbeat frame.
+ */
+@State(Scope.Thread)
+public class StreamAnalyticsBenchmark extends BaseBenchmark {
+    private static final long WINDOW_MS = 60 * 1000L;
+    private static final int LOW_LIMIT = 40;
+    private static final int HIGH_LIMIT = 180;
+    private static final long SAMPLE_INTERVAL_MS = 50;
+
+    @Param({ "256", "4096" })
+    public int capacity;
+
+    private StreamAnalytics mAnalytics;
+    private long mTimestamp = 0;
+    private int mSequence = 0;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        mAnalytics = new StreamAnalytics(WINDOW_MS, capacity, LOW_LIMIT, HIGH_LIMIT,
+                new StreamAnalytics.Listener() {
+                    @Override
+                    public void onHeartRateStats(double mean, double stdDev, int min, int max) {
+                        blackhole.consume(mean);
+                    }
+
+                    @Override
+                    public void onCadence(double stepsPerMinute) {
+                        blackhole.consume(stepsPerMinute);
+                    }
+
+                    @Override
+                    public void onHeartRateAlert(int kind, int value, boolean isActive) {
+                        blackhole.consume(value);
+                    }
+                });
+    }
+
+    @Benchmark
+    public void addHeartRate() {
+        mTimestamp += SAMPLE_INTERVAL_MS;
+        mAnalytics.addHeartRate(mTimestamp, 60 + (mSequence++ & 31));
+        mAnalytics.publishHeartRate();
+    }
+}
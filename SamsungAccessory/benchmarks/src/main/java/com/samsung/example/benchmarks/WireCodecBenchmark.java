@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+package com.samsung.example.benchmarks;
+
+import com.samsung.example.samsungaccessoryprovider.backend.WireCodec;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding and decoding of every message type, as binary frames and as the legacy JSON.
+ * <p>
+ * The JSON benchmarks include the String and byte conversions done in {@code onReceive} and
+ * {@code sendToConsumer}. {@link WireCodec#toJSONObject} builds the same objects as the
+ * {@code create*JSONObject} methods of the provider service, and the decoders are what
+ * {@code parseMessage} of the linked app runs before dispatching a frame.
+ */
+@State(Scope.Thread)
+public class WireCodecBenchmark extends BaseBenchmark {
+    /** the TYPE_ constants of the services */
+    @Param({ "0", "1", "2", "3", "4", "5", "6", "7", "8" })
+    public int type;
+
+    private final WireCodec.Frame mFrame = new WireCodec.Frame();
+    private final WireCodec.Frame mOut = new WireCodec.Frame();
+    private byte[] mBinary;
+    private byte[] mJson;
+
+    @Setup
+    public void setUp() throws JSONException {
+        Messages.fill(mFrame, type, 42);
+        mBinary = WireCodec.encode(mFrame);
+        mJson = WireCodec.toJSONObject(mFrame).toString().getBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return WireCodec.encode(mFrame);
+    }
+
+    @Benchmark
+    public WireCodec.Frame decodeBinary() {
+        WireCodec.decode(mBinary, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws JSONException {
+        return WireCodec.toJSONObject(mFrame).toString().getBytes();
+    }
+
+    @Benchmark
+    public WireCodec.Frame decodeJson() throws JSONException {
+        WireCodec.fromJSONObject(new JSONObject(new String(mJson)), mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public int peekType() {
+        return WireCodec.peekType(WireCodec.isBinaryFrame(mJson) ? mBinary : mJson);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics. All Rights Reserved.
+ * Source code is licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ *
+ * IMPORTANT LICENSE NOTE:
+ * The IMAGES AND RESOURCES are licensed under the Creative Commons BY-NC-SA 3.0
+ * License (http://creativecommons.org/licenses/by-nc-sa/3.0/).
+ * The source code is allows commercial re-use, but IMAGES and RESOURCES forbids it.
+ */
+package android.os;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain JVM stand-in for a handler on its own looper thread: runnables run in order on one
+ * daemon thread, delayed ones once their delay has passed.
+ */
+public class Handler {
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Handler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    /* guarded by this */
+    private final IdentityHashMap<Runnable, List<ScheduledFuture<?>>> mPending =
+            new IdentityHashMap<Runnable, List<ScheduledFuture<?>>>();
+
+    public final boolean post(Runnable runnable) {
+        return postDelayed(runnable, 0);
+    }
+
+    public final boolean postDelayed(final Runnable runnable, long delayMillis) {
+        synchronized (this) {
+            List<ScheduledFuture<?>> futures = mPending.get(runnable);
+            if (futures == null) {
+                futures = new ArrayList<ScheduledFuture<?>>();
+                mPending.put(runnable, futures);
+            }
+            futures.add(mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Handler.this) {
+                        mPending.remove(runnable);
+                    }
+                    runnable.run();
+                }
+            }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS));
+        }
+        return true;
+    }
+
+    public final synchronized void removeCallbacks(Runnable runnable) {
+        List<ScheduledFuture<?>> futures = mPending.remove(runnable);
+        if (futures == null) {
+            return;
+        }
+        for (ScheduledFuture<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    /** Stops the thread; not part of the Android API. */
+    public void quit() {
+        mExecutor.shutdownNow();
+    }
+}